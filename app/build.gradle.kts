@@ -29,6 +29,10 @@ android {
         localeFilters += listOf("en", "zh-rCN")
     }
 
+    buildFeatures {
+        aidl = true
+    }
+
     val releaseSigning = if (hasReleaseKeyStore()) {
         signingConfigs.create("release") {
             storeFile = releaseKeyStore
@@ -5,8 +5,11 @@ import android.app.NotificationChannel
 import android.app.NotificationManager
 import android.content.Context
 import androidx.core.app.NotificationManagerCompat
+import dev.sanmer.pi.core.res.IconCache
 import dev.sanmer.pi.di.Repositories
+import dev.sanmer.pi.di.Services
 import dev.sanmer.pi.di.ViewModels
+import dev.sanmer.pi.service.SourceSpool
 import org.koin.android.ext.koin.androidContext
 import org.koin.android.ext.koin.androidLogger
 import org.koin.core.context.startKoin
@@ -20,8 +23,14 @@ class App : Application() {
         startKoin {
             androidLogger()
             androidContext(this@App)
-            modules(Repositories, ViewModels)
+            modules(Repositories, Services, ViewModels)
         }
+        if (getProcessName() == packageName) SourceSpool.clear()
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        IconCache.onTrimMemory(level)
     }
 
     private fun createNotificationChannels(context: Context) {
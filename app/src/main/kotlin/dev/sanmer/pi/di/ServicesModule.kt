@@ -0,0 +1,15 @@
+package dev.sanmer.pi.di
+
+import dev.sanmer.pi.service.DexOptPolicy
+import dev.sanmer.pi.service.DexOptQueue
+import dev.sanmer.pi.service.InstallJournal
+import dev.sanmer.pi.service.InstallScheduler
+import org.koin.android.ext.koin.androidContext
+import org.koin.dsl.module
+import java.io.File
+
+val Services = module {
+    single { InstallScheduler(InstallScheduler.workers) }
+    single { InstallJournal(File(androidContext().filesDir, "install_journal")) }
+    single { DexOptQueue(optimize = DexOptPolicy::optimize) }
+}
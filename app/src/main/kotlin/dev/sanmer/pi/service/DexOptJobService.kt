@@ -0,0 +1,53 @@
+package dev.sanmer.pi.service
+
+import android.app.job.JobParameters
+import android.app.job.JobService
+import dev.sanmer.pi.repository.SuRepository
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+import java.util.concurrent.ConcurrentHashMap
+
+class DexOptJobService : JobService(), KoinComponent {
+    private val suRepository by inject<SuRepository>()
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val jobs = ConcurrentHashMap<Int, Job>()
+    private val dexOpt by inject<DexOptQueue>()
+
+    override fun onStartJob(params: JobParameters): Boolean {
+        val packageName = params.extras.getString(EXTRA_PACKAGE_NAME) ?: return false
+        val keepProfiles = params.extras.getBoolean(EXTRA_KEEP_PROFILES, false)
+
+        jobs[params.jobId] = scope.launch {
+            if (suRepository.state.value.isPending) suRepository.launch()
+            val state = suRepository.state.first { it.isSuccess || it.isFailure }
+            if (state.isSuccess) dexOpt.enqueue(packageName, keepProfiles)
+
+            jobs.remove(params.jobId)
+            jobFinished(params, false)
+        }
+        return true
+    }
+
+    override fun onStopJob(params: JobParameters): Boolean {
+        jobs.remove(params.jobId)?.cancel()
+        return true
+    }
+
+    override fun onDestroy() {
+        scope.cancel()
+        super.onDestroy()
+    }
+
+    companion object Default {
+        internal const val EXTRA_PACKAGE_NAME = "dev.sanmer.pi.extra.PACKAGE_NAME"
+        internal const val EXTRA_KEEP_PROFILES = "dev.sanmer.pi.extra.KEEP_PROFILES"
+    }
+}
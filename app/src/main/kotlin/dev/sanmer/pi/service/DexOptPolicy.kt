@@ -0,0 +1,47 @@
+package dev.sanmer.pi.service
+
+import android.content.Context
+import androidx.core.content.edit
+import dev.sanmer.pi.Logger
+import dev.sanmer.pi.core.delegate.PackageManagerDelegate
+import dev.sanmer.pi.repository.SuRepository
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+
+/**
+ * Per-package compiler filters for dexopt, falling back to the system install filter for
+ * packages without one.
+ */
+internal object DexOptPolicy : KoinComponent {
+    private const val PREFERENCES = "dexopt_policy"
+
+    private val context by inject<Context>()
+    private val suRepository by inject<SuRepository>()
+    private val pm by lazy { suRepository.getPackageManager() }
+    private val preferences by lazy { context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE) }
+
+    private val logger = Logger.Android("DexOptPolicy")
+
+    val compilerFilters = listOf("verify", "speed-profile", "speed", "everything")
+
+    fun getCompilerFilter(packageName: String): String =
+        preferences.getString(packageName, null) ?: PackageManagerDelegate.defaultCompilerFilter
+
+    fun setCompilerFilter(packageName: String, value: String?) {
+        require(value == null || value in compilerFilters) {
+            "Expect compiler filter in $compilerFilters, but $value"
+        }
+        preferences.edit {
+            if (value != null) putString(packageName, value) else remove(packageName)
+        }
+    }
+
+    fun optimize(packageName: String, keepProfiles: Boolean) {
+        runCatching {
+            if (!keepProfiles) pm.clearApplicationProfileData(packageName)
+            pm.performDexOpt(packageName, getCompilerFilter(packageName))
+        }.onFailure {
+            logger.d(it)
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package dev.sanmer.pi.service
+
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.ConcurrentHashMap
+
+class DexOptQueue(
+    workers: Int = DEFAULT_WORKERS,
+    private val optimize: (String, Boolean) -> Unit
+) {
+    private val limiter = Semaphore(workers)
+    private val pending = ConcurrentHashMap<String, Request>()
+
+    init {
+        require(workers > 0) { "Expect workers > 0, but $workers" }
+    }
+
+    suspend fun enqueue(packageName: String, keepProfiles: Boolean = false): Boolean {
+        val request = Request(keepProfiles)
+        pending[packageName] = request
+        return limiter.withPermit {
+            if (!pending.remove(packageName, request)) return@withPermit false
+            optimize(packageName, request.keepProfiles)
+            true
+        }
+    }
+
+    private class Request(val keepProfiles: Boolean)
+
+    companion object Default {
+        const val DEFAULT_WORKERS = 1
+    }
+}
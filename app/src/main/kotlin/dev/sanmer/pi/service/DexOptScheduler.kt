@@ -0,0 +1,78 @@
+package dev.sanmer.pi.service
+
+import android.app.job.JobInfo
+import android.app.job.JobScheduler
+import android.content.ComponentName
+import android.content.Context
+import android.os.PersistableBundle
+import androidx.core.content.edit
+import dev.sanmer.pi.Logger
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+
+/**
+ * Hands deferred dexopt to [JobScheduler], so the install service can stop right after
+ * the commit instead of staying in the foreground until the device is idle or charging.
+ */
+internal object DexOptScheduler : KoinComponent {
+    private const val PREFERENCES = "dexopt"
+    private const val KEY_REQUIRES_IDLE = "requires_idle"
+    private const val KEY_REQUIRES_CHARGING = "requires_charging"
+    private const val KEY_NEXT_JOB_ID = "next_job_id"
+    private const val KEY_JOB_ID_PREFIX = "job_id:"
+
+    private val context by inject<Context>()
+    private val preferences by lazy { context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE) }
+    private val jobScheduler by lazy { context.getSystemService(JobScheduler::class.java) }
+
+    private val logger = Logger.Android("DexOptScheduler")
+
+    var requiresIdle: Boolean
+        get() = preferences.getBoolean(KEY_REQUIRES_IDLE, false)
+        set(value) = preferences.edit { putBoolean(KEY_REQUIRES_IDLE, value) }
+
+    var requiresCharging: Boolean
+        get() = preferences.getBoolean(KEY_REQUIRES_CHARGING, false)
+        set(value) = preferences.edit { putBoolean(KEY_REQUIRES_CHARGING, value) }
+
+    val isDeferred get() = requiresIdle || requiresCharging
+
+    /**
+     * Returns the job id of [packageName], allocating the next one from a persisted counter
+     * the first time, so ids stay stable across restarts and never collide between packages.
+     */
+    @Synchronized
+    private fun jobId(packageName: String): Int {
+        val key = KEY_JOB_ID_PREFIX + packageName
+        if (preferences.contains(key)) return preferences.getInt(key, 0)
+
+        val id = preferences.getInt(KEY_NEXT_JOB_ID, 1)
+        preferences.edit(commit = true) {
+            putInt(key, id)
+            putInt(KEY_NEXT_JOB_ID, id + 1)
+        }
+        return id
+    }
+
+    /**
+     * One job per package: scheduling the same package again replaces a job that has not
+     * run yet, which keeps the newest request as [DexOptQueue] does.
+     */
+    fun schedule(packageName: String, keepProfiles: Boolean) {
+        val extras = PersistableBundle().apply {
+            putString(DexOptJobService.EXTRA_PACKAGE_NAME, packageName)
+            putBoolean(DexOptJobService.EXTRA_KEEP_PROFILES, keepProfiles)
+        }
+        val job = JobInfo.Builder(
+            jobId(packageName),
+            ComponentName(context, DexOptJobService::class.java)
+        ).setRequiresDeviceIdle(requiresIdle)
+            .setRequiresCharging(requiresCharging)
+            .setExtras(extras)
+            .build()
+
+        if (jobScheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            logger.w("schedule: $packageName, rejected")
+        }
+    }
+}
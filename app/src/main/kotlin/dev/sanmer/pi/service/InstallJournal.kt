@@ -0,0 +1,174 @@
+package dev.sanmer.pi.service
+
+import android.net.Uri
+import dev.sanmer.pi.Logger
+import dev.sanmer.pi.core.parser.PackageInfoLite
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+internal class InstallJournal(private val dir: File) {
+    private val records = ConcurrentHashMap<Int, Record>()
+    private val owned = ConcurrentHashMap.newKeySet<Int>()
+    private val logger = Logger.Android("InstallJournal")
+
+    /**
+     * Reads the records left behind by earlier runs. Records owned by a live task, either
+     * journaled through [put] or taken with [claim], are neither reread nor returned.
+     */
+    fun load(): List<Record> {
+        dir.listFiles()?.forEach { file ->
+            val sessionId = file.name.removeSuffix(".tmp").toIntOrNull()
+            if (sessionId != null && sessionId in owned) return@forEach
+
+            if (file.name.endsWith(".tmp")) {
+                file.delete()
+                return@forEach
+            }
+
+            runCatching { read(file) }
+                .onSuccess { records[it.sessionId] = it }
+                .onFailure {
+                    logger.w("Drop ${file.name}: ${it.message}")
+                    file.delete()
+                }
+        }
+        return records.values.filter { it.sessionId !in owned }
+    }
+
+    /** Marks a loaded record as owned by the caller, returns false if a live task already owns it. */
+    fun claim(sessionId: Int) = owned.add(sessionId)
+
+    fun put(value: Record) {
+        owned.add(value.sessionId)
+        records[value.sessionId] = value
+        write(value)
+    }
+
+    fun checkpoint(sessionId: Int, name: String, bytes: Long) {
+        val value = records.computeIfPresent(sessionId) { _, record ->
+            record.copy(offsets = record.offsets + (name to bytes))
+        } ?: return
+        write(value)
+    }
+
+    fun remove(sessionId: Int) {
+        records.remove(sessionId)
+        File(dir, sessionId.toString()).delete()
+        owned.remove(sessionId)
+    }
+
+    private fun read(file: File) = DataInputStream(file.inputStream().buffered()).use { input ->
+        check(input.readInt() == MAGIC) { "Expect magic" }
+        check(input.readInt() == VERSION) { "Expect version $VERSION" }
+        input.readRecord()
+    }
+
+    @Synchronized
+    private fun write(value: Record) {
+        runCatching {
+            dir.mkdirs()
+            val file = File(dir, value.sessionId.toString())
+            val temp = File(dir, "${file.name}.tmp")
+            DataOutputStream(temp.outputStream().buffered()).use { output ->
+                output.writeInt(MAGIC)
+                output.writeInt(VERSION)
+                output.writeRecord(value)
+            }
+            check(temp.renameTo(file)) { "Failed to rename $temp" }
+        }.onFailure {
+            logger.w("Failed to write ${value.sessionId}: ${it.message}")
+        }
+    }
+
+    private fun DataOutputStream.writePackageInfo(value: PackageInfoLite) {
+        writeUTF(value.packageName)
+        writeInt(value.versionCode)
+        writeInt(value.versionCodeMajor)
+        writeUTF(value.versionName)
+        writeInt(value.compileSdkVersion)
+        writeUTF(value.compileSdkVersionCodename)
+        writeInt(value.minSdkVersion)
+        writeInt(value.targetSdkVersion)
+        writeUTF(value.label.orEmpty())
+        writeUTF(value.iconKey.orEmpty())
+    }
+
+    private fun DataInputStream.readPackageInfo() = PackageInfoLite(
+        packageName = readUTF(),
+        versionCode = readInt(),
+        versionCodeMajor = readInt(),
+        versionName = readUTF(),
+        compileSdkVersion = readInt(),
+        compileSdkVersionCodename = readUTF(),
+        minSdkVersion = readInt(),
+        targetSdkVersion = readInt(),
+        label = readUTF().ifEmpty { null },
+        iconKey = readUTF().ifEmpty { null }
+    )
+
+    private fun DataOutputStream.writeRecord(value: Record) {
+        writeInt(value.sessionId)
+        with(value.task) {
+            writeUTF(uri.toString())
+            writeInt(fileNames.size)
+            fileNames.forEach(::writeUTF)
+            writeLong(sizeBytes)
+            writePackageInfo(packageInfo)
+            writeUTF(installerPackageName)
+            writeUTF(priority.name)
+            writeInt(packageInfos.size)
+            packageInfos.forEach { (name, packageInfo) ->
+                writeUTF(name)
+                writePackageInfo(packageInfo)
+            }
+        }
+        writeInt(value.sessions.size)
+        value.sessions.forEach { (name, sessionId) ->
+            writeUTF(name)
+            writeInt(sessionId)
+        }
+        writeInt(value.offsets.size)
+        value.offsets.forEach { (name, bytes) ->
+            writeUTF(name)
+            writeLong(bytes)
+        }
+        writeBoolean(value.isSpeculative)
+    }
+
+    private fun DataInputStream.readRecord() = Record(
+        sessionId = readInt(),
+        task = InstallService.Task(
+            uri = Uri.parse(readUTF()),
+            fileNames = List(readInt()) { readUTF() },
+            sizeBytes = readLong(),
+            packageInfo = readPackageInfo(),
+            installerPackageName = readUTF(),
+            priority = InstallScheduler.Priority.valueOf(readUTF()),
+            packageInfos = linkedMapOf<String, PackageInfoLite>().apply {
+                repeat(readInt()) { put(readUTF(), readPackageInfo()) }
+            }
+        ),
+        sessions = linkedMapOf<String, Int>().apply {
+            repeat(readInt()) { put(readUTF(), readInt()) }
+        },
+        offsets = buildMap {
+            repeat(readInt()) { put(readUTF(), readLong()) }
+        },
+        isSpeculative = readBoolean()
+    )
+
+    data class Record(
+        val sessionId: Int,
+        val task: InstallService.Task,
+        val sessions: Map<String, Int>,
+        val offsets: Map<String, Long>,
+        val isSpeculative: Boolean = false
+    )
+
+    private companion object Default {
+        const val MAGIC = 0x50494a4e
+        const val VERSION = 2
+    }
+}
@@ -0,0 +1,163 @@
+package dev.sanmer.pi.service
+
+import android.content.Context
+import androidx.core.content.edit
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+import java.util.PriorityQueue
+
+class InstallScheduler(workers: Int = DEFAULT_WORKERS) {
+    private val writers = PriorityLimiter(workers)
+    private val locksMutex = Mutex()
+    private val locks = mutableMapOf<String, PackageLock>()
+
+    init {
+        require(workers > 0) { "Expect workers > 0, but $workers" }
+    }
+
+    /** Takes effect for the next write; writes already running are left to finish. */
+    suspend fun setWorkers(value: Int) {
+        require(value > 0) { "Expect workers > 0, but $value" }
+        writers.resize(value)
+    }
+
+    suspend fun <T> schedule(
+        packageName: String,
+        priority: Priority,
+        write: suspend () -> T,
+        commit: suspend (T) -> Unit
+    ) = schedule(listOf(packageName), priority, write, commit)
+
+    suspend fun <T> schedule(
+        packageNames: Collection<String>,
+        priority: Priority,
+        write: suspend () -> T,
+        commit: suspend (T) -> Unit
+    ) {
+        val keys = packageNames.toSortedSet().toList()
+        val locks = acquireLocks(keys)
+        try {
+            locks.withLocks {
+                val value = writers.withPermit(priority) { write() }
+                commit(value)
+            }
+        } finally {
+            withContext(NonCancellable) { releaseLocks(keys, locks) }
+        }
+    }
+
+    private suspend fun acquireLocks(keys: List<String>) = locksMutex.withLock {
+        keys.map { key -> locks.getOrPut(key) { PackageLock() }.also { it.users++ } }
+    }
+
+    private suspend fun releaseLocks(keys: List<String>, values: List<PackageLock>) = locksMutex.withLock {
+        keys.zip(values).forEach { (key, lock) ->
+            if (--lock.users == 0) locks.remove(key)
+        }
+    }
+
+    private suspend fun List<PackageLock>.withLocks(
+        index: Int = 0,
+        block: suspend () -> Unit
+    ) {
+        if (index == size) return block()
+        this[index].mutex.withLock { withLocks(index + 1, block) }
+    }
+
+    private class PackageLock {
+        val mutex = Mutex()
+        var users = 0
+    }
+
+    private class PriorityLimiter(private var limit: Int) {
+        private var available = limit
+        private val mutex = Mutex()
+        private var sequence = 0L
+        private val waiters = PriorityQueue(
+            compareBy<Waiter> { it.priority.ordinal }.thenBy { it.sequence }
+        )
+
+        suspend inline fun <T> withPermit(priority: Priority, block: () -> T): T {
+            acquire(priority)
+            try {
+                return block()
+            } finally {
+                withContext(NonCancellable) { release() }
+            }
+        }
+
+        suspend fun acquire(priority: Priority) {
+            val waiter = mutex.withLock {
+                if (available > 0 && waiters.isEmpty()) {
+                    available--
+                    null
+                } else {
+                    Waiter(priority, sequence++).also(waiters::add)
+                }
+            } ?: return
+
+            try {
+                waiter.granted.await()
+            } catch (e: CancellationException) {
+                withContext(NonCancellable) {
+                    val removed = mutex.withLock { waiters.remove(waiter) }
+                    if (!removed) release()
+                }
+                throw e
+            }
+        }
+
+        suspend fun release() = mutex.withLock {
+            available++
+            grant()
+        }
+
+        /** A smaller limit goes negative until enough running writes release. */
+        suspend fun resize(value: Int) = mutex.withLock {
+            available += value - limit
+            limit = value
+            grant()
+        }
+
+        private fun grant() {
+            while (available > 0) {
+                val next = waiters.poll() ?: break
+                available--
+                next.granted.complete(Unit)
+            }
+        }
+
+        private class Waiter(
+            val priority: Priority,
+            val sequence: Long
+        ) {
+            val granted = CompletableDeferred<Unit>()
+        }
+    }
+
+    enum class Priority {
+        Foreground,
+        Background
+    }
+
+    companion object Default : KoinComponent {
+        const val DEFAULT_WORKERS = 2
+        const val MAX_WORKERS = 4
+
+        private const val PREFERENCES = "install_scheduler"
+        private const val KEY_WORKERS = "workers"
+
+        private val context by inject<Context>()
+        private val preferences by lazy { context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE) }
+
+        var workers: Int
+            get() = preferences.getInt(KEY_WORKERS, DEFAULT_WORKERS).coerceIn(1, MAX_WORKERS)
+            set(value) = preferences.edit { putInt(KEY_WORKERS, value.coerceIn(1, MAX_WORKERS)) }
+    }
+}
@@ -6,11 +6,8 @@ import android.app.PendingIntent
 import android.content.Context
 import android.content.Intent
 import android.content.pm.PackageInstaller
-import android.content.pm.PackageManager
 import android.content.pm.ServiceInfo
-import android.content.res.AssetFileDescriptor
 import android.net.Uri
-import android.os.Parcelable
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
 import androidx.core.app.ServiceCompat
@@ -24,20 +21,26 @@ import dev.sanmer.pi.compat.PermissionCompat
 import dev.sanmer.pi.core.compat.ContextCompat.userId
 import dev.sanmer.pi.core.delegate.PackageInstallerDelegate
 import dev.sanmer.pi.core.delegate.PackageInstallerDelegate.Default.commit
+import dev.sanmer.pi.core.delegate.PackageInstallerDelegate.Default.writeCompressed
+import dev.sanmer.pi.core.delegate.PackageInstallerDelegate.Default.writeDelta
 import dev.sanmer.pi.core.delegate.PackageInstallerDelegate.Default.writeFd
 import dev.sanmer.pi.core.delegate.PackageInstallerDelegate.Default.writeZip
+import dev.sanmer.pi.core.ktx.OuterCompression
+import dev.sanmer.pi.core.parser.DeltaPatch
 import dev.sanmer.pi.core.parser.PackageInfoLite
-import dev.sanmer.pi.ktx.parcelable
+import dev.sanmer.pi.core.parser.PackageParser
 import dev.sanmer.pi.ktx.versionDisplay
 import dev.sanmer.pi.repository.SuRepository
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
-import kotlinx.parcelize.Parcelize
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.time.Duration.Companion.seconds
 import kotlin.time.TimeSource
 
@@ -47,24 +50,22 @@ class InstallService : LifecycleService(), KoinComponent {
     private val pi by lazy { suRepository.getPackageInstaller() }
     private val nm by lazy { NotificationManagerCompat.from(this) }
 
-    private val runningMutex = Mutex()
-    private val runningTask = mutableListOf<String>()
+    private val scheduler by inject<InstallScheduler>()
+    private val sessions by lazy { InstallSessions(suRepository) }
+    private val dexOpt by inject<DexOptQueue>()
+    private val journal by inject<InstallJournal>()
+    private val running = AtomicInteger()
 
     private val logger = Logger.Android("InstallService")
 
-    private suspend inline fun autoStopSelf(task: Task, block: (Task) -> Unit) {
-        if (!runningMutex.withLock {
-                runningTask.contains(task.packageInfo.packageName).also {
-                    if (!it) runningTask.add(task.packageInfo.packageName)
-                }
-            }) {
-            block(task)
-            if (runningMutex.withLock {
-                    runningTask.remove(task.packageInfo.packageName)
-                    runningTask.isEmpty()
-                }) {
+    private suspend inline fun autoStopSelf(block: () -> Unit) {
+        running.incrementAndGet()
+        try {
+            block()
+        } finally {
+            if (running.decrementAndGet() == 0) {
                 delay(5.seconds)
-                if (runningMutex.withLock { runningTask.isEmpty() }) stopSelf()
+                if (running.get() == 0) stopSelf()
             }
         }
     }
@@ -93,6 +94,10 @@ class InstallService : LifecycleService(), KoinComponent {
             builder.build(),
             ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC
         )
+
+        lifecycleScope.launch(Dispatchers.IO) {
+            autoStopSelf { resume() }
+        }
     }
 
     override fun onDestroy() {
@@ -107,101 +112,276 @@ class InstallService : LifecycleService(), KoinComponent {
     }
 
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
-        lifecycleScope.launch(Dispatchers.IO) {
-            autoStopSelf(intent?.taskOrNull ?: return@launch) { task ->
-                val builder = NotificationCompat.Builder(
-                    applicationContext,
-                    Const.CHANNEL_ID_INSTALL
-                ).apply {
-                    setSmallIcon(R.drawable.launcher_outline)
-                    setLargeIcon(task.packageInfo.icon)
-                    setContentTitle(task.packageInfo.labelOrDefault)
-                    setOngoing(true)
-                    setSilent(true)
-                    setGroup(GROUP_KEY)
-                }
+        val task = intent?.taskOrNull
+        if (task != null) lifecycleScope.launch(Dispatchers.IO) {
+            autoStopSelf { execute(task, startId, null) }
+        }
+        return super.onStartCommand(intent, flags, startId)
+    }
 
-                runCatching {
-                    val fd = contentResolver.openAssetFileDescriptor(task.uri, "r") ?: return@launch
-                    install(
-                        task = task,
-                        fd = fd,
-                        startId = startId,
-                        builder = builder
-                    )
-                    fd.close()
-                    notify(startId, builder) {
-                        setContentText(task.packageInfo.versionDisplay())
-                        setContentIntent(launch(task.packageInfo.packageName))
-                        setAutoCancel(true)
-                        setOngoing(false)
-                        setSilent(false)
-                        setGroup(null)
-                    }
-                }.onFailure { error ->
-                    logger.e(error)
-                    notify(startId, builder) {
-                        setContentText(getString(R.string.failed))
-                        setStyle(
-                            NotificationCompat.BigTextStyle()
-                                .bigText(error.message ?: error.javaClass.name)
-                        )
-                        addAction(0, getString(R.string.retry), install(task.uri))
-                        setOngoing(false)
-                        setSilent(false)
-                        setGroup(null)
-                    }
-                }
+    private suspend fun resume() {
+        val records = journal.load()
+        if (records.isEmpty()) return
+
+        if (suRepository.state.value.isPending) suRepository.launch()
+        val state = suRepository.state.first { it.isSuccess || it.isFailure }
+        if (state.isFailure) return
+
+        val sessionIds = pi.getAllSessions(userId).map { it.sessionId }.toSet()
+        records.forEach { record ->
+            if (record.sessionId !in sessionIds) {
+                journal.remove(record.sessionId)
+                return@forEach
+            }
+
+            if (record.isSpeculative) {
+                if (!SpeculativeInstaller.owns(record.sessionId)) discard(record)
+                return@forEach
+            }
+
+            if (!journal.claim(record.sessionId)) return@forEach
+
+            logger.i("resume: ${record.sessionId}, offsets = ${record.offsets}")
+            lifecycleScope.launch(Dispatchers.IO) {
+                autoStopSelf { execute(record.task, record.sessionId, record) }
             }
         }
-        return super.onStartCommand(intent, flags, startId)
     }
 
-    private suspend fun install(
-        task: Task,
-        fd: AssetFileDescriptor,
-        startId: Int,
-        builder: NotificationCompat.Builder
-    ) {
-        val params = createSessionParams()
-        params.setAppIcon(task.packageInfo.iconOrDefault)
-        params.setAppLabel(task.packageInfo.labelOrDefault)
-        params.setAppPackageName(task.packageInfo.packageName)
-        params.setOriginatingUri(task.uri)
-
-        val ownerPackageName = suRepository.state.value
-            .getOrElse({ it.ownerPackageName }) { "" }
-
-        val session = pi.openSession(
-            pi.createSession(
-                params = params,
-                installerPackageName = ownerPackageName.ifEmpty { task.installerPackageName },
-                userId = userId
+    private suspend fun execute(task: Task, id: Int, resumed: InstallJournal.Record?) {
+        val builder = NotificationCompat.Builder(
+            applicationContext,
+            Const.CHANNEL_ID_INSTALL
+        ).apply {
+            setSmallIcon(R.drawable.launcher_outline)
+            setLargeIcon(task.packageInfo.icon)
+            setContentTitle(task.packageInfo.labelOrDefault)
+            setContentText(getString(R.string.pending))
+            setOngoing(true)
+            setSilent(true)
+            setGroup(GROUP_KEY)
+        }
+        notify(id, builder) { this }
+
+        runCatching {
+            scheduler.schedule(
+                packageNames = task.packageNames,
+                priority = task.priority,
+                write = { write(task, resumed, id, builder) },
+                commit = { commit(task, it, id, builder) }
             )
-        )
+            notify(id, builder) {
+                setContentText(task.packageInfo.versionDisplay())
+                setContentIntent(launch(task.packageInfo.packageName))
+                setAutoCancel(true)
+                setOngoing(false)
+                setSilent(false)
+                setGroup(null)
+            }
+        }.onFailure { error ->
+            if (error is CancellationException) {
+                nm.cancel(id)
+                return@onFailure
+            }
 
+            logger.e(error)
+            notify(id, builder) {
+                setContentText(getString(R.string.failed))
+                setStyle(
+                    NotificationCompat.BigTextStyle()
+                        .bigText(error.message ?: error.javaClass.name)
+                )
+                addAction(0, getString(R.string.retry), install(task.uri))
+                setOngoing(false)
+                setSilent(false)
+                setGroup(null)
+            }
+        }
+
+        if (resumed == null) SourceSpool.release(task.uri)
+    }
+
+    private suspend fun write(
+        task: Task,
+        resumed: InstallJournal.Record?,
+        id: Int,
+        builder: NotificationCompat.Builder
+    ): Staged? {
         val period = 1.seconds
         var lastNotify = TimeSource.Monotonic.markNow()
-        val sizeBytes = task.sizeBytes.toInt()
+        val fd = runCatching {
+            checkNotNull(SourceSpool.open(task.uri) { copied, total ->
+                if (lastNotify.elapsedNow() >= period) {
+                    notify(id, builder) {
+                        setContentText(getString(R.string.downloading))
+                        setProgress(PROGRESS_MAX, progressOf(copied, total), total <= 0)
+                    }
+                    lastNotify = TimeSource.Monotonic.markNow()
+                }
+            }) {
+                "Failed to open ${task.uri}"
+            }.also { fd ->
+                val verdicts = runCatching { sessions.preflight(task, fd, resumed != null) }
+                    .onFailure { fd.close() }
+                    .getOrThrow()
+                if (verdicts.isNotEmpty()) fd.close()
+                check(verdicts.isEmpty()) { verdicts.joinToString("\n") { it.message } }
+            }
+        }.onFailure {
+            if (it !is CancellationException) {
+                SpeculativeInstaller.dismiss(task.uri)
+                resumed?.let(::discard)
+            }
+        }.getOrThrow()
+
+        val record = resumed
+            ?: SpeculativeInstaller.take(task)?.also(journal::put)
+            ?: run {
+                val plan = sessions.plan(task, fd)
+                if (plan?.isUnchanged == true) {
+                    fd.close()
+                    return null
+                }
+                sessions.create(task, plan).also(journal::put)
+            }
+        val session = pi.openSession(record.sessionId)
+
+        val sizeBytes = record.task.sizeBytes
         val onProgress: (Long) -> Unit = { copied ->
             if (lastNotify.elapsedNow() >= period) {
-                notify(startId, builder) {
-                    setProgress(sizeBytes, copied.toInt(), false)
+                notify(id, builder) {
+                    setContentText(null)
+                    setProgress(PROGRESS_MAX, progressOf(copied, sizeBytes), sizeBytes <= 0)
                 }
                 lastNotify = TimeSource.Monotonic.markNow()
             }
         }
-        if (task.fileNames.isEmpty()) {
-            session.writeFd(task.packageInfo.packageName, fd, onProgress)
+        val onCheckpoint: (String, Long) -> Unit = { name, bytes ->
+            journal.checkpoint(record.sessionId, name, bytes)
+        }
+        val compression = OuterCompression.detect(fd)
+        val patch = if (
+            compression == null && record.task.fileNames.isEmpty() && !record.task.isMultiPackage
+        ) {
+            DeltaPatch.read(fd)
         } else {
-            session.writeZip(task.fileNames, fd, onProgress)
+            null
         }
 
-        notify(startId, builder) {
+        val dexMetadata = runCatching {
+            fd.use {
+                if (record.task.isMultiPackage) {
+                    val children = record.sessions.mapValues { (_, sessionId) ->
+                        pi.openSession(sessionId)
+                    }
+                    if (compression != null) {
+                        PackageInstallerDelegate.writeCompressed(
+                            sessions = children,
+                            fd = it,
+                            compression = compression,
+                            onProgress = onProgress
+                        )
+                    } else {
+                        PackageInstallerDelegate.writeZip(
+                            sessions = children,
+                            fd = it,
+                            offsets = record.offsets,
+                            onCheckpoint = onCheckpoint,
+                            onProgress = onProgress
+                        )
+                    }.also {
+                        children.values.forEach(PackageInstaller.Session::close)
+                    }.mapNotNullTo(mutableSetOf()) { name ->
+                        record.task.packageInfos[name]?.packageName
+                    }
+                } else {
+                    val written = when {
+                        compression != null && record.task.fileNames.isEmpty() -> {
+                            session.writeCompressed(
+                                name = PackageParser.BASE_APK,
+                                fd = it,
+                                compression = compression,
+                                onProgress = onProgress
+                            )
+                        }
+
+                        compression != null -> {
+                            session.writeCompressed(
+                                names = record.task.fileNames,
+                                fd = it,
+                                compression = compression,
+                                onProgress = onProgress
+                            )
+                        }
+
+                        patch != null -> {
+                            check(patch.packageName == record.task.packageInfo.packageName) {
+                                "Expect patch for ${record.task.packageInfo.packageName}"
+                            }
+                            val base = pm.getApplicationInfo(patch.packageName, 0, userId).sourceDir
+                            session.writeDelta(
+                                name = PackageParser.BASE_APK,
+                                fd = it,
+                                base = File(base),
+                                onProgress = onProgress
+                            )
+                        }
+
+                        record.task.fileNames.isEmpty() -> {
+                            val name = PackageParser.BASE_APK
+                            session.writeFd(
+                                name = name,
+                                fd = it,
+                                offset = record.offsets[name] ?: 0,
+                                onCheckpoint = { bytes -> onCheckpoint(name, bytes) },
+                                onProgress = onProgress
+                            )
+                        }
+
+                        else -> {
+                            session.writeZip(
+                                names = record.task.fileNames,
+                                fd = it,
+                                offsets = record.offsets,
+                                onCheckpoint = onCheckpoint,
+                                onProgress = onProgress
+                            )
+                        }
+                    }
+                    if (written) setOf(record.task.packageInfo.packageName) else emptySet()
+                }
+            }
+        }.onFailure {
+            if (it !is CancellationException) discard(record)
+        }.getOrThrow()
+
+        logger.d("write: ${record.sessionId}, ${PackageInstallerDelegate.copyPipeline.stats}")
+        return Staged(record, session, dexMetadata)
+    }
+
+    private fun discard(record: InstallJournal.Record) {
+        runCatching { pi.openSession(record.sessionId).abandon() }
+            .onFailure { logger.d(it) }
+        journal.remove(record.sessionId)
+    }
+
+    private suspend fun commit(
+        task: Task,
+        staged: Staged?,
+        id: Int,
+        builder: NotificationCompat.Builder
+    ) {
+        if (staged == null) return
+
+        notify(id, builder) {
             setProgress(0, 0, false)
             setContentText(getString(R.string.installing))
         }
-        val result = session.commit()
+        val result = try {
+            staged.session.commit()
+        } finally {
+            journal.remove(staged.record.sessionId)
+        }
         val status = result.getIntExtra(
             PackageInstaller.EXTRA_STATUS,
             PackageInstaller.STATUS_FAILURE
@@ -210,44 +390,19 @@ class InstallService : LifecycleService(), KoinComponent {
             result.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE).orEmpty()
         }
 
-        if (ownerPackageName.isEmpty()) {
-            notify(startId, builder) {
-                setContentText(getString(R.string.optimizing))
-            }
-            optimize(task.packageInfo.packageName)
-        }
-    }
-
-    private fun optimize(packageName: String) {
-        runCatching {
-            pm.clearApplicationProfileData(packageName)
-            pm.performDexOpt(packageName)
-        }.onFailure {
-            logger.d(it)
-        }
-    }
-
-    private fun createSessionParams(): PackageInstaller.SessionParams {
-        val params = PackageInstallerDelegate.SessionParams(
-            PackageInstaller.SessionParams.MODE_FULL_INSTALL
-        )
-
-        params.setInstallReason(PackageManager.INSTALL_REASON_USER)
-        params.installFlags = with(PackageInstallerDelegate.SessionParams) {
-            val flags = params.installFlags or
-                    INSTALL_ALLOW_TEST or
-                    INSTALL_REPLACE_EXISTING or
-                    INSTALL_REQUEST_DOWNGRADE
-
-            if (BuildCompat.atLeastU) {
-                flags or INSTALL_BYPASS_LOW_TARGET_SDK_BLOCK or
-                        INSTALL_REQUEST_UPDATE_OWNERSHIP
-            } else {
-                flags
+        if (sessions.ownerPackageName.isEmpty()) {
+            task.packageNames.forEach { packageName ->
+                if (DexOptScheduler.isDeferred) {
+                    DexOptScheduler.schedule(packageName, packageName in staged.dexMetadata)
+                } else {
+                    lifecycleScope.launch(Dispatchers.IO) {
+                        autoStopSelf {
+                            dexOpt.enqueue(packageName, packageName in staged.dexMetadata)
+                        }
+                    }
+                }
             }
         }
-
-        return params
     }
 
     private fun launch(packageName: String): PendingIntent? {
@@ -260,24 +415,54 @@ class InstallService : LifecycleService(), KoinComponent {
         return PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE)
     }
 
-    @Parcelize
-    private data class Task(
+    private class Staged(
+        val record: InstallJournal.Record,
+        val session: PackageInstaller.Session,
+        val dexMetadata: Set<String>
+    )
+
+    internal data class Task(
         val uri: Uri,
         val fileNames: List<String>,
         val sizeBytes: Long,
         val packageInfo: PackageInfoLite,
-        val installerPackageName: String
-    ) : Parcelable
+        val installerPackageName: String,
+        val priority: InstallScheduler.Priority,
+        val packageInfos: Map<String, PackageInfoLite>
+    ) {
+        val isMultiPackage get() = packageInfos.isNotEmpty()
+
+        val packageNames
+            get() = if (isMultiPackage) {
+                packageInfos.values.map { it.packageName }
+            } else {
+                listOf(packageInfo.packageName)
+            }
+    }
 
     companion object Default {
         private const val GROUP_KEY = "dev.sanmer.pi.INSTALL_SERVICE_GROUP_KEY"
-        private const val EXTRA_TASK = "dev.sanmer.pi.extra.INSTALL_TASK"
+        private const val EXTRA_TASK_ID = "dev.sanmer.pi.extra.INSTALL_TASK_ID"
 
-        private fun Intent.putTask(value: Task) =
-            putExtra(EXTRA_TASK, value)
+        private const val PROGRESS_MAX = 1000
 
-        private inline val Intent.taskOrNull: Task?
-            get() = parcelable(EXTRA_TASK)
+        private fun progressOf(copied: Long, sizeBytes: Long) = if (sizeBytes > 0) {
+            (copied.coerceIn(0, sizeBytes) * PROGRESS_MAX / sizeBytes).toInt()
+        } else {
+            0
+        }
+
+        private val tasks = ConcurrentHashMap<Int, Task>()
+        private val nextTaskId = AtomicInteger()
+
+        private fun Intent.putTask(value: Task): Intent {
+            val id = nextTaskId.incrementAndGet()
+            tasks[id] = value
+            return putExtra(EXTRA_TASK_ID, id)
+        }
+
+        private val Intent.taskOrNull: Task?
+            get() = tasks.remove(getIntExtra(EXTRA_TASK_ID, 0))
 
         fun start(
             context: Context,
@@ -285,9 +470,12 @@ class InstallService : LifecycleService(), KoinComponent {
             fileNames: List<String>,
             sizeBytes: Long,
             packageInfo: PackageInfoLite,
-            installerPackageName: String
+            installerPackageName: String,
+            priority: InstallScheduler.Priority = InstallScheduler.Priority.Foreground,
+            packageInfos: Map<String, PackageInfoLite> = emptyMap()
         ) {
             fun start() {
+                SpeculativeInstaller.claim(uri)
                 context.startService(
                     Intent(context, InstallService::class.java).also {
                         it.putTask(
@@ -296,22 +484,81 @@ class InstallService : LifecycleService(), KoinComponent {
                                 fileNames,
                                 sizeBytes,
                                 packageInfo,
-                                installerPackageName
+                                installerPackageName,
+                                priority,
+                                packageInfos
                             )
                         )
                     }
                 )
             }
+            SourceSpool.acquire(uri)
             if (BuildCompat.atLeastT) {
                 PermissionCompat.requestPermission(
                     context = context,
                     permission = Manifest.permission.POST_NOTIFICATIONS
                 ) { allowed ->
-                    if (allowed) start()
+                    if (allowed) {
+                        start()
+                    } else {
+                        SpeculativeInstaller.cancel(uri)
+                        SourceSpool.release(uri)
+                    }
                 }
             } else {
                 start()
             }
         }
+
+        var isSpeculative: Boolean
+            get() = SpeculativeInstaller.isEnabled
+            set(value) {
+                SpeculativeInstaller.isEnabled = value
+            }
+
+        var dexOptRequiresIdle: Boolean
+            get() = DexOptScheduler.requiresIdle
+            set(value) {
+                DexOptScheduler.requiresIdle = value
+            }
+
+        var dexOptRequiresCharging: Boolean
+            get() = DexOptScheduler.requiresCharging
+            set(value) {
+                DexOptScheduler.requiresCharging = value
+            }
+
+        val compilerFilters get() = DexOptPolicy.compilerFilters
+
+        fun getCompilerFilter(packageName: String) = DexOptPolicy.getCompilerFilter(packageName)
+
+        fun setCompilerFilter(packageName: String, value: String?) =
+            DexOptPolicy.setCompilerFilter(packageName, value)
+
+        fun prepare(
+            uri: Uri,
+            fileNames: List<String>,
+            sizeBytes: Long,
+            packageInfo: PackageInfoLite,
+            installerPackageName: String
+        ) = SpeculativeInstaller.prepare(
+            Task(
+                uri,
+                fileNames,
+                sizeBytes,
+                packageInfo,
+                installerPackageName,
+                InstallScheduler.Priority.Foreground,
+                emptyMap()
+            )
+        )
+
+        fun cancel() = SpeculativeInstaller.cancelAll()
+
+        fun retainSource(uri: Uri) = SourceSpool.acquire(uri)
+
+        fun releaseSource(uri: Uri) = SourceSpool.release(uri)
+
+        suspend fun openSource(uri: Uri) = SourceSpool.open(uri)
     }
 }
\ No newline at end of file
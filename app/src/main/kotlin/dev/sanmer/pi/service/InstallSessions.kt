@@ -0,0 +1,148 @@
+package dev.sanmer.pi.service
+
+import android.content.pm.PackageInstaller
+import android.content.pm.PackageManager
+import android.content.res.AssetFileDescriptor
+import android.net.Uri
+import dev.sanmer.pi.compat.BuildCompat
+import dev.sanmer.pi.core.compat.ContextCompat.userId
+import dev.sanmer.pi.core.delegate.PackageInstallerDelegate
+import dev.sanmer.pi.core.parser.InheritPlan
+import dev.sanmer.pi.core.parser.PackageInfoLite
+import dev.sanmer.pi.core.parser.PackagePreflight
+import dev.sanmer.pi.repository.SuRepository
+
+internal class InstallSessions(
+    private val suRepository: SuRepository
+) {
+    val pi by lazy { suRepository.getPackageInstaller() }
+    private val pm by lazy { suRepository.getPackageManager() }
+    private val preflight by lazy { PackagePreflight(pm, userId) }
+
+    val ownerPackageName
+        get() = suRepository.state.value
+            .getOrElse({ it.ownerPackageName }) { "" }
+
+    /**
+     * A resumed session has already passed the full preflight and holds part of its
+     * storage, so only the checks the installed package can invalidate are repeated.
+     */
+    fun preflight(
+        task: InstallService.Task,
+        fd: AssetFileDescriptor,
+        isResumed: Boolean = false
+    ) = buildList {
+        // INSTALL_REQUEST_DOWNGRADE is honoured for root and shell, but not for Dhizuku
+        val allowDowngrade = ownerPackageName.isEmpty()
+        if (task.isMultiPackage) {
+            task.packageInfos.forEach { (name, packageInfo) ->
+                addAll(preflight.analyze(fd, packageInfo, listOf(name), allowDowngrade))
+            }
+        } else {
+            addAll(preflight.analyze(fd, task.packageInfo, task.fileNames, allowDowngrade))
+        }
+        if (!isResumed) preflight.analyze(task.sizeBytes)?.let(::add)
+    }.filter { verdict ->
+        !isResumed || verdict is PackagePreflight.Verdict.Downgrade ||
+            verdict is PackagePreflight.Verdict.Signature
+    }
+
+    fun plan(task: InstallService.Task, fd: AssetFileDescriptor): InheritPlan? {
+        if (task.isMultiPackage) return null
+        return runCatching {
+            val installed = pm.getApplicationInfo(task.packageInfo.packageName, 0, userId)
+            InheritPlan.from(fd, task.fileNames, installed)
+        }.getOrNull()?.takeIf { it.isUnchanged || it.changed.isNotEmpty() }
+    }
+
+    fun create(task: InstallService.Task, plan: InheritPlan? = null): InstallJournal.Record {
+        if (!task.isMultiPackage) {
+            val mode = if (plan != null) {
+                PackageInstaller.SessionParams.MODE_INHERIT_EXISTING
+            } else {
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL
+            }
+            val sessionId = createSession(createSessionParams(task.packageInfo, task.uri, mode), task)
+            if (plan != null && plan.removedSplits.isNotEmpty()) {
+                val session = pi.openSession(sessionId)
+                runCatching { plan.removedSplits.forEach(session::removeSplit) }
+                    .onFailure { session.abandon() }
+                    .getOrThrow()
+                session.close()
+            }
+
+            return InstallJournal.Record(
+                sessionId = sessionId,
+                task = if (plan != null) {
+                    task.copy(fileNames = plan.changed, sizeBytes = plan.changedBytes)
+                } else {
+                    task
+                },
+                sessions = emptyMap(),
+                offsets = emptyMap()
+            )
+        }
+
+        val sessionId = createSession(createSessionParams().apply { setMultiPackage() }, task)
+        val session = pi.openSession(sessionId)
+        val sessions = runCatching {
+            task.packageInfos.mapValues { (_, packageInfo) ->
+                createSession(createSessionParams(packageInfo, task.uri), task)
+                    .also(session::addChild)
+            }
+        }.onFailure {
+            session.abandon()
+        }.getOrThrow()
+        session.close()
+
+        return InstallJournal.Record(
+            sessionId = sessionId,
+            task = task,
+            sessions = sessions,
+            offsets = emptyMap()
+        )
+    }
+
+    private fun createSession(params: PackageInstaller.SessionParams, task: InstallService.Task) =
+        pi.createSession(
+            params = params,
+            installerPackageName = ownerPackageName.ifEmpty { task.installerPackageName },
+            userId = userId
+        )
+
+    private fun createSessionParams(
+        packageInfo: PackageInfoLite,
+        uri: Uri,
+        mode: Int = PackageInstaller.SessionParams.MODE_FULL_INSTALL
+    ): PackageInstaller.SessionParams {
+        val params = createSessionParams(mode)
+        params.setAppIcon(packageInfo.iconOrDefault)
+        params.setAppLabel(packageInfo.labelOrDefault)
+        params.setAppPackageName(packageInfo.packageName)
+        params.setOriginatingUri(uri)
+        return params
+    }
+
+    private fun createSessionParams(
+        mode: Int = PackageInstaller.SessionParams.MODE_FULL_INSTALL
+    ): PackageInstaller.SessionParams {
+        val params = PackageInstallerDelegate.SessionParams(mode)
+
+        params.setInstallReason(PackageManager.INSTALL_REASON_USER)
+        params.installFlags = with(PackageInstallerDelegate.SessionParams) {
+            val flags = params.installFlags or
+                    INSTALL_ALLOW_TEST or
+                    INSTALL_REPLACE_EXISTING or
+                    INSTALL_REQUEST_DOWNGRADE
+
+            if (BuildCompat.atLeastU) {
+                flags or INSTALL_BYPASS_LOW_TARGET_SDK_BLOCK or
+                        INSTALL_REQUEST_UPDATE_OWNERSHIP
+            } else {
+                flags
+            }
+        }
+
+        return params
+    }
+}
@@ -0,0 +1,174 @@
+package dev.sanmer.pi.service
+
+import android.app.ActivityManager
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.content.res.AssetFileDescriptor
+import android.graphics.Bitmap
+import android.os.Bundle
+import android.os.IBinder
+import android.os.Process
+import androidx.core.content.edit
+import androidx.core.os.BundleCompat
+import dev.sanmer.pi.Logger
+import dev.sanmer.pi.core.parser.IPackageInfo
+import dev.sanmer.pi.core.parser.PackageEvent
+import dev.sanmer.pi.core.res.IconCache
+import dev.sanmer.pi.ktx.parcelable
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.withTimeoutOrNull
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+import java.util.concurrent.TimeoutException
+import kotlin.time.Duration.Companion.seconds
+
+internal object ParserPool : KoinComponent {
+    private const val PREFERENCES = "parser_pool"
+    private const val KEY_ENABLED = "enabled"
+    private val PARSE_TIMEOUT = 30.seconds
+
+    private val context by inject<Context>()
+    private val preferences by lazy { context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE) }
+    private val slots by lazy { ParserService.slots.map(::Slot) }
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    private val logger = Logger.Android("ParserPool")
+
+    var isEnabled: Boolean
+        get() = preferences.getBoolean(KEY_ENABLED, true)
+        set(value) = preferences.edit { putBoolean(KEY_ENABLED, value) }
+
+    @Synchronized
+    private fun acquire() = slots.minBy { it.running }.also { it.running++ }
+
+    @Synchronized
+    private fun release(slot: Slot) {
+        slot.running--
+    }
+
+    private fun Bundle.toEvent(): PackageEvent? {
+        classLoader = PackageEvent::class.java.classLoader
+        getBundle(ParserService.KEY_ICONS)?.let { icons ->
+            icons.keySet().forEach { key ->
+                BundleCompat.getParcelable(icons, key, Bitmap::class.java)
+                    ?.let { IconCache.put(key, it) }
+            }
+        }
+        return parcelable(ParserService.KEY_EVENT)
+    }
+
+    /**
+     * The binder call cannot be interrupted, so a slot that outlives [PARSE_TIMEOUT] or whose
+     * caller is cancelled is killed, which fails the call and frees the waiting thread.
+     */
+    suspend fun parse(
+        fd: AssetFileDescriptor,
+        onProgress: (PackageEvent) -> Unit = {}
+    ): IPackageInfo? {
+        val slot = acquire()
+        try {
+            val service = runCatching { slot.connect() }
+                .onFailure { logger.w("connect: ${slot.name}, ${it.message}") }
+                .getOrElse { return null }
+
+            val callback = object : IParserCallback.Stub() {
+                override fun onEvent(event: Bundle) {
+                    event.toEvent()?.let(onProgress)
+                }
+            }
+            val call = scope.async {
+                runCatching {
+                    service.parse(fd.parcelFileDescriptor, fd.startOffset, fd.length, callback)
+                }
+            }
+            val outcome = try {
+                withTimeoutOrNull(PARSE_TIMEOUT) { call.await() }
+            } catch (e: CancellationException) {
+                slot.kill()
+                throw e
+            } ?: run {
+                slot.kill()
+                Result.failure(TimeoutException("Expect result within $PARSE_TIMEOUT"))
+            }
+
+            val result = outcome
+                .onFailure { logger.w("parse: ${slot.name}, ${it.message}") }
+                .getOrElse { return null }
+            result.getString(ParserService.KEY_ERROR)?.let(::error)
+
+            val event = result.toEvent()
+            check(event is PackageEvent.Loaded) { "Expect package info from ${slot.name}" }
+            return event.packageInfo
+        } finally {
+            release(slot)
+        }
+    }
+
+    fun close() {
+        slots.forEach(Slot::disconnect)
+    }
+
+    private class Slot(
+        private val service: Class<out ParserService>
+    ) : ServiceConnection {
+        private var deferred: CompletableDeferred<IParserService>? = null
+        var running = 0
+
+        val name: String get() = service.simpleName
+
+        suspend fun connect() = synchronized(this) {
+            deferred ?: CompletableDeferred<IParserService>().also {
+                deferred = it
+                if (!context.bindService(Intent(context, service), this, Context.BIND_AUTO_CREATE)) {
+                    deferred = null
+                    it.completeExceptionally(IllegalStateException("Failed to bind $name"))
+                }
+            }
+        }.await()
+
+        fun kill() {
+            disconnect()
+            val processName = runCatching {
+                context.packageManager.getServiceInfo(ComponentName(context, service), 0).processName
+            }.getOrElse { return }
+            context.getSystemService(ActivityManager::class.java).runningAppProcesses
+                ?.firstOrNull { it.processName == processName }
+                ?.let { Process.killProcess(it.pid) }
+        }
+
+        fun disconnect() {
+            synchronized(this) {
+                val value = deferred ?: return
+                deferred = null
+                value.cancel()
+            }
+            runCatching { context.unbindService(this) }
+        }
+
+        override fun onServiceConnected(name: ComponentName, binder: IBinder) {
+            val service = IParserService.Stub.asInterface(binder)
+            synchronized(this) {
+                val value = deferred ?: return
+                if (!value.complete(service)) deferred = CompletableDeferred(service)
+            }
+        }
+
+        override fun onServiceDisconnected(name: ComponentName) {
+            logger.w("disconnected: ${this.name}")
+            synchronized(this) {
+                if (deferred?.isCompleted == true) deferred = CompletableDeferred()
+            }
+        }
+
+        override fun onBindingDied(name: ComponentName) {
+            disconnect()
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package dev.sanmer.pi.service
+
+import android.app.Service
+import android.content.Intent
+import android.content.res.AssetFileDescriptor
+import android.os.Bundle
+import android.os.IBinder
+import android.os.ParcelFileDescriptor
+import androidx.core.os.bundleOf
+import dev.sanmer.pi.Logger
+import dev.sanmer.pi.compat.BuildCompat
+import dev.sanmer.pi.core.parser.IPackageInfo
+import dev.sanmer.pi.core.parser.PackageEvent
+import dev.sanmer.pi.core.parser.PackageParser
+import dev.sanmer.pi.core.res.IconCache
+import kotlinx.coroutines.channels.trySendBlocking
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.last
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.runBlocking
+
+open class ParserService : Service() {
+    private val logger = Logger.Android("ParserService")
+
+    private val binder = object : IParserService.Stub() {
+        override fun parse(
+            fd: ParcelFileDescriptor,
+            offset: Long,
+            length: Long,
+            callback: IParserCallback?
+        ): Bundle {
+            return AssetFileDescriptor(fd, offset, length).use { source ->
+                runCatching {
+                    runBlocking {
+                        PackageParser.loadPackageAsFlow(source) { timing ->
+                            logger.d("loadPackage: $timing, speedup = ${timing.speedup}")
+                        }.onEach {
+                            if (it !is PackageEvent.Loaded) callback?.onEvent(it.toBundle())
+                        }.last()
+                    }
+                }.fold(
+                    onSuccess = { it.toBundle() },
+                    onFailure = {
+                        logger.e(it)
+                        bundleOf(KEY_ERROR to (it.message ?: it.javaClass.name))
+                    }
+                )
+            }
+        }
+    }
+
+    override fun onBind(intent: Intent): IBinder = binder
+
+    private fun PackageEvent.toBundle(): Bundle {
+        val icons = Bundle()
+        iconKeys.forEach { key ->
+            val icon = IconCache[key] ?: return@forEach
+            icons.putParcelable(key, if (BuildCompat.atLeastS) icon.asShared() else icon)
+        }
+
+        return bundleOf(
+            KEY_EVENT to this,
+            KEY_ICONS to icons
+        )
+    }
+
+    class Slot0 : ParserService()
+
+    class Slot1 : ParserService()
+
+    class Slot2 : ParserService()
+
+    companion object Default {
+        internal const val KEY_EVENT = "dev.sanmer.pi.extra.EVENT"
+        internal const val KEY_ICONS = "dev.sanmer.pi.extra.ICONS"
+        internal const val KEY_ERROR = "dev.sanmer.pi.extra.ERROR"
+
+        internal val slots = listOf(Slot0::class.java, Slot1::class.java, Slot2::class.java)
+
+        private val IPackageInfo.iconKeys
+            get() = when (this) {
+                is IPackageInfo.Apk -> listOfNotNull(packageInfo.iconKey)
+                is IPackageInfo.Apks -> listOfNotNull(base.packageInfo.iconKey)
+                is IPackageInfo.Zip -> packageInfos.values.mapNotNull { it.packageInfo.iconKey }
+            }
+
+        private val PackageEvent.iconKeys
+            get() = when (this) {
+                is PackageEvent.Manifest, is PackageEvent.Split -> emptyList()
+                is PackageEvent.Resolved -> apk.iconKeys
+                is PackageEvent.Loaded -> packageInfo.iconKeys
+            }
+
+        var isEnabled: Boolean
+            get() = ParserPool.isEnabled
+            set(value) {
+                ParserPool.isEnabled = value
+            }
+
+        fun loadPackageAsFlow(
+            fd: AssetFileDescriptor,
+            onTiming: (PackageParser.Timing) -> Unit = {}
+        ) = if (ParserPool.isEnabled) {
+            channelFlow {
+                val packageInfo = ParserPool.parse(fd) { trySendBlocking(it) }
+                if (packageInfo != null) {
+                    send(PackageEvent.Loaded(packageInfo))
+                } else {
+                    PackageParser.loadPackageAsFlow(fd, onTiming = onTiming).collect { send(it) }
+                }
+            }
+        } else {
+            PackageParser.loadPackageAsFlow(fd, onTiming = onTiming)
+        }
+
+        fun close() = ParserPool.close()
+    }
+}
@@ -0,0 +1,196 @@
+package dev.sanmer.pi.service
+
+import android.content.ContentResolver
+import android.content.Context
+import android.content.res.AssetFileDescriptor
+import android.net.Uri
+import android.os.ParcelFileDescriptor
+import android.system.Os
+import android.system.OsConstants
+import dev.sanmer.pi.Logger
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.launchIn
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.withContext
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+
+internal object SourceSpool : KoinComponent {
+    private const val CAPACITY_BYTES = 4L * 1024 * 1024 * 1024
+    private const val RESERVED_BYTES = 512L * 1024 * 1024
+
+    private val LOCAL_AUTHORITIES = setOf(
+        "com.android.externalstorage.documents",
+        "com.android.providers.downloads.documents",
+        "com.android.providers.media.documents",
+        "media"
+    )
+
+    private val context by inject<Context>()
+    private val dir by lazy { File(context.cacheDir, "spool").apply { mkdirs() } }
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    private val entries = mutableMapOf<Uri, Entry>()
+    private val used = AtomicLong()
+    private var nextId = 0
+
+    private val logger = Logger.Android("SourceSpool")
+
+    /**
+     * Drops spools left behind by a previous process; only the main process may call this,
+     * before any source is acquired.
+     */
+    fun clear() {
+        dir.listFiles()?.forEach { it.deleteRecursively() }
+    }
+
+    @Synchronized
+    fun acquire(uri: Uri) {
+        entries.getOrPut(uri) { Entry(File(dir, (nextId++).toString())) }.refs++
+    }
+
+    @Synchronized
+    fun release(uri: Uri) {
+        val entry = entries[uri] ?: return
+        if (--entry.refs > 0) return
+        entries.remove(uri)
+        entry.download?.cancel()
+        if (entry.isSpooled) used.addAndGet(-entry.sizeBytes)
+        entry.file.delete()
+    }
+
+    @Synchronized
+    private fun commit(uri: Uri, entry: Entry): Boolean {
+        if (entries[uri] !== entry) {
+            entry.file.delete()
+            return false
+        }
+        used.addAndGet(entry.sizeBytes)
+        entry.isSpooled = true
+        return true
+    }
+
+    @Synchronized
+    private fun entryOrNull(uri: Uri) = entries[uri]
+
+    @Synchronized
+    private fun download(uri: Uri, entry: Entry) = entry.download
+        ?: scope.async { spool(uri, entry) }.also { entry.download = it }
+
+    /**
+     * Opens the spooled copy of [uri], downloading it first if needed. Concurrent callers
+     * share one download and each receives its [onProgress] as `(copied, total)`, where
+     * total is negative if unknown. Cancelling a caller only stops its wait; the download
+     * itself is cancelled once the last reference is released.
+     */
+    suspend fun open(
+        uri: Uri,
+        onProgress: (Long, Long) -> Unit = { _, _ -> }
+    ): AssetFileDescriptor? = withContext(Dispatchers.IO) {
+        val entry = entryOrNull(uri) ?: return@withContext openDirect(uri)
+        val download = download(uri, entry)
+        val progress = if (!download.isCompleted) {
+            entry.copied
+                .onEach { onProgress(it, entry.totalBytes) }
+                .launchIn(this)
+        } else {
+            null
+        }
+
+        val isSpooled = try {
+            download.await()
+        } catch (e: CancellationException) {
+            ensureActive()
+            false
+        } finally {
+            progress?.cancel()
+        }
+
+        val spooled = if (isSpooled) runCatching { entry.open() }.getOrNull() else null
+        spooled ?: openDirect(uri)
+    }
+
+    private fun openDirect(uri: Uri) = context.contentResolver.openAssetFileDescriptor(uri, "r")
+
+    private suspend fun spool(uri: Uri, entry: Entry): Boolean {
+        val fd = openDirect(uri) ?: return false
+        if (fd.isLocal(uri)) {
+            fd.close()
+            return false
+        }
+
+        val limit = minOf(CAPACITY_BYTES - used.get(), dir.usableSpace - RESERVED_BYTES)
+        if (fd.length > limit) {
+            fd.close()
+            logger.d("bypass: $uri, ${fd.length} > $limit")
+            return false
+        }
+
+        entry.totalBytes = fd.length
+        return runCatching {
+            fd.createInputStream().use { input ->
+                entry.file.outputStream().use { output ->
+                    var copied = 0L
+                    val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+                    var bytes = input.read(buffer)
+                    while (bytes >= 0) {
+                        currentCoroutineContext().ensureActive()
+                        copied += bytes
+                        if (copied > limit) throw IOException("Expect at most $limit bytes")
+                        output.write(buffer, 0, bytes)
+                        entry.copied.value = copied
+                        bytes = input.read(buffer)
+                    }
+                    entry.sizeBytes = copied
+                }
+            }
+        }.onSuccess {
+            logger.d("spool: $uri, ${entry.sizeBytes} bytes")
+        }.onFailure {
+            entry.file.delete()
+            if (it is CancellationException) throw it
+            logger.w("spool: $uri, ${it.message}")
+        }.isSuccess && commit(uri, entry)
+    }
+
+    private fun AssetFileDescriptor.isLocal(uri: Uri): Boolean {
+        if (uri.scheme == ContentResolver.SCHEME_FILE) return true
+        val authority = uri.authority.orEmpty()
+        if (authority !in LOCAL_AUTHORITIES && !authority.startsWith(context.packageName)) return false
+        return runCatching {
+            OsConstants.S_ISREG(Os.fstat(fileDescriptor).st_mode)
+        }.getOrDefault(false)
+    }
+
+    private class Entry(val file: File) {
+        var refs = 0
+        var download: Deferred<Boolean>? = null
+        val copied = MutableStateFlow(0L)
+
+        @Volatile
+        var totalBytes = -1L
+
+        @Volatile
+        var sizeBytes = 0L
+
+        @Volatile
+        var isSpooled = false
+
+        fun open() = AssetFileDescriptor(
+            ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY),
+            0,
+            sizeBytes
+        )
+    }
+}
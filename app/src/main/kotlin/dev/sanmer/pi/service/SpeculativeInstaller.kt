@@ -0,0 +1,163 @@
+package dev.sanmer.pi.service
+
+import android.content.Context
+import android.net.Uri
+import androidx.core.content.edit
+import dev.sanmer.pi.Logger
+import dev.sanmer.pi.core.delegate.PackageInstallerDelegate.Default.writeFd
+import dev.sanmer.pi.core.delegate.PackageInstallerDelegate.Default.writeZip
+import dev.sanmer.pi.core.ktx.OuterCompression
+import dev.sanmer.pi.core.parser.PackageParser
+import dev.sanmer.pi.repository.SuRepository
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+import java.util.concurrent.ConcurrentHashMap
+
+internal object SpeculativeInstaller : KoinComponent {
+    private const val PREFERENCES = "speculative_installer"
+    private const val KEY_ENABLED = "enabled"
+
+    private val context by inject<Context>()
+    private val suRepository by inject<SuRepository>()
+    private val scheduler by inject<InstallScheduler>()
+    private val journal by inject<InstallJournal>()
+    private val sessions by lazy { InstallSessions(suRepository) }
+    private val preferences by lazy { context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE) }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val prepared = ConcurrentHashMap<Uri, Prepared>()
+    private val claimed = ConcurrentHashMap<Uri, Prepared>()
+
+    private val logger = Logger.Android("SpeculativeInstaller")
+
+    var isEnabled: Boolean
+        get() = preferences.getBoolean(KEY_ENABLED, false)
+        set(value) = preferences.edit { putBoolean(KEY_ENABLED, value) }
+
+    fun prepare(task: InstallService.Task) {
+        if (!isEnabled || task.isMultiPackage) return
+        cancel(task.uri)
+
+        val value = Prepared(task)
+        value.job = scope.launch {
+            runCatching {
+                scheduler.schedule(
+                    packageName = task.packageInfo.packageName,
+                    priority = InstallScheduler.Priority.Background,
+                    write = { write(value) },
+                    commit = {}
+                )
+                logger.d("prepare: ${task.uri}, offsets = ${value.offsets}")
+            }.onFailure {
+                if (it !is CancellationException) logger.w("prepare: ${task.uri}, ${it.message}")
+            }
+        }
+        prepared[task.uri] = value
+    }
+
+    private suspend fun write(value: Prepared) {
+        val task = value.task
+        val fd = checkNotNull(SourceSpool.open(task.uri)) {
+            "Failed to open ${task.uri}"
+        }
+        fd.use {
+            check(OuterCompression.detect(it) == null) { "Expect uncompressed source" }
+            val verdicts = sessions.preflight(task, it)
+            check(verdicts.isEmpty()) { verdicts.joinToString { verdict -> verdict.message } }
+
+            val record = sessions.create(task).copy(isSpeculative = true)
+            value.record = record
+            journal.put(record)
+
+            val onCheckpoint: (String, Long) -> Unit = { name, bytes ->
+                value.offsets[name] = bytes
+                journal.checkpoint(record.sessionId, name, bytes)
+            }
+            val session = sessions.pi.openSession(record.sessionId)
+            try {
+                if (task.fileNames.isEmpty()) {
+                    val name = PackageParser.BASE_APK
+                    session.writeFd(
+                        name = name,
+                        fd = it,
+                        onCheckpoint = { bytes -> onCheckpoint(name, bytes) }
+                    )
+                } else {
+                    session.writeZip(
+                        names = task.fileNames,
+                        fd = it,
+                        onCheckpoint = onCheckpoint
+                    )
+                }
+            } finally {
+                session.close()
+            }
+        }
+    }
+
+    fun claim(uri: Uri) {
+        val value = prepared.remove(uri) ?: return
+        claimed[uri] = value
+    }
+
+    fun cancel(uri: Uri) {
+        val value = prepared.remove(uri) ?: return
+        scope.launch { value.abandon() }
+    }
+
+    fun dismiss(uri: Uri) {
+        val value = claimed.remove(uri) ?: return
+        scope.launch { value.abandon() }
+    }
+
+    fun cancelAll() {
+        prepared.keys.forEach(::cancel)
+    }
+
+    fun owns(sessionId: Int) = (prepared.values + claimed.values)
+        .any { it.record?.sessionId == sessionId }
+
+    /**
+     * The caller already holds the package lock, so an unfinished pre-stream is cancelled
+     * rather than awaited; the write continues from its last checkpoint.
+     */
+    suspend fun take(task: InstallService.Task): InstallJournal.Record? {
+        val value = claimed.remove(task.uri) ?: return null
+        value.job?.cancelAndJoin()
+
+        val record = value.record ?: return null
+        val matches = value.task.packageInfo.packageName == task.packageInfo.packageName &&
+                task.fileNames.containsAll(value.task.fileNames)
+        if (!matches) {
+            value.abandon()
+            return null
+        }
+
+        return record.copy(task = task, offsets = value.offsets.toMap(), isSpeculative = false)
+    }
+
+    private suspend fun Prepared.abandon() {
+        job?.cancel()
+        job?.join()
+        val record = record ?: return
+        runCatching { sessions.pi.openSession(record.sessionId).abandon() }
+            .onFailure { logger.w("abandon: ${record.sessionId}, ${it.message}") }
+        journal.remove(record.sessionId)
+    }
+
+    private class Prepared(val task: InstallService.Task) {
+        val offsets = ConcurrentHashMap<String, Long>()
+        @Volatile
+        var job: Job? = null
+
+        @Volatile
+        var record: InstallJournal.Record? = null
+    }
+}
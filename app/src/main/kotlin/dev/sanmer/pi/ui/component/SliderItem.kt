@@ -0,0 +1,62 @@
+package dev.sanmer.pi.ui.component
+
+import androidx.compose.foundation.layout.Arrangement
+import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.padding
+import androidx.compose.material3.CardDefaults
+import androidx.compose.material3.MaterialTheme
+import androidx.compose.material3.Slider
+import androidx.compose.material3.Text
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableFloatStateOf
+import androidx.compose.runtime.remember
+import androidx.compose.runtime.setValue
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.unit.dp
+import dev.sanmer.pi.ui.ktx.surface
+import kotlin.math.roundToInt
+
+@Composable
+fun SliderItem(
+    title: String,
+    summary: @Composable (Int) -> String,
+    value: Int,
+    onValueChange: (Int) -> Unit,
+    valueRange: IntRange,
+    modifier: Modifier = Modifier,
+    enabled: Boolean = true
+) = Column(
+    modifier = modifier
+        .fillMaxWidth()
+        .surface(
+            shape = MaterialTheme.shapes.large,
+            backgroundColor = MaterialTheme.colorScheme.surface,
+            border = CardDefaults.outlinedCardBorder(false)
+        )
+        .padding(15.dp),
+    verticalArrangement = Arrangement.spacedBy(5.dp)
+) {
+    var position by remember(value) { mutableFloatStateOf(value.toFloat()) }
+
+    Text(
+        text = title,
+        style = MaterialTheme.typography.titleMedium
+    )
+
+    Text(
+        text = summary(position.roundToInt()),
+        style = MaterialTheme.typography.bodyMedium,
+        color = MaterialTheme.colorScheme.onSurfaceVariant
+    )
+
+    Slider(
+        value = position,
+        onValueChange = { position = it },
+        onValueChangeFinished = { onValueChange(position.roundToInt()) },
+        valueRange = valueRange.first.toFloat()..valueRange.last.toFloat(),
+        steps = valueRange.last - valueRange.first - 1,
+        enabled = enabled
+    )
+}
@@ -29,17 +29,22 @@ import androidx.compose.foundation.layout.size
 import androidx.compose.foundation.layout.systemBars
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.items
+import androidx.compose.material3.AlertDialog
 import androidx.compose.material3.CardDefaults
+import androidx.compose.material3.FilledTonalButton
 import androidx.compose.material3.Icon
 import androidx.compose.material3.LinearProgressIndicator
 import androidx.compose.material3.LocalContentColor
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
+import androidx.compose.material3.TextButton
 import androidx.compose.material3.ripple
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.derivedStateOf
 import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
+import androidx.compose.runtime.setValue
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
@@ -47,6 +52,8 @@ import androidx.compose.ui.graphics.asImageBitmap
 import androidx.compose.ui.graphics.painter.Painter
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.res.painterResource
+import androidx.compose.ui.res.pluralStringResource
+import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.text.font.FontWeight
 import androidx.compose.ui.text.style.TextOverflow
 import androidx.compose.ui.unit.dp
@@ -58,7 +65,10 @@ import dev.sanmer.pi.ktx.formatFileSize
 import dev.sanmer.pi.ktx.sdkVersionDiff
 import dev.sanmer.pi.ktx.versionDiff
 import dev.sanmer.pi.model.LoadData
+import dev.sanmer.pi.service.InstallScheduler
 import dev.sanmer.pi.ui.component.LabelText
+import dev.sanmer.pi.ui.component.SliderItem
+import dev.sanmer.pi.ui.component.SwitchItem
 import dev.sanmer.pi.ui.ktx.plus
 import dev.sanmer.pi.ui.ktx.surface
 import dev.sanmer.pi.ui.main.MainViewModel.Content
@@ -98,10 +108,14 @@ fun MainScreen(
 
         is Content.Apks -> {
             BackHandler { viewModel.content = Content.Main }
+            val packageInfo = viewModel.packageInfo(content.uri)
+                .getOrElse({ it as? IPackageInfo.Apks }) { content.packageInfo }
             ApksContent(
-                base = content.packageInfo.base,
-                onApks = { viewModel.install(context, content.uri, content.packageInfo) },
-                splitConfigs = content.packageInfo.splitConfigs,
+                base = packageInfo.base,
+                onApks = { viewModel.install(context, content.uri, packageInfo) },
+                compilerFilter = viewModel.compilerFilter(packageInfo.base.packageName),
+                onCompilerFilter = { viewModel.nextCompilerFilter(packageInfo.base.packageName) },
+                splitConfigs = packageInfo.splitConfigs,
                 isSplitSelected = { viewModel.isSplitSelected(content.uri, it) },
                 onPickSplit = { viewModel.pickSplit(content.uri, it) },
                 contentPadding = WindowInsets.systemBars.asPaddingValues()
@@ -114,6 +128,24 @@ fun MainScreen(
                 fileNames = viewModel.fileNames(content.uri),
                 packageInfo = content.packageInfos::getValue,
                 onZip = { apk, fileName -> viewModel.install(context, content.uri, apk, fileName) },
+                onZipAll = { viewModel.install(context, content.uri, content.packageInfos) },
+                contentPadding = WindowInsets.systemBars.asPaddingValues()
+            )
+        }
+
+        Content.Settings -> {
+            BackHandler { viewModel.content = Content.Main }
+            SettingsContent(
+                isSpeculative = viewModel.isSpeculative,
+                onSpeculative = viewModel::setSpeculative,
+                dexOptRequiresIdle = viewModel.dexOptRequiresIdle,
+                onDexOptRequiresIdle = viewModel::setDexOptRequiresIdle,
+                dexOptRequiresCharging = viewModel.dexOptRequiresCharging,
+                onDexOptRequiresCharging = viewModel::setDexOptRequiresCharging,
+                isParserIsolated = viewModel.isParserIsolated,
+                onParserIsolated = viewModel::setParserIsolated,
+                installWorkers = viewModel.installWorkers,
+                onInstallWorkers = viewModel::setInstallWorkers,
                 contentPadding = WindowInsets.systemBars.asPaddingValues()
             )
         }
@@ -148,6 +180,7 @@ private fun MainContent(
                 uris = viewModel.uris,
                 packageInfo = viewModel::packageInfo,
                 fileNames = viewModel::fileNames,
+                isScanning = viewModel::isScanning,
                 contentPadding = contentPadding,
                 onApk = { uri, apk -> viewModel.install(context, uri, apk) },
                 onApks = { uri, apks -> viewModel.install(context, uri, apks) },
@@ -157,8 +190,9 @@ private fun MainContent(
             ) else Placeholder(
                 painter = painterResource(R.drawable.rosette_discount_check),
                 contentPadding = contentPadding,
+                contentDescription = stringResource(R.string.settings),
                 tint = MaterialTheme.colorScheme.primary,
-                enabled = false
+                onClick = { viewModel.content = Content.Settings }
             )
         }.onFailure {
             Placeholder(
@@ -206,6 +240,7 @@ private fun PackageInfoList(
     uris: List<Uri>,
     packageInfo: (Uri) -> LoadData<IPackageInfo>,
     fileNames: (Uri) -> List<String>,
+    isScanning: (Uri) -> Boolean,
     onApk: (Uri, IPackageInfo.Apk) -> Unit,
     onApks: (Uri, IPackageInfo.Apks) -> Unit,
     onZip: (Uri, IPackageInfo.Apk, String) -> Unit,
@@ -232,7 +267,8 @@ private fun PackageInfoList(
                     animationSpec = tween(500)
                 )
             },
-            contentAlignment = Alignment.Center
+            contentAlignment = Alignment.Center,
+            contentKey = { it.javaClass }
         ) { packageInfo ->
             packageInfo.onLoading {
                 LinearProgressIndicator(
@@ -251,14 +287,16 @@ private fun PackageInfoList(
                     is IPackageInfo.Apk -> PackageInfoItem(
                         packageInfo = packageInfo,
                         onClick = { onApk(uri, packageInfo) },
-                        label = "APK"
+                        label = "APK",
+                        isScanning = isScanning(uri)
                     )
 
                     is IPackageInfo.Apks -> PackageInfoItem(
                         packageInfo = packageInfo.base,
                         onClick = { onApks(uri, packageInfo) },
                         onLongClick = { onViewApks(uri, packageInfo) },
-                        label = "APKS"
+                        label = "APKS",
+                        isScanning = isScanning(uri)
                     )
 
                     is IPackageInfo.Zip -> {
@@ -272,7 +310,8 @@ private fun PackageInfoList(
                             packageInfo = first,
                             onClick = { onZip(uri, first, fileNames.first()) },
                             onLongClick = { onViewZip(uri, packageInfo) },
-                            label = "ZIP"
+                            label = "ZIP",
+                            isScanning = isScanning(uri)
                         )
                     }
                 }
@@ -307,7 +346,8 @@ private fun PackageInfoItem(
     packageInfo: IPackageInfo.Apk,
     onClick: () -> Unit = {},
     onLongClick: () -> Unit = {},
-    label: String = ""
+    label: String = "",
+    isScanning: Boolean = false
 ) = Row(
     modifier = Modifier
         .fillMaxWidth()
@@ -328,8 +368,11 @@ private fun PackageInfoItem(
         horizontalAlignment = Alignment.CenterHorizontally,
         verticalArrangement = Arrangement.spacedBy(5.dp)
     ) {
+        val icon = remember(packageInfo.packageInfo.iconKey) {
+            packageInfo.packageInfo.iconOrDefault.asImageBitmap()
+        }
         Image(
-            bitmap = packageInfo.packageInfo.iconOrDefault.asImageBitmap(),
+            bitmap = icon,
             contentDescription = null,
             modifier = Modifier.size(45.dp)
         )
@@ -380,6 +423,13 @@ private fun PackageInfoItem(
             fontWeight = FontWeight.Normal,
             color = MaterialTheme.colorScheme.onSurfaceVariant
         )
+
+        if (isScanning) LinearProgressIndicator(
+            modifier = Modifier
+                .padding(top = 5.dp)
+                .fillMaxWidth()
+                .height(2.dp)
+        )
     }
 }
 
@@ -387,6 +437,8 @@ private fun PackageInfoItem(
 private fun ApksContent(
     base: IPackageInfo.Apk,
     onApks: () -> Unit,
+    compilerFilter: String,
+    onCompilerFilter: () -> Unit,
     splitConfigs: List<SplitConfig>,
     isSplitSelected: (SplitConfig) -> Boolean,
     onPickSplit: (SplitConfig) -> Unit,
@@ -404,6 +456,13 @@ private fun ApksContent(
         )
     }
 
+    item {
+        CompilerFilterItem(
+            compilerFilter = compilerFilter,
+            onClick = onCompilerFilter
+        )
+    }
+
     items(
         items = splitConfigs,
         key = { it.fileName }
@@ -416,6 +475,33 @@ private fun ApksContent(
     }
 }
 
+@Composable
+private fun CompilerFilterItem(
+    compilerFilter: String,
+    onClick: () -> Unit
+) = Column(
+    modifier = Modifier
+        .fillMaxWidth()
+        .surface(
+            shape = MaterialTheme.shapes.large,
+            backgroundColor = MaterialTheme.colorScheme.surface,
+            border = CardDefaults.outlinedCardBorder(false)
+        )
+        .clickable(onClick = onClick)
+        .padding(15.dp)
+) {
+    Text(
+        text = stringResource(R.string.compiler_filter),
+        style = MaterialTheme.typography.titleMedium
+    )
+
+    Text(
+        text = compilerFilter,
+        style = MaterialTheme.typography.bodyMedium,
+        color = MaterialTheme.colorScheme.onSurfaceVariant
+    )
+}
+
 @Composable
 private fun SplitConfigItem(
     splitConfig: SplitConfig,
@@ -444,6 +530,7 @@ private fun SplitConfigItem(
                 is SplitConfig.Type.Abi -> R.drawable.cpu
                 is SplitConfig.Type.Density -> R.drawable.device_screen
                 is SplitConfig.Type.Language -> R.drawable.language
+                SplitConfig.Type.AssetPack -> R.drawable.box
                 SplitConfig.Type.Unspecified -> R.drawable.question_mark
             }
         ),
@@ -504,11 +591,78 @@ private fun SplitConfigItem(
     }
 }
 
+@Composable
+private fun SettingsContent(
+    isSpeculative: Boolean,
+    onSpeculative: (Boolean) -> Unit,
+    dexOptRequiresIdle: Boolean,
+    onDexOptRequiresIdle: (Boolean) -> Unit,
+    dexOptRequiresCharging: Boolean,
+    onDexOptRequiresCharging: (Boolean) -> Unit,
+    isParserIsolated: Boolean,
+    onParserIsolated: (Boolean) -> Unit,
+    installWorkers: Int,
+    onInstallWorkers: (Int) -> Unit,
+    contentPadding: PaddingValues,
+    modifier: Modifier = Modifier
+) = LazyColumn(
+    modifier = modifier,
+    contentPadding = PaddingValues(15.dp) + contentPadding,
+    verticalArrangement = Arrangement.spacedBy(15.dp, Alignment.CenterVertically),
+) {
+    item {
+        SwitchItem(
+            title = stringResource(R.string.settings_speculative),
+            summary = stringResource(R.string.settings_speculative_summary),
+            checked = isSpeculative,
+            onCheckedChange = onSpeculative
+        )
+    }
+
+    item {
+        SwitchItem(
+            title = stringResource(R.string.settings_dexopt_idle),
+            summary = stringResource(R.string.settings_dexopt_idle_summary),
+            checked = dexOptRequiresIdle,
+            onCheckedChange = onDexOptRequiresIdle
+        )
+    }
+
+    item {
+        SwitchItem(
+            title = stringResource(R.string.settings_dexopt_charging),
+            summary = stringResource(R.string.settings_dexopt_charging_summary),
+            checked = dexOptRequiresCharging,
+            onCheckedChange = onDexOptRequiresCharging
+        )
+    }
+
+    item {
+        SwitchItem(
+            title = stringResource(R.string.settings_parser_isolated),
+            summary = stringResource(R.string.settings_parser_isolated_summary),
+            checked = isParserIsolated,
+            onCheckedChange = onParserIsolated
+        )
+    }
+
+    item {
+        SliderItem(
+            title = stringResource(R.string.settings_install_workers),
+            summary = { pluralStringResource(R.plurals.settings_install_workers_summary, it, it) },
+            value = installWorkers,
+            onValueChange = onInstallWorkers,
+            valueRange = 1..InstallScheduler.MAX_WORKERS
+        )
+    }
+}
+
 @Composable
 private fun ZipContent(
     fileNames: List<String>,
     packageInfo: (String) -> IPackageInfo.Apk,
     onZip: (IPackageInfo.Apk, String) -> Unit,
+    onZipAll: () -> Unit,
     contentPadding: PaddingValues,
     modifier: Modifier = Modifier
 ) = LazyColumn(
@@ -516,6 +670,13 @@ private fun ZipContent(
     contentPadding = PaddingValues(15.dp) + contentPadding,
     verticalArrangement = Arrangement.spacedBy(15.dp, Alignment.CenterVertically),
 ) {
+    if (fileNames.size > 1) item {
+        InstallAllItem(
+            count = fileNames.size,
+            onConfirm = onZipAll
+        )
+    }
+
     items(
         items = fileNames,
         key = { it }
@@ -527,7 +688,46 @@ private fun ZipContent(
         }
         PackageInfoItem(
             packageInfo = packageInfo,
-            onClick = { onZip(packageInfo, fileName) }
+            onClick = { onZip(packageInfo, fileName) },
+            onLongClick = { onZip(packageInfo, fileName) }
         )
     }
+}
+
+@Composable
+private fun InstallAllItem(
+    count: Int,
+    onConfirm: () -> Unit
+) {
+    var isConfirming by remember { mutableStateOf(false) }
+
+    FilledTonalButton(
+        onClick = { isConfirming = true },
+        modifier = Modifier.fillMaxWidth()
+    ) {
+        Text(text = pluralStringResource(R.plurals.install_all, count, count))
+    }
+
+    if (isConfirming) AlertDialog(
+        onDismissRequest = { isConfirming = false },
+        title = { Text(text = pluralStringResource(R.plurals.install_all, count, count)) },
+        text = { Text(text = stringResource(R.string.install_all_summary)) },
+        confirmButton = {
+            TextButton(
+                onClick = {
+                    isConfirming = false
+                    onConfirm()
+                }
+            ) {
+                Text(text = stringResource(R.string.install))
+            }
+        },
+        dismissButton = {
+            TextButton(
+                onClick = { isConfirming = false }
+            ) {
+                Text(text = stringResource(android.R.string.cancel))
+            }
+        }
+    )
 }
\ No newline at end of file
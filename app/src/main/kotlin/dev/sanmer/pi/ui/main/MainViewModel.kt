@@ -1,8 +1,10 @@
 package dev.sanmer.pi.ui.main
 
 import android.content.Context
+import android.content.res.AssetFileDescriptor
 import android.net.Uri
 import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableIntStateOf
 import androidx.compose.runtime.mutableStateListOf
 import androidx.compose.runtime.mutableStateMapOf
 import androidx.compose.runtime.mutableStateOf
@@ -14,37 +16,74 @@ import androidx.lifecycle.viewModelScope
 import dev.sanmer.pi.Const
 import dev.sanmer.pi.Logger
 import dev.sanmer.pi.core.compat.ContextCompat.userId
+import dev.sanmer.pi.core.parser.DeltaPatch
 import dev.sanmer.pi.core.parser.IPackageInfo
+import dev.sanmer.pi.core.parser.PackageEvent
+import dev.sanmer.pi.core.parser.PackageInfoCache
 import dev.sanmer.pi.core.parser.PackageInfoLite
 import dev.sanmer.pi.core.parser.PackageParser
 import dev.sanmer.pi.core.parser.SplitConfig
 import dev.sanmer.pi.model.LoadData
 import dev.sanmer.pi.model.LoadData.Default.loadData
 import dev.sanmer.pi.repository.SuRepository
+import dev.sanmer.pi.service.InstallScheduler
 import dev.sanmer.pi.service.InstallService
+import dev.sanmer.pi.service.ParserService
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.last
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.launch
 
 class MainViewModel(
-    private val suRepository: SuRepository
+    private val suRepository: SuRepository,
+    private val scheduler: InstallScheduler
 ) : ViewModel() {
     val state = suRepository.state
     private val pm by lazy { suRepository.getPackageManager() }
+    private val cache by lazy { PackageInfoCache() }
 
     val uris = mutableStateListOf<Uri>()
     private val packageInfos = mutableStateMapOf<Uri, LoadData<IPackageInfo>>()
     private val fileNames = mutableStateMapOf<Uri, SnapshotStateList<String>>()
+    private val scanning = mutableStateListOf<Uri>()
+    private val compilerFilters = mutableStateMapOf<String, String>()
 
     var content by mutableStateOf<Content>(Content.Main)
+    var isSpeculative by mutableStateOf(InstallService.isSpeculative)
+        private set
+    var dexOptRequiresIdle by mutableStateOf(InstallService.dexOptRequiresIdle)
+        private set
+    var dexOptRequiresCharging by mutableStateOf(InstallService.dexOptRequiresCharging)
+        private set
+    var isParserIsolated by mutableStateOf(ParserService.isEnabled)
+        private set
+    var installWorkers by mutableIntStateOf(InstallScheduler.workers)
+        private set
 
     private val logger = Logger.Android("MainViewModel")
 
+    private val splitConfigComparator = compareBy<SplitConfig> {
+        when (it.type) {
+            SplitConfig.Type.Feature, SplitConfig.Type.AssetPack -> it.name
+            else -> it.configForSplit
+        }
+    }.thenBy {
+        it.type
+    }
+
     init {
         logger.d("init")
         launchSu()
     }
 
+    override fun onCleared() {
+        logger.d("onCleared")
+        InstallService.cancel()
+        uris.forEach(InstallService::releaseSource)
+        ParserService.close()
+    }
+
     private fun IPackageInfo.Apk.addCurrentPackageInfo(context: Context) =
         copy(
             currentPackageInfo = try {
@@ -56,10 +95,32 @@ class MainViewModel(
             }
         )
 
+    private fun DeltaPatch.toApk(context: Context): IPackageInfo.Apk {
+        val current = PackageInfoLite.from(
+            context,
+            pm.getPackageInfo(packageName, 0, context.userId)
+        )
+        require(current.longVersionCode == baseVersionCode) {
+            "Expect $packageName $baseVersionCode, but ${current.longVersionCode}"
+        }
+
+        return IPackageInfo.Apk(
+            currentPackageInfo = current,
+            packageInfo = current.copy(
+                versionCode = targetVersionCode.toInt(),
+                versionCodeMajor = (targetVersionCode shr 32).toInt(),
+                versionName = targetVersionName
+            ),
+            sizeBytes = targetSize
+        )
+    }
+
     fun packageInfo(uri: Uri) = packageInfos.getOrElse(uri) { LoadData.Pending }
 
     fun fileNames(uri: Uri) = fileNames.getOrElse(uri) { emptyList() }
 
+    fun isScanning(uri: Uri) = scanning.contains(uri)
+
     fun isSplitSelected(uri: Uri, splitConfig: SplitConfig) =
         fileNames[uri]?.contains(splitConfig.fileName) ?: false
 
@@ -73,6 +134,107 @@ class MainViewModel(
         }
     }
 
+    private fun IPackageInfo.Apks.sizeBytes(fileNames: List<String>) =
+        base.sizeBytes + splitConfigs.sumOf {
+            if (fileNames.contains(it.fileName)) {
+                it.sizeBytes
+            } else {
+                0L
+            }
+        }
+
+    private suspend fun loadPackage(
+        context: Context,
+        uri: Uri,
+        fd: AssetFileDescriptor
+    ): IPackageInfo {
+        var base: IPackageInfo.Apk? = null
+        val splitConfigs = mutableListOf<SplitConfig>()
+        val apks = linkedMapOf<String, IPackageInfo.Apk>()
+
+        fun IPackageInfo.Apk.withCurrent(previous: IPackageInfo.Apk?) =
+            previous?.currentPackageInfo?.let { copy(currentPackageInfo = it) }
+                ?: addCurrentPackageInfo(context)
+
+        fun onApk(fileName: String?, apk: IPackageInfo.Apk): IPackageInfo = when (fileName) {
+            null -> apk.withCurrent(base).also { base = it }
+            PackageParser.BASE_APK -> {
+                val value = apk.withCurrent(base).also { base = it }
+                fileNames.getOrPut(uri) { mutableStateListOf() }.addIfAbsent(fileName)
+                IPackageInfo.Apks(value, splitConfigs.sortedWith(splitConfigComparator))
+            }
+
+            else -> {
+                apks[fileName] = apk.withCurrent(apks[fileName])
+                fileNames.getOrPut(uri) { mutableStateListOf() }.addIfAbsent(fileName)
+                IPackageInfo.Zip(apks.toMap())
+            }
+        }
+
+        scanning.add(uri)
+        val loaded = ParserService.loadPackageAsFlow(fd) { timing ->
+            logger.d("loadPackage: $uri, $timing, speedup = ${timing.speedup}")
+        }.onEach { event ->
+            val packageInfo = when (event) {
+                is PackageEvent.Manifest -> onApk(event.fileName, event.apk)
+                is PackageEvent.Resolved -> onApk(event.fileName, event.apk)
+                is PackageEvent.Split -> {
+                    splitConfigs.add(event.splitConfig)
+                    if (event.splitConfig.isRecommended) {
+                        fileNames.getOrPut(uri) { mutableStateListOf() }
+                            .addIfAbsent(event.splitConfig.fileName)
+                    }
+                    base?.let {
+                        IPackageInfo.Apks(it, splitConfigs.sortedWith(splitConfigComparator))
+                    }
+                }
+
+                is PackageEvent.Loaded -> null
+            }
+            if (packageInfo != null) packageInfos[uri] = LoadData.Success(packageInfo)
+        }.last()
+
+        return (loaded as PackageEvent.Loaded).packageInfo
+    }
+
+    fun setSpeculative(value: Boolean) {
+        isSpeculative = value
+        InstallService.isSpeculative = value
+        if (!value) InstallService.cancel()
+    }
+
+    fun setDexOptRequiresIdle(value: Boolean) {
+        dexOptRequiresIdle = value
+        InstallService.dexOptRequiresIdle = value
+    }
+
+    fun setDexOptRequiresCharging(value: Boolean) {
+        dexOptRequiresCharging = value
+        InstallService.dexOptRequiresCharging = value
+    }
+
+    fun setParserIsolated(value: Boolean) {
+        isParserIsolated = value
+        ParserService.isEnabled = value
+        if (!value) ParserService.close()
+    }
+
+    fun setInstallWorkers(value: Int) {
+        installWorkers = value
+        InstallScheduler.workers = value
+        viewModelScope.launch { scheduler.setWorkers(value) }
+    }
+
+    fun compilerFilter(packageName: String) =
+        compilerFilters[packageName] ?: InstallService.getCompilerFilter(packageName)
+
+    fun nextCompilerFilter(packageName: String) {
+        val values = InstallService.compilerFilters
+        val value = values[(values.indexOf(compilerFilter(packageName)) + 1) % values.size]
+        compilerFilters[packageName] = value
+        InstallService.setCompilerFilter(packageName, value)
+    }
+
     fun launchSu() {
         viewModelScope.launch {
             suRepository.launch()
@@ -83,38 +245,56 @@ class MainViewModel(
         viewModelScope.launch(Dispatchers.IO) {
             if (uris.contains(uri)) return@launch
             uris.add(uri)
+            InstallService.retainSource(uri)
             packageInfos[uri] = LoadData.Loading
             packageInfos[uri] = loadData {
-                val cr = context.contentResolver
-                val fd = cr.openAssetFileDescriptor(uri, "r")
+                val fd = InstallService.openSource(uri)
                 if (fd == null) {
                     uris.remove(uri)
+                    InstallService.releaseSource(uri)
                     packageInfos.remove(uri)
                     return@launch
                 }
 
                 state.first { it.isSuccess }
-                when (val packageInfo = fd.use(PackageParser::loadPackage)) {
-                    is IPackageInfo.Apk -> packageInfo.addCurrentPackageInfo(context)
+                val patch = DeltaPatch.read(fd)
+                if (patch != null) {
+                    fd.close()
+                    return@loadData patch.toApk(context)
+                }
+
+                val packageInfo = fd.use {
+                    cache.getOrPut(it) { loadPackage(context, uri, it) }
+                }
+
+                when (packageInfo) {
+                    is IPackageInfo.Apk -> packageInfo.addCurrentPackageInfo(context).also {
+                        InstallService.prepare(
+                            uri = uri,
+                            fileNames = emptyList(),
+                            sizeBytes = it.sizeBytes,
+                            packageInfo = it.packageInfo,
+                            installerPackageName = Const.SHELL
+                        )
+                    }
 
                     is IPackageInfo.Apks -> {
-                        fileNames[uri] = packageInfo.splitConfigs
+                        if (!fileNames.contains(uri)) fileNames[uri] = packageInfo.splitConfigs
                             .mapNotNull { if (it.isRecommended) it.fileName else null }
                             .toMutableStateList()
                             .apply { add(PackageParser.BASE_APK) }
 
+                        InstallService.prepare(
+                            uri = uri,
+                            fileNames = fileNames.getValue(uri).toList(),
+                            sizeBytes = packageInfo.sizeBytes(fileNames.getValue(uri)),
+                            packageInfo = packageInfo.base.packageInfo,
+                            installerPackageName = Const.PLAY_STORE
+                        )
+
                         packageInfo.copy(
                             base = packageInfo.base.addCurrentPackageInfo(context),
-                            splitConfigs = packageInfo.splitConfigs.sortedWith(
-                                compareBy<SplitConfig> {
-                                    when (it.type) {
-                                        SplitConfig.Type.Feature -> it.name
-                                        else -> it.configForSplit
-                                    }
-                                }.thenBy {
-                                    it.type
-                                }
-                            )
+                            splitConfigs = packageInfo.splitConfigs.sortedWith(splitConfigComparator)
                         )
                     }
 
@@ -132,10 +312,12 @@ class MainViewModel(
             }.onFailure {
                 logger.e(it)
             }
+            scanning.remove(uri)
         }
     }
 
     fun install(context: Context, uri: Uri, apk: IPackageInfo.Apk) {
+        if (isScanning(uri)) return
         InstallService.start(
             context = context,
             uri = uri,
@@ -145,23 +327,18 @@ class MainViewModel(
             installerPackageName = Const.SHELL
         )
         uris.remove(uri)
+        InstallService.releaseSource(uri)
         packageInfos.remove(uri)
     }
 
     fun install(context: Context, uri: Uri, apks: IPackageInfo.Apks) {
+        if (isScanning(uri)) return
         val filenames = fileNames.getValue(uri)
-        val sizeBytes = apks.splitConfigs.sumOf {
-            if (filenames.contains(it.fileName)) {
-                it.sizeBytes
-            } else {
-                0L
-            }
-        }
         InstallService.start(
             context = context,
             uri = uri,
             fileNames = filenames,
-            sizeBytes = apks.base.sizeBytes + sizeBytes,
+            sizeBytes = apks.sizeBytes(filenames),
             packageInfo = apks.base.packageInfo,
             installerPackageName = Const.PLAY_STORE
         )
@@ -169,18 +346,21 @@ class MainViewModel(
             content = Content.Main
         }
         uris.remove(uri)
+        InstallService.releaseSource(uri)
         packageInfos.remove(uri)
         fileNames.remove(uri)
     }
 
     fun install(context: Context, uri: Uri, apk: IPackageInfo.Apk, fileName: String) {
+        if (isScanning(uri)) return
         InstallService.start(
             context = context,
             uri = uri,
             fileNames = listOf(fileName),
             sizeBytes = apk.sizeBytes,
             packageInfo = apk.packageInfo,
-            installerPackageName = Const.SHELL
+            installerPackageName = Const.SHELL,
+            priority = InstallScheduler.Priority.Background
         )
         val filenames = fileNames.getValue(uri)
         filenames.remove(fileName)
@@ -189,14 +369,44 @@ class MainViewModel(
                 content = Content.Main
             }
             uris.remove(uri)
+            InstallService.releaseSource(uri)
             packageInfos.remove(uri)
             fileNames.remove(uri)
         }
     }
 
+    fun install(context: Context, uri: Uri, zip: Map<String, IPackageInfo.Apk>) {
+        if (isScanning(uri)) return
+        val filenames = fileNames.getValue(uri)
+        val apks = filenames.associateWith(zip::getValue)
+        InstallService.start(
+            context = context,
+            uri = uri,
+            fileNames = filenames.toList(),
+            sizeBytes = apks.values.sumOf { it.sizeBytes },
+            packageInfo = apks.values.first().packageInfo,
+            installerPackageName = Const.SHELL,
+            priority = InstallScheduler.Priority.Background,
+            packageInfos = apks.mapValues { it.value.packageInfo }
+        )
+        if (content is Content.Zip) {
+            content = Content.Main
+        }
+        uris.remove(uri)
+        InstallService.releaseSource(uri)
+        packageInfos.remove(uri)
+        fileNames.remove(uri)
+    }
+
+    private fun SnapshotStateList<String>.addIfAbsent(fileName: String) {
+        if (!contains(fileName)) add(fileName)
+    }
+
     sealed interface Content {
         data object Main : Content
 
+        data object Settings : Content
+
         data class Apks(
             val uri: Uri,
             val packageInfo: IPackageInfo.Apks
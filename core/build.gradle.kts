@@ -20,4 +20,8 @@ dependencies {
     implementation(libs.apache.commons.compress)
     implementation(libs.appiconloader.iconloaderlib)
     implementation(libs.kotlinx.coroutines.android)
+    implementation(libs.xz)
+    implementation(libs.zstd.jni) { artifact { type = "aar" } }
+
+    testImplementation(libs.junit)
 }
\ No newline at end of file
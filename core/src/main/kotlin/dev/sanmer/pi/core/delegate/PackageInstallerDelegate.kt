@@ -1,6 +1,7 @@
 package dev.sanmer.pi.core.delegate
 
 import android.annotation.SuppressLint
+import android.content.pm.Checksum
 import android.content.pm.IPackageInstaller
 import android.content.pm.IPackageInstallerCallback
 import android.content.pm.IPackageInstallerSession
@@ -12,16 +13,47 @@ import android.content.pm.PackageManagerHidden
 import android.content.pm.VersionedPackage
 import android.content.res.AssetFileDescriptor
 import android.os.IBinder
+import android.os.ParcelFileDescriptor
 import android.os.ServiceManager
+import android.os.SystemProperties
+import android.system.Os
+import android.system.OsConstants
+import android.util.Log
 import androidx.annotation.RequiresApi
 import dev.rikka.tools.refine.Refine
 import dev.sanmer.pi.core.compat.BuildCompat
 import dev.sanmer.pi.core.compat.IntentReceiverCompat
+import dev.sanmer.pi.core.ktx.CopyPipeline
+import dev.sanmer.pi.core.ktx.DexMetadata
+import dev.sanmer.pi.core.ktx.FileChannelSlice
+import dev.sanmer.pi.core.ktx.OuterCompression
+import dev.sanmer.pi.core.ktx.ZipIndex
+import dev.sanmer.pi.core.ktx.archive
+import dev.sanmer.pi.core.ktx.lengthOf
+import dev.sanmer.pi.core.ktx.openChannel
+import dev.sanmer.pi.core.parser.ApkDigest
+import dev.sanmer.pi.core.parser.ApkDigestSink
+import dev.sanmer.pi.core.parser.ApkStreamDigest
+import dev.sanmer.pi.core.parser.DeltaPatch
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.withContext
-import org.apache.commons.compress.archivers.zip.ZipFile
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
 import java.io.InputStream
 import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.SeekableByteChannel
+import java.security.MessageDigest
 
 class PackageInstallerDelegate(
     private val proxy: IBinder.() -> IBinder = { this }
@@ -171,63 +203,518 @@ class PackageInstallerDelegate(
     }
 
     companion object Default {
+        private const val TAG = "PackageInstallerDelegate"
+        private const val CHECKPOINT_BYTES = 32L * 1024 * 1024
+
         @SuppressLint("RequestInstallPackagesPolicy")
         suspend fun PackageInstaller.Session.commit() = IntentReceiverCompat.onDelegate { sender ->
             commit(sender)
         }
 
-        private inline fun InputStream.copyTo(
+        var copyPipeline = CopyPipeline()
+
+        private suspend fun ReadableByteChannel.copyTo(
             out: OutputStream,
-            bufferSize: Int = DEFAULT_BUFFER_SIZE,
+            offset: Long = 0,
+            digest: ApkDigestSink? = null,
+            onCheckpoint: (Long) -> Unit = {},
             onProgress: (Long) -> Unit
         ): Long {
-            var bytesCopied: Long = 0
-            val buffer = ByteArray(bufferSize)
-            var bytes = read(buffer)
-            while (bytes >= 0) {
-                out.write(buffer, 0, bytes)
-                bytesCopied += bytes
+            var bytesCopied: Long = offset
+            var lastCheckpoint = offset
+            val output = (out as? FileOutputStream)?.channel ?: Channels.newChannel(out)
+            copyPipeline.copy(this, output) { buffer ->
+                bytesCopied += buffer.remaining()
+                digest?.update(buffer)
                 onProgress(bytesCopied)
-                bytes = read(buffer)
+                if (bytesCopied - lastCheckpoint >= CHECKPOINT_BYTES) {
+                    onCheckpoint(bytesCopied)
+                    lastCheckpoint = bytesCopied
+                }
             }
             return bytesCopied
         }
 
+        private fun InputStream.skipFully(bytes: Long) {
+            var remaining = bytes
+            while (remaining > 0) {
+                val skipped = skip(remaining)
+                if (skipped > 0) {
+                    remaining -= skipped
+                } else {
+                    if (read() < 0) throw EOFException("Expect $remaining more bytes")
+                    remaining--
+                }
+            }
+        }
+
+        fun PackageInstaller.Session.write(
+            name: String,
+            offsetBytes: Long,
+            lengthBytes: Long,
+            fd: ParcelFileDescriptor
+        ) = Refine.unsafeCast<PackageInstallerHidden.SessionHidden>(this)
+            .write(name, offsetBytes, lengthBytes, fd)
+
+        private suspend fun PackageInstaller.Session.transfer(
+            name: String,
+            fd: ParcelFileDescriptor,
+            offset: Long,
+            length: Long,
+            offsetBytes: Long = 0
+        ) = try {
+            require(length >= 0) { "Expect length" }
+            ParcelFileDescriptor.dup(fd.fileDescriptor).use { dup ->
+                Os.lseek(dup.fileDescriptor, offset + offsetBytes, OsConstants.SEEK_SET)
+                write(name, offsetBytes, length - offsetBytes, dup)
+            }
+            true
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            currentCoroutineContext().ensureActive()
+            Log.w(TAG, "Fallback to copy $name: ${e.message}")
+            false
+        }
+
+        /**
+         * Hands a signed APK to the session as [transfer] does, while [source] is read for its
+         * digest in parallel through positional reads of the same file, so verifying it does
+         * not cost the zero-copy write. A mismatch abandons the session.
+         */
+        private suspend fun PackageInstaller.Session.transferVerified(
+            name: String,
+            fd: ParcelFileDescriptor,
+            offset: Long,
+            length: Long,
+            offsetBytes: Long,
+            layout: ApkDigest.Layout,
+            source: SeekableByteChannel
+        ) = coroutineScope {
+            val digest = async(Dispatchers.IO) {
+                ApkDigest(layout).also { source.position(0).digestTo(it) }
+            }
+            if (!transfer(name, fd, offset, length, offsetBytes)) {
+                digest.cancelAndJoin()
+                return@coroutineScope false
+            }
+            submitDigest(name, digest.await().finish())
+            true
+        }
+
+        private suspend fun ReadableByteChannel.digestTo(digest: ApkDigestSink) {
+            val buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE)
+            while (true) {
+                currentCoroutineContext().ensureActive()
+                buffer.clear()
+                if (read(buffer) < 0) break
+                buffer.flip()
+                digest.update(buffer)
+            }
+        }
+
+        private suspend fun InputStream.digestTo(digest: ApkDigestSink, length: Long = Long.MAX_VALUE) {
+            val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+            var remaining = length
+            while (remaining > 0) {
+                currentCoroutineContext().ensureActive()
+                val size = read(buffer, 0, minOf(buffer.size.toLong(), remaining).toInt())
+                if (size < 0) {
+                    if (length == Long.MAX_VALUE) break
+                    throw EOFException("Expect $remaining more bytes")
+                }
+                digest.update(buffer, 0, size)
+                remaining -= size
+            }
+        }
+
+        /**
+         * Feeds the first [length] bytes already committed to [name] into [digest], so a
+         * resumed write is verified over the whole file and not just the part it copies.
+         */
+        private suspend fun PackageInstaller.Session.digestCommitted(
+            name: String,
+            length: Long,
+            digest: ApkDigestSink
+        ) {
+            if (length <= 0) return
+            openRead(name).use { it.digestTo(digest, length) }
+        }
+
+        /**
+         * Verifies what was committed to [name] by reading it again, for a streamed APK whose
+         * signing block [ApkStreamDigest] could not resolve on its own.
+         */
+        private suspend fun PackageInstaller.Session.verifyCommitted(
+            name: String,
+            sha256: ByteArray? = null
+        ) {
+            val digest = openRead(name).use { input ->
+                val channel = checkNotNull((input as? FileInputStream)?.channel) {
+                    "Expect seekable $name"
+                }
+                ApkDigest(ApkDigest.layoutOf(channel)).also {
+                    channel.position(0)
+                    input.digestTo(it)
+                }
+            }
+            submitDigest(name, digest.finish(), sha256)
+        }
+
+        private suspend fun PackageInstaller.Session.submitDigest(
+            name: String,
+            digest: ApkStreamDigest,
+            sha256: ByteArray? = null
+        ) {
+            val result = digest.finish()
+            if (result != null) {
+                submitDigest(name, result, sha256)
+            } else {
+                verifyCommitted(name, sha256)
+            }
+        }
+
+        private fun PackageInstaller.Session.submitDigest(
+            name: String,
+            result: ApkDigest.Result,
+            sha256: ByteArray? = null
+        ) {
+            val isVerified = result.isVerified != false
+            val isMatched = sha256 == null || MessageDigest.isEqual(result.sha256, sha256)
+            if (!isVerified || !isMatched) {
+                // A child of a multi-package session can only be abandoned with its parent,
+                // which the caller does once the check below fails.
+                runCatching { abandon() }.onFailure {
+                    Log.w(TAG, "Failed to abandon $name: ${it.message}")
+                }
+            }
+            check(isVerified) { "Expect $name to match its signed digest" }
+            check(isMatched) { "Expect $name to match its SHA-256" }
+            if (!BuildCompat.atLeastS) return
+
+            val checksums = buildList {
+                add(Checksum(Checksum.TYPE_WHOLE_SHA256, result.sha256))
+                when (result.algorithm) {
+                    ApkDigest.SHA_256 -> Checksum.TYPE_PARTIAL_MERKLE_ROOT_1M_SHA256
+                    ApkDigest.SHA_512 -> Checksum.TYPE_PARTIAL_MERKLE_ROOT_1M_SHA512
+                    else -> null
+                }?.let { add(Checksum(it, checkNotNull(result.contentDigest))) }
+            }
+            runCatching {
+                @Suppress("DEPRECATION")
+                setChecksums(name, checksums, null)
+            }.onFailure {
+                Log.w(TAG, "Failed to set checksums for $name: ${it.message}")
+            }
+        }
+
+        private fun PackageInstaller.Session.writeDexMetadata(
+            name: String,
+            apk: () -> ZipIndex
+        ) = runCatching {
+            if (SystemProperties.getBoolean("pm.dexopt.dm.require_fsverity", false)) {
+                return@runCatching false
+            }
+            val bytes = DexMetadata.fromApk(apk(), name) ?: return@runCatching false
+            openWrite(DexMetadata.getDexMetadataName(name), 0, bytes.size.toLong()).use { output ->
+                output.write(bytes)
+                fsync(output)
+            }
+            true
+        }.onFailure {
+            Log.w(TAG, "Failed to write dex metadata for $name: ${it.message}")
+        }.getOrDefault(false)
+
         suspend fun PackageInstaller.Session.writeFd(
             name: String,
             fd: AssetFileDescriptor,
+            offset: Long = 0,
+            onCheckpoint: (Long) -> Unit = {},
+            onProgress: (Long) -> Unit = {}
+        ) = withContext(Dispatchers.IO) {
+            fd.openChannel().use { channel ->
+                val length = fd.lengthOf(channel)
+                val slice = FileChannelSlice(channel, fd.startOffset, length)
+                val written = writeDexMetadata(name) { ZipIndex(channel, fd.startOffset, length) }
+                val layout = ApkDigest.layoutOf(slice)
+
+                if (offset < length && if (layout != null) {
+                        transferVerified(
+                            name = name,
+                            fd = fd.parcelFileDescriptor,
+                            offset = fd.startOffset,
+                            length = length,
+                            offsetBytes = offset,
+                            layout = layout,
+                            source = slice
+                        )
+                    } else {
+                        transfer(name, fd.parcelFileDescriptor, fd.startOffset, length, offset)
+                    }
+                ) {
+                    onCheckpoint(length)
+                    onProgress(length)
+                    return@withContext written
+                }
+
+                val digest = if (layout != null || offset == 0L) ApkDigest(layout) else null
+                digest?.let { digestCommitted(name, offset, it) }
+                if (offset < length) {
+                    FileChannelSlice(channel, fd.startOffset + offset, length - offset).use { input ->
+                        openWrite(name, offset, length - offset).use { output ->
+                            input.copyTo(
+                                out = output,
+                                offset = offset,
+                                digest = digest,
+                                onCheckpoint = {
+                                    fsync(output)
+                                    onCheckpoint(it)
+                                },
+                                onProgress = onProgress
+                            )
+                            fsync(output)
+                        }
+                    }
+                }
+                digest?.let { submitDigest(name, it.finish()) }
+                onCheckpoint(length)
+                onProgress(length)
+
+                written
+            }
+        }
+
+        suspend fun PackageInstaller.Session.writeDelta(
+            name: String,
+            fd: AssetFileDescriptor,
+            base: File,
             onProgress: (Long) -> Unit = {}
         ) = withContext(Dispatchers.IO) {
-            fd.createInputStream().use { input ->
-                openWrite(name, 0, fd.length).use { output ->
-                    input.copyTo(output) { onProgress(it) }
+            fd.openChannel().use { channel ->
+                val length = fd.lengthOf(channel)
+                val patch = checkNotNull(DeltaPatch.read(channel, fd.startOffset, length)) {
+                    "Expect delta patch"
+                }
+
+                FileInputStream(base).channel.use { source ->
+                    check(patch.matchesBase(source)) { "Expect $base to match the patch base" }
+
+                    val digest = ApkStreamDigest()
+                    openWrite(name, 0, patch.targetSize).use { output ->
+                        var written = 0L
+                        patch.apply(channel, source) { bytes, size ->
+                            ensureActive()
+                            output.write(bytes, 0, size)
+                            digest.update(bytes, 0, size)
+                            written += size
+                            onProgress(written)
+                        }
+                        fsync(output)
+                    }
+                    submitDigest(name, digest, patch.targetSha256)
+                }
+            }
+
+            false
+        }
+
+        private suspend fun PackageInstaller.Session.writeStream(
+            name: String,
+            input: InputStream,
+            length: Long,
+            onProgress: (Long) -> Unit
+        ): Long {
+            val digest = if (DexMetadata.isDexMetadata(name)) null else ApkStreamDigest()
+            return openWrite(name, 0, length).use { output ->
+                Channels.newChannel(input).copyTo(
+                    out = output,
+                    digest = digest,
+                    onProgress = onProgress
+                ).also {
                     fsync(output)
                 }
+            }.also {
+                digest?.let { submitDigest(name, it) }
+            }
+        }
+
+        suspend fun PackageInstaller.Session.writeCompressed(
+            name: String,
+            fd: AssetFileDescriptor,
+            compression: OuterCompression,
+            onProgress: (Long) -> Unit = {}
+        ) = withContext(Dispatchers.IO) {
+            compression.decode(fd, windowBytes = copyPipeline.windowBytes).use { input ->
+                writeStream(name, input, -1, onProgress)
+            }
+            false
+        }
+
+        suspend fun PackageInstaller.Session.writeCompressed(
+            names: List<String>,
+            fd: AssetFileDescriptor,
+            compression: OuterCompression,
+            onProgress: (Long) -> Unit = {}
+        ) = writeCompressed(names.associateWith { this }, fd, compression, onProgress).isNotEmpty()
+
+        suspend fun writeCompressed(
+            sessions: Map<String, PackageInstaller.Session>,
+            fd: AssetFileDescriptor,
+            compression: OuterCompression,
+            onProgress: (Long) -> Unit = {}
+        ) = withContext(Dispatchers.IO) {
+            compression.decode(fd, windowBytes = copyPipeline.windowBytes).archive().use { zip ->
+                var copied = 0L
+                val written = mutableSetOf<String>()
+                while (true) {
+                    ensureActive()
+                    val entry = zip.nextEntry ?: break
+                    val isDexMetadata = DexMetadata.isDexMetadata(entry.name)
+                    val apkName = if (isDexMetadata) DexMetadata.getApkName(entry.name) else entry.name
+                    val session = sessions[apkName] ?: continue
+
+                    copied += session.writeStream(
+                        name = entry.name,
+                        input = zip,
+                        length = entry.size,
+                        onProgress = { onProgress(copied + it) }
+                    )
+                    if (isDexMetadata) written.add(apkName)
+                }
+                written.toSet()
             }
         }
 
         suspend fun PackageInstaller.Session.writeZip(
             names: List<String>,
             fd: AssetFileDescriptor,
+            offsets: Map<String, Long> = emptyMap(),
+            onCheckpoint: (String, Long) -> Unit = { _, _ -> },
+            onProgress: (Long) -> Unit = {}
+        ) = writeZip(names.associateWith { this }, fd, offsets, onCheckpoint, onProgress).isNotEmpty()
+
+        suspend fun writeZip(
+            sessions: Map<String, PackageInstaller.Session>,
+            fd: AssetFileDescriptor,
+            offsets: Map<String, Long> = emptyMap(),
+            onCheckpoint: (String, Long) -> Unit = { _, _ -> },
             onProgress: (Long) -> Unit = {}
         ) = withContext(Dispatchers.IO) {
-            ZipFile.builder()
-                .setIgnoreLocalFileHeader(true)
-                .setSeekableByteChannel(fd.createInputStream().channel)
-                .get()
-                .use { zip ->
-                    var copied = 0L
-                    zip.entries.iterator().forEach { entry ->
-                        if (entry.name in names) {
-                            zip.getInputStream(entry).use { input ->
-                                openWrite(entry.name, 0, entry.size).use { output ->
-                                    copied += input.copyTo(output) { onProgress(copied + it) }
-                                    fsync(output)
-                                }
-                            }
-                        }
+            ZipIndex.open(fd).use { zip -> writeZip(zip, sessions, fd, offsets, onCheckpoint, onProgress) }
+        }
+
+        private suspend fun writeZip(
+            zip: ZipIndex,
+            sessions: Map<String, PackageInstaller.Session>,
+            fd: AssetFileDescriptor,
+            offsets: Map<String, Long>,
+            onCheckpoint: (String, Long) -> Unit,
+            onProgress: (Long) -> Unit
+        ): Set<String> {
+            val entries = (0 until zip.size).filter { zip.name(it) in sessions }
+            val dexMetadata = (0 until zip.size).filter {
+                val name = zip.name(it)
+                DexMetadata.isDexMetadata(name) && DexMetadata.getApkName(name) in sessions
+            }
+
+            var copied = 0L
+            (entries + dexMetadata).forEach { index ->
+                val name = zip.name(index)
+                val session = sessions[name] ?: sessions.getValue(DexMetadata.getApkName(name))
+                copied += zip.writeEntry(
+                    session = session,
+                    index = index,
+                    fd = fd,
+                    offset = offsets[name] ?: 0,
+                    onCheckpoint = { onCheckpoint(name, it) },
+                    onProgress = { onProgress(copied + it) }
+                )
+            }
+
+            val written = dexMetadata.mapTo(mutableSetOf()) { DexMetadata.getApkName(zip.name(it)) }
+            entries.forEach { index ->
+                val name = zip.name(index)
+                if (name in written || !zip.isStored(index)) return@forEach
+                if (sessions.getValue(name).writeDexMetadata(name) { zip.nested(index) }) written.add(name)
+            }
+            return written.toSet()
+        }
+
+        private suspend fun ZipIndex.writeEntry(
+            session: PackageInstaller.Session,
+            index: Int,
+            fd: AssetFileDescriptor,
+            offset: Long,
+            onCheckpoint: (Long) -> Unit,
+            onProgress: (Long) -> Unit
+        ): Long {
+            val name = name(index)
+            val size = size(index)
+            val isApk = !DexMetadata.isDexMetadata(name)
+            val slice = if (isStored(index)) slice(index) else null
+            val layout = if (isApk && slice != null) ApkDigest.layoutOf(slice) else null
+
+            if (slice != null && offset < size && if (layout != null) {
+                    session.transferVerified(
+                        name = name,
+                        fd = fd.parcelFileDescriptor,
+                        offset = fd.startOffset + dataOffset(index),
+                        length = size,
+                        offsetBytes = offset,
+                        layout = layout,
+                        source = slice
+                    )
+                } else {
+                    session.transfer(
+                        name = name,
+                        fd = fd.parcelFileDescriptor,
+                        offset = fd.startOffset + dataOffset(index),
+                        length = size,
+                        offsetBytes = offset
+                    )
+                }
+            ) {
+                onCheckpoint(size)
+                onProgress(size)
+                return size
+            }
+
+            val digest = when {
+                layout != null -> ApkDigest(layout)
+                isApk && slice != null && offset == 0L -> ApkDigest()
+                isApk && slice == null -> ApkStreamDigest()
+                else -> null
+            }
+            digest?.let { session.digestCommitted(name, offset, it) }
+            if (offset < size) {
+                val source = slice?.position(offset) ?: Channels.newChannel(
+                    inputStream(index).apply { skipFully(offset) }
+                )
+                source.use { input ->
+                    session.openWrite(name, offset, size - offset).use { output ->
+                        input.copyTo(
+                            out = output,
+                            offset = offset,
+                            digest = digest,
+                            onCheckpoint = {
+                                session.fsync(output)
+                                onCheckpoint(it)
+                            },
+                            onProgress = onProgress
+                        )
+                        session.fsync(output)
                     }
                 }
+            }
+
+            when (digest) {
+                is ApkDigest -> session.submitDigest(name, digest.finish())
+                is ApkStreamDigest -> session.submitDigest(name, digest)
+                else -> Unit
+            }
+            onCheckpoint(size)
+            onProgress(size)
+            return size
         }
     }
-}
\ No newline at end of file
+}
@@ -103,14 +103,22 @@ class PackageManagerDelegate(
         packageManager.clearApplicationProfileData(packageName)
     }
 
-    fun performDexOpt(packageName: String): Boolean {
+    fun performDexOpt(
+        packageName: String,
+        compilerFilter: String = defaultCompilerFilter
+    ): Boolean {
         return packageManager.performDexOptMode(
             packageName,
             SystemProperties.getBoolean("dalvik.vm.usejitprofiles", false),
-            SystemProperties.get("pm.dexopt.install", "speed-profile"),
+            compilerFilter,
             true,
             true,
             null
         )
     }
+
+    companion object Default {
+        val defaultCompilerFilter: String
+            get() = SystemProperties.get("pm.dexopt.install", "speed-profile")
+    }
 }
\ No newline at end of file
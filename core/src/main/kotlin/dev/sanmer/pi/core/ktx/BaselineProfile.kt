@@ -0,0 +1,326 @@
+package dev.sanmer.pi.core.ktx
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.SortedMap
+import java.util.TreeMap
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+
+/**
+ * A baseline profile as AGP packs it into `assets/dexopt/baseline.prof`, in P's format
+ * (version 010), which ART reads up to R.
+ *
+ * From S on ART only reads its own format (version 015), which also records how many type
+ * ids each dex file has. That count is only in `baseline.profm`, so [transcode] needs the
+ * metadata (version 002) to produce a profile for S and later.
+ */
+internal class BaselineProfile private constructor(
+    private val dexFiles: List<DexFile>
+) {
+    private class DexFile(
+        val key: String,
+        val checksum: Int,
+        val numMethodIds: Int,
+        val classes: IntArray,
+        val methods: SortedMap<Int, Int>
+    )
+
+    /** Returns the profile in S's format, keyed for the dex files of [apkName]. */
+    fun transcode(metadata: ByteArray, apkName: String): ByteArray {
+        val numTypeIds = readMetadata(metadata)
+
+        val sections = listOf(
+            SECTION_DEX_FILES to dexFilesSection(apkName, numTypeIds),
+            SECTION_CLASSES to classesSection(),
+            SECTION_METHODS to methodsSection()
+        ).map { (type, contents) ->
+            if (type == SECTION_DEX_FILES) {
+                Section(type, contents, 0)
+            } else {
+                Section(type, deflate(contents), contents.size)
+            }
+        }
+
+        var offset = MAGIC.size + VERSION_S.size + 4 + sections.size * SECTION_INFO_SIZE
+        return Writer().apply {
+            bytes(MAGIC)
+            bytes(VERSION_S)
+            u32(sections.size)
+            sections.forEach {
+                u32(it.type)
+                u32(offset)
+                u32(it.contents.size)
+                u32(it.inflatedSize)
+                offset += it.contents.size
+            }
+            sections.forEach { bytes(it.contents) }
+        }.toByteArray()
+    }
+
+    /** Returns the number of type ids of each dex file, keyed as [dexFiles] are. */
+    private fun readMetadata(metadata: ByteArray): Map<String, Int> {
+        val buffer = ByteBuffer.wrap(metadata).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.expect(MAGIC_METADATA) { "Expect profile metadata magic" }
+        buffer.expect(VERSION_METADATA) { "Expect profile metadata version 002" }
+
+        val count = buffer.u16()
+        require(count == dexFiles.size) {
+            "Expect $count dex files in metadata, but ${dexFiles.size} in profile"
+        }
+        val uncompressedSize = buffer.int
+        val compressedSize = buffer.int
+        val body = buffer.inflate(compressedSize, uncompressedSize)
+
+        val numTypeIds = buildMap {
+            repeat(count) {
+                body.u16()
+                val key = keyOf(body.string(body.u16()))
+                put(key, body.int)
+                val classCount = body.u16()
+                body.position(body.position() + classCount * 2)
+            }
+        }
+        dexFiles.forEach {
+            require(it.key in numTypeIds) { "Expect ${it.key} in profile metadata" }
+        }
+        return numTypeIds
+    }
+
+    private fun dexFilesSection(apkName: String, numTypeIds: Map<String, Int>) = Writer().apply {
+        u16(dexFiles.size)
+        dexFiles.forEach {
+            u32(it.checksum)
+            u32(it.numMethodIds)
+            u32(numTypeIds.getValue(it.key))
+            val key = if (it.key == PRIMARY_DEX) {
+                apkName
+            } else {
+                "$apkName$KEY_SEPARATOR${it.key}"
+            }.toByteArray()
+            u16(key.size)
+            bytes(key)
+        }
+    }.toByteArray()
+
+    private fun classesSection() = Writer().apply {
+        dexFiles.forEachIndexed { index, dexFile ->
+            u16(index)
+            u16(dexFile.classes.size)
+            var last = 0
+            dexFile.classes.forEach {
+                u16(it - last)
+                last = it
+            }
+        }
+    }.toByteArray()
+
+    private fun methodsSection() = Writer().apply {
+        dexFiles.forEachIndexed { index, dexFile ->
+            val flags = dexFile.methods.values.fold(0, Int::or)
+
+            // Only the bitmaps of flags some method has are stored, one after another.
+            val stored = BITMAP_FLAGS.filter { flags and it != 0 }
+            val bitmap = ByteArray((stored.size * dexFile.numMethodIds + 7) / 8)
+            dexFile.methods.forEach { (method, value) ->
+                stored.forEachIndexed { i, flag ->
+                    if (value and flag != 0) bitmap.setBit(i * dexFile.numMethodIds + method)
+                }
+            }
+
+            val hot = Writer()
+            var last = 0
+            dexFile.methods.forEach { (method, value) ->
+                if (value and FLAG_HOT == 0) return@forEach
+                hot.u16(method - last)
+                hot.u16(0)
+                last = method
+            }
+            val methods = hot.toByteArray()
+
+            u16(index)
+            u32(2 + bitmap.size + methods.size)
+            u16(flags)
+            bytes(bitmap)
+            bytes(methods)
+        }
+    }.toByteArray()
+
+    private class Header(
+        val key: String,
+        val classCount: Int,
+        val hotSize: Int,
+        val checksum: Int,
+        val numMethodIds: Int
+    )
+
+    private class Section(val type: Int, val contents: ByteArray, val inflatedSize: Int)
+
+    private class Writer {
+        private val output = ByteArrayOutputStream()
+
+        fun u16(value: Int) {
+            output.write(value)
+            output.write(value ushr 8)
+        }
+
+        fun u32(value: Int) {
+            u16(value and 0xffff)
+            u16(value ushr 16)
+        }
+
+        fun bytes(value: ByteArray) = output.write(value)
+
+        fun toByteArray(): ByteArray = output.toByteArray()
+    }
+
+    companion object Default {
+        private val MAGIC = "pro\u0000".toByteArray()
+        private val MAGIC_METADATA = "prm\u0000".toByteArray()
+        val VERSION_P = "010\u0000".toByteArray()
+        val VERSION_S = "015\u0000".toByteArray()
+        private val VERSION_METADATA = "002\u0000".toByteArray()
+
+        private const val PRIMARY_DEX = "classes.dex"
+        private const val KEY_SEPARATOR = "!"
+
+        private const val SECTION_DEX_FILES = 0
+        private const val SECTION_CLASSES = 2
+        private const val SECTION_METHODS = 3
+        private const val SECTION_INFO_SIZE = 16
+
+        private const val FLAG_HOT = 1
+        private const val FLAG_STARTUP = 1 shl 1
+        private const val FLAG_POST_STARTUP = 1 shl 2
+        private val BITMAP_FLAGS = listOf(FLAG_STARTUP, FLAG_POST_STARTUP)
+
+        private const val INLINE_CACHE_MISSING_TYPES = 6
+        private const val INLINE_CACHE_MEGAMORPHIC = 7
+
+        /** Returns the version of a profile, or `null` if [bytes] is not one. */
+        fun versionOf(bytes: ByteArray): ByteArray? {
+            if (bytes.size < MAGIC.size + VERSION_P.size) return null
+            if (!bytes.copyOfRange(0, MAGIC.size).contentEquals(MAGIC)) return null
+            return bytes.copyOfRange(MAGIC.size, MAGIC.size + VERSION_P.size)
+        }
+
+        /** Reads a profile in P's format. */
+        fun read(bytes: ByteArray): BaselineProfile {
+            val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            buffer.expect(MAGIC) { "Expect profile magic" }
+            buffer.expect(VERSION_P) { "Expect profile version 010" }
+
+            val count = buffer.get().toInt() and 0xff
+            val uncompressedSize = buffer.int
+            val compressedSize = buffer.int
+            val body = buffer.inflate(compressedSize, uncompressedSize)
+
+            val headers = List(count) {
+                val keySize = body.u16()
+                val classCount = body.u16()
+                val hotSize = body.int
+                val checksum = body.int
+                val numMethodIds = body.int
+                Header(keyOf(body.string(keySize)), classCount, hotSize, checksum, numMethodIds)
+            }
+
+            val dexFiles = headers.map { header ->
+                val methods = TreeMap<Int, Int>()
+                val hotEnd = body.position() + header.hotSize
+                var last = 0
+                while (body.position() < hotEnd) {
+                    val method = last + body.u16()
+                    methods[method] = FLAG_HOT
+                    repeat(body.u16()) { body.skipInlineCache() }
+                    last = method
+                }
+                require(body.position() == hotEnd) { "Expect hot methods to end at $hotEnd" }
+
+                var lastClass = 0
+                val classes = IntArray(header.classCount) {
+                    (lastClass + body.u16()).also { lastClass = it }
+                }
+
+                val bitmap = ByteArray((header.numMethodIds * 2 + 7) / 8).also { body.get(it) }
+                for (method in 0 until header.numMethodIds) {
+                    BITMAP_FLAGS.forEachIndexed { i, flag ->
+                        if (bitmap.getBit(i * header.numMethodIds + method)) {
+                            methods[method] = (methods[method] ?: 0) or flag
+                        }
+                    }
+                }
+
+                DexFile(header.key, header.checksum, header.numMethodIds, classes, methods)
+            }
+
+            return BaselineProfile(dexFiles)
+        }
+
+        /** Drops the APK part of a profile key, `base.apk!classes2.dex` becomes `classes2.dex`. */
+        private fun keyOf(value: String): String {
+            val index = value.indexOf('!').takeIf { it >= 0 } ?: value.indexOf(':')
+            return if (index > 0) value.substring(index + 1) else value
+        }
+
+        private inline fun ByteBuffer.expect(value: ByteArray, message: () -> String) {
+            require(remaining() >= value.size) { message() }
+            val bytes = ByteArray(value.size).also { get(it) }
+            require(bytes.contentEquals(value)) { message() }
+        }
+
+        private fun ByteBuffer.u16() = short.toInt() and 0xffff
+
+        private fun ByteBuffer.string(size: Int) = String(ByteArray(size).also { get(it) })
+
+        private fun ByteBuffer.skipInlineCache() {
+            u16()
+            val size = get().toInt() and 0xff
+            if (size == INLINE_CACHE_MISSING_TYPES || size == INLINE_CACHE_MEGAMORPHIC) return
+            repeat(size) {
+                get()
+                repeat(get().toInt() and 0xff) { u16() }
+            }
+        }
+
+        private fun ByteBuffer.inflate(compressedSize: Int, uncompressedSize: Int): ByteBuffer {
+            require(compressedSize in 0..remaining()) { "Expect $compressedSize compressed bytes" }
+            val inflater = Inflater()
+            val output = ByteArray(uncompressedSize)
+            try {
+                inflater.setInput(array(), arrayOffset() + position(), compressedSize)
+                var size = 0
+                while (size < uncompressedSize) {
+                    val n = inflater.inflate(output, size, uncompressedSize - size)
+                    if (n == 0) break
+                    size += n
+                }
+                require(size == uncompressedSize) {
+                    "Expect $uncompressedSize uncompressed bytes, but $size"
+                }
+            } finally {
+                inflater.end()
+            }
+            position(position() + compressedSize)
+            return ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN)
+        }
+
+        private fun deflate(bytes: ByteArray): ByteArray {
+            val output = ByteArrayOutputStream()
+            val deflater = Deflater(Deflater.BEST_SPEED)
+            try {
+                DeflaterOutputStream(output, deflater).use { it.write(bytes) }
+            } finally {
+                deflater.end()
+            }
+            return output.toByteArray()
+        }
+
+        private fun ByteArray.getBit(index: Int) = get(index / 8).toInt() and (1 shl (index % 8)) != 0
+
+        private fun ByteArray.setBit(index: Int) {
+            set(index / 8, (get(index / 8).toInt() or (1 shl (index % 8))).toByte())
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package dev.sanmer.pi.core.ktx
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.SeekableByteChannel
+
+internal class CentralDirectory(
+    val offset: Long,
+    val size: Long,
+    val eocdOffset: Long
+) {
+    companion object Default {
+        private const val EOCD_SIGNATURE = 0x06054b50
+        private const val EOCD_SIZE = 22
+        private const val ZIP64_MAGIC = 0xFFFFFFFFL
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_EOCD_SIGNATURE = 0x06064b50
+        private const val ZIP64_EOCD_SIZE = 56
+
+        fun SeekableByteChannel.readFully(position: Long, size: Int): ByteBuffer {
+            val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+            position(position)
+            while (buffer.hasRemaining()) {
+                if (read(buffer) <= 0) break
+            }
+            buffer.flip()
+            return buffer
+        }
+
+        fun SeekableByteChannel.findCentralDirectory(): CentralDirectory? {
+            val length = size()
+            val tailSize = minOf(length, EOCD_SIZE + 0xFFFFL).toInt()
+            val tailOffset = length - tailSize
+            val tail = readFully(tailOffset, tailSize)
+            var eocd = tail.limit() - EOCD_SIZE
+            while (eocd >= 0 && tail.getInt(eocd) != EOCD_SIGNATURE) eocd--
+            if (eocd < 0) return null
+
+            val cdSize = tail.getInt(eocd + 12).toUInt().toLong()
+            val cdOffset = tail.getInt(eocd + 16).toUInt().toLong()
+            if (cdSize != ZIP64_MAGIC && cdOffset != ZIP64_MAGIC) {
+                return CentralDirectory(cdOffset, cdSize, tailOffset + eocd)
+            }
+
+            val locator = eocd - ZIP64_LOCATOR_SIZE
+            if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) return null
+            val record = readFully(tail.getLong(locator + 8), ZIP64_EOCD_SIZE)
+            if (record.getInt(0) != ZIP64_EOCD_SIGNATURE) return null
+            return CentralDirectory(record.getLong(48), record.getLong(40), tailOffset + eocd)
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dev.sanmer.pi.core.ktx
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+
+class CopyPipeline(
+    val bufferSize: Int = DEFAULT_BUFFER_SIZE,
+    val depth: Int = DEFAULT_DEPTH
+) {
+    private val pool = ConcurrentLinkedQueue<ByteBuffer>()
+    private val copied = AtomicLong()
+    private val readerStall = AtomicLong()
+    private val writerStall = AtomicLong()
+
+    init {
+        require(bufferSize > 0) { "Expect bufferSize > 0, but $bufferSize" }
+        require(depth > 1) { "Expect depth > 1, but $depth" }
+    }
+
+    val windowBytes get() = bufferSize.toLong() * depth
+
+    val stats
+        get() = Stats(
+            bytes = copied.get(),
+            readerStall = readerStall.get().nanoseconds,
+            writerStall = writerStall.get().nanoseconds
+        )
+
+    private inline fun <T> AtomicLong.measure(block: () -> T): T {
+        val start = System.nanoTime()
+        return block().also { addAndGet(System.nanoTime() - start) }
+    }
+
+    suspend fun copy(
+        input: ReadableByteChannel,
+        output: WritableByteChannel,
+        onWritten: (ByteBuffer) -> Unit = {}
+    ): Long = coroutineScope {
+        val free = Channel<ByteBuffer>(depth)
+        val filled = Channel<ByteBuffer>(depth)
+        repeat(depth) {
+            free.trySend(pool.poll() ?: ByteBuffer.allocateDirect(bufferSize))
+        }
+
+        launch(Dispatchers.IO) {
+            try {
+                while (true) {
+                    val buffer = readerStall.measure { free.receive() }
+                    buffer.clear()
+                    if (input.read(buffer) < 0) {
+                        free.send(buffer)
+                        break
+                    }
+                    buffer.flip()
+                    filled.send(buffer)
+                }
+            } finally {
+                filled.close()
+            }
+        }
+
+        var bytes = 0L
+        while (true) {
+            val buffer = writerStall.measure { filled.receiveCatching() }.getOrNull() ?: break
+            val size = buffer.remaining()
+            while (buffer.hasRemaining()) output.write(buffer)
+            buffer.rewind()
+            onWritten(buffer)
+            bytes += size
+            copied.addAndGet(size.toLong())
+            free.send(buffer)
+        }
+
+        repeat(depth) {
+            val buffer = free.tryReceive().getOrNull() ?: return@repeat
+            if (pool.size < MAX_POOLED * depth) pool.offer(buffer)
+        }
+        bytes
+    }
+
+    data class Stats(
+        val bytes: Long,
+        val readerStall: Duration,
+        val writerStall: Duration
+    )
+
+    companion object Default {
+        const val DEFAULT_BUFFER_SIZE = 256 * 1024
+        const val DEFAULT_DEPTH = 4
+        private const val MAX_POOLED = 4
+    }
+}
@@ -0,0 +1,74 @@
+package dev.sanmer.pi.core.ktx
+
+import android.os.Build
+import android.util.Log
+import java.io.ByteArrayOutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+internal object DexMetadata {
+    private const val APK_SUFFIX = ".apk"
+    private const val DM_SUFFIX = ".dm"
+
+    private const val TAG = "DexMetadata"
+    private const val BASELINE_PROF = "assets/dexopt/baseline.prof"
+    private const val BASELINE_PROFM = "assets/dexopt/baseline.profm"
+    private const val PRIMARY_PROF = "primary.prof"
+
+    private const val MAX_PROFILE_SIZE = 16L * 1024 * 1024
+
+    private val isAtLeastS get() = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+
+    fun isDexMetadata(name: String) = name.endsWith(DM_SUFFIX)
+
+    fun getDexMetadataName(apkName: String) =
+        if (apkName.endsWith(APK_SUFFIX)) {
+            apkName.removeSuffix(APK_SUFFIX) + DM_SUFFIX
+        } else {
+            apkName + DM_SUFFIX
+        }
+
+    fun getApkName(dmName: String) = dmName.removeSuffix(DM_SUFFIX) + APK_SUFFIX
+
+    private fun ZipIndex.readEntry(name: String): ByteArray? {
+        val index = find(name) ?: return null
+        check(size(index) <= MAX_PROFILE_SIZE) { "Expect $name within $MAX_PROFILE_SIZE bytes" }
+        return inputStream(index).use { it.readBytes() }
+    }
+
+    /**
+     * Packs the APK's baseline profile into a dex metadata file for [apkName], or returns
+     * `null` when it has none this device's ART can read. Baseline profiles are built in
+     * P's format, which Q and R read as is; on S and later it is transcoded to S's format
+     * with the help of `baseline.profm`, as profileinstaller does on the device.
+     */
+    fun fromApk(apk: ZipIndex, apkName: String): ByteArray? {
+        val prof = apk.readEntry(BASELINE_PROF) ?: return null
+        val version = BaselineProfile.versionOf(prof) ?: return null
+
+        val primary = when {
+            version.contentEquals(BaselineProfile.VERSION_P) && !isAtLeastS -> prof
+            version.contentEquals(BaselineProfile.VERSION_S) && isAtLeastS -> prof
+            version.contentEquals(BaselineProfile.VERSION_P) -> {
+                val profm = apk.readEntry(BASELINE_PROFM) ?: run {
+                    Log.d(TAG, "Skip profile without metadata")
+                    return null
+                }
+                BaselineProfile.read(prof).transcode(profm, apkName)
+            }
+
+            else -> {
+                Log.d(TAG, "Skip profile version ${version.decodeToString().trimEnd('\u0000')}")
+                return null
+            }
+        }
+
+        val output = ByteArrayOutputStream()
+        ZipOutputStream(output).use { dm ->
+            dm.putNextEntry(ZipEntry(PRIMARY_PROF))
+            dm.write(primary)
+            dm.closeEntry()
+        }
+        return output.toByteArray()
+    }
+}
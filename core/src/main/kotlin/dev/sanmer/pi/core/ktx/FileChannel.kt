@@ -0,0 +1,61 @@
+package dev.sanmer.pi.core.ktx
+
+import android.content.res.AssetFileDescriptor
+import android.os.ParcelFileDescriptor
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.FileChannel
+import java.nio.channels.NonWritableChannelException
+import java.nio.channels.SeekableByteChannel
+
+/**
+ * Opens a channel over a duplicate of the descriptor, so closing the channel leaves the
+ * [AssetFileDescriptor] it came from open; the caller owns the channel and must close it.
+ */
+internal fun AssetFileDescriptor.openChannel(): FileChannel =
+    ParcelFileDescriptor.AutoCloseInputStream(parcelFileDescriptor.dup()).channel
+
+internal fun AssetFileDescriptor.lengthOf(channel: FileChannel) =
+    if (length >= 0) length else channel.size() - startOffset
+
+internal class FileChannelSlice(
+    private val original: FileChannel,
+    private val offset: Long,
+    private val length: Long
+) : SeekableByteChannel {
+    private var current = 0L
+    private var closed = false
+
+    override fun read(dst: ByteBuffer): Int {
+        if (closed) throw ClosedChannelException()
+        val remaining = length - current
+        if (remaining <= 0) return -1
+
+        val limit = dst.limit()
+        if (dst.remaining() > remaining) dst.limit(dst.position() + remaining.toInt())
+        return try {
+            original.read(dst, offset + current).also { if (it > 0) current += it }
+        } finally {
+            dst.limit(limit)
+        }
+    }
+
+    override fun write(src: ByteBuffer) = throw NonWritableChannelException()
+
+    override fun position() = current
+
+    override fun position(newPosition: Long) = apply {
+        require(newPosition >= 0) { "Expect newPosition >= 0" }
+        current = newPosition
+    }
+
+    override fun size() = length
+
+    override fun truncate(size: Long) = throw NonWritableChannelException()
+
+    override fun isOpen() = !closed
+
+    override fun close() {
+        closed = true
+    }
+}
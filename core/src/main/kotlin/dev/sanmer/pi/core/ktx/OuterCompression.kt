@@ -0,0 +1,81 @@
+package dev.sanmer.pi.core.ktx
+
+import android.content.res.AssetFileDescriptor
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream
+import org.tukaani.xz.XZInputStream
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.util.zip.GZIPInputStream
+
+enum class OuterCompression(private val magic: ByteArray) {
+    Gzip(byteArrayOf(0x1f, 0x8b.toByte())),
+    Xz(byteArrayOf(0xfd.toByte(), 0x37, 0x7a, 0x58, 0x5a, 0x00)),
+    Zstd(byteArrayOf(0x28, 0xb5.toByte(), 0x2f, 0xfd.toByte()));
+
+    internal fun decode(
+        channel: FileChannel,
+        offset: Long,
+        length: Long,
+        parallelism: Int,
+        windowBytes: Long
+    ): InputStream {
+        val input = Channels.newInputStream(FileChannelSlice(channel, offset, length))
+        return when (this) {
+            Gzip -> GZIPInputStream(input, BUFFER_SIZE)
+            Xz -> XzBlockInputStream.open(channel, offset, length, parallelism, windowBytes)
+                ?: XZInputStream(input.buffered(BUFFER_SIZE))
+
+            Zstd -> ZstdCompressorInputStream(input.buffered(BUFFER_SIZE))
+        }
+    }
+
+    /** [windowBytes] bounds how much decoded data parallel decoders may hold ahead of the reader. */
+    fun decode(
+        fd: AssetFileDescriptor,
+        parallelism: Int = defaultParallelism,
+        windowBytes: Long = DEFAULT_WINDOW_BYTES
+    ): InputStream {
+        val channel = fd.openChannel()
+        val decoded = runCatching {
+            decode(channel, fd.startOffset, fd.lengthOf(channel), parallelism, windowBytes)
+        }.onFailure {
+            channel.close()
+        }.getOrThrow()
+
+        return object : FilterInputStream(decoded) {
+            override fun close() {
+                try {
+                    super.close()
+                } finally {
+                    channel.close()
+                }
+            }
+        }
+    }
+
+    companion object Default {
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val MAGIC_SIZE = 6
+        private const val DEFAULT_WINDOW_BYTES =
+            CopyPipeline.DEFAULT_BUFFER_SIZE.toLong() * CopyPipeline.DEFAULT_DEPTH
+
+        private val defaultParallelism get() = Runtime.getRuntime().availableProcessors().coerceAtMost(4)
+
+        fun detect(fd: AssetFileDescriptor): OuterCompression? {
+            val buffer = ByteBuffer.allocate(MAGIC_SIZE)
+            fd.openChannel().use { channel ->
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, fd.startOffset + buffer.position()) < 0) break
+                }
+            }
+            val header = buffer.array().copyOf(buffer.position())
+            return entries.firstOrNull { format ->
+                header.size >= format.magic.size &&
+                        format.magic.indices.all { header[it] == format.magic[it] }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package dev.sanmer.pi.core.ktx
+
+import org.tukaani.xz.SeekableInputStream
+import org.tukaani.xz.SeekableXZInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Decodes the blocks of a multi-block xz stream in parallel. Each block in flight hands its
+ * output over in chunks through a bounded queue, so at most [windowBytes] of decoded data is
+ * held ahead of the reader no matter how large the blocks are.
+ */
+internal class XzBlockInputStream private constructor(
+    private val channel: FileChannel,
+    private val offset: Long,
+    private val length: Long,
+    private val blockCount: Int,
+    private val parallelism: Int,
+    windowBytes: Long
+) : InputStream() {
+    private val executor: ExecutorService = Executors.newFixedThreadPool(parallelism)
+    private val capacity = (windowBytes / (parallelism.toLong() * CHUNK_SIZE)).toInt().coerceAtLeast(1)
+    private val pending = ArrayDeque<Block>()
+    private var nextBlock = 0
+    private var current = EMPTY
+    private var position = 0
+    private var closed = false
+
+    private fun open() = SeekableXZInputStream(
+        ChannelInputStream(FileChannelSlice(channel, offset, length))
+    )
+
+    private inner class Block(private val index: Int) : Runnable {
+        val chunks = ArrayBlockingQueue<ByteArray>(capacity)
+        lateinit var future: Future<*>
+
+        @Volatile
+        var error: Throwable? = null
+
+        override fun run() {
+            try {
+                decode()
+            } catch (e: InterruptedException) {
+                return
+            } catch (e: Throwable) {
+                error = e
+            }
+            runCatching { chunks.put(END) }
+        }
+
+        private fun decode() = open().use { input ->
+            input.seekToBlock(index)
+            var remaining = input.getBlockSize(index)
+            while (remaining > 0) {
+                val bytes = ByteArray(minOf(remaining, CHUNK_SIZE.toLong()).toInt())
+                var read = 0
+                while (read < bytes.size) {
+                    val size = input.read(bytes, read, bytes.size - read)
+                    if (size < 0) throw EOFException("Expect block $index to be complete")
+                    read += size
+                }
+                chunks.put(bytes)
+                remaining -= bytes.size
+            }
+        }
+    }
+
+    private fun fill(): Boolean {
+        if (closed) throw IOException("Stream closed")
+        while (true) {
+            while (pending.size < parallelism && nextBlock < blockCount) {
+                val block = Block(nextBlock++)
+                block.future = executor.submit(block)
+                pending.addLast(block)
+            }
+
+            val head = pending.firstOrNull() ?: return false
+            val chunk = try {
+                head.chunks.take()
+            } catch (e: InterruptedException) {
+                throw IOException(e)
+            }
+
+            if (chunk === END) {
+                head.error?.let { throw it as? IOException ?: IOException(it) }
+                pending.removeFirst()
+                continue
+            }
+
+            current = chunk
+            position = 0
+            return true
+        }
+    }
+
+    override fun read(): Int {
+        while (position == current.size) {
+            if (!fill()) return -1
+        }
+        return current[position++].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        while (position == current.size) {
+            if (!fill()) return -1
+        }
+        val size = minOf(len, current.size - position)
+        System.arraycopy(current, position, b, off, size)
+        position += size
+        return size
+    }
+
+    override fun available() = current.size - position
+
+    override fun close() {
+        if (closed) return
+        closed = true
+        pending.forEach { it.future.cancel(true) }
+        pending.clear()
+        executor.shutdownNow()
+    }
+
+    private class ChannelInputStream(
+        private val slice: FileChannelSlice
+    ) : SeekableInputStream() {
+        override fun read(): Int {
+            val buffer = ByteArray(1)
+            return if (read(buffer, 0, 1) < 0) -1 else buffer[0].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            return slice.read(ByteBuffer.wrap(b, off, len))
+        }
+
+        override fun length() = slice.size()
+
+        override fun position() = slice.position()
+
+        override fun seek(pos: Long) {
+            slice.position(pos)
+        }
+    }
+
+    companion object Default {
+        private const val CHUNK_SIZE = 64 * 1024
+        private val EMPTY = ByteArray(0)
+        private val END = ByteArray(0)
+
+        fun open(
+            channel: FileChannel,
+            offset: Long,
+            length: Long,
+            parallelism: Int,
+            windowBytes: Long
+        ): InputStream? {
+            if (parallelism < 2) return null
+            val blockCount = runCatching {
+                SeekableXZInputStream(ChannelInputStream(FileChannelSlice(channel, offset, length)))
+                    .use { it.blockCount }
+            }.getOrElse { return null }
+            if (blockCount < 2) return null
+
+            return XzBlockInputStream(
+                channel = channel,
+                offset = offset,
+                length = length,
+                blockCount = blockCount,
+                parallelism = minOf(parallelism, blockCount),
+                windowBytes = windowBytes
+            )
+        }
+    }
+}
@@ -3,6 +3,8 @@ package dev.sanmer.pi.core.ktx
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream
 import java.io.FileNotFoundException
+import java.io.FilterInputStream
+import java.io.InputStream
 
 @Throws(FileNotFoundException::class)
 internal fun ZipArchiveInputStream.find(name: String): ZipArchiveEntry {
@@ -11,4 +13,32 @@ internal fun ZipArchiveInputStream.find(name: String): ZipArchiveEntry {
         if (entry.name == name) return entry
     }
     throw FileNotFoundException(name)
-}
\ No newline at end of file
+}
+
+internal fun InputStream.archive() = ZipArchiveInputStream(
+    this,
+    Charsets.UTF_8.name(),
+    true,
+    true
+)
+
+internal class EntryInputStream(input: InputStream) : FilterInputStream(input) {
+    var bytesRead = 0L
+        private set
+
+    override fun read() = super.read().also { if (it >= 0) bytesRead++ }
+
+    override fun read(b: ByteArray, off: Int, len: Int) =
+        super.read(b, off, len).also { if (it > 0) bytesRead += it }
+
+    override fun skip(n: Long) = super.skip(n).also { bytesRead += it }
+
+    /** Consumes the rest of the entry and returns its uncompressed size. */
+    fun drain(): Long {
+        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+        while (read(buffer, 0, buffer.size) >= 0) continue
+        return bytesRead
+    }
+
+    override fun close() {}
+}
@@ -0,0 +1,240 @@
+package dev.sanmer.pi.core.ktx
+
+import android.content.res.AssetFileDescriptor
+import dev.sanmer.pi.core.ktx.CentralDirectory.Default.findCentralDirectory
+import dev.sanmer.pi.core.ktx.CentralDirectory.Default.readFully
+import java.io.Closeable
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+
+/**
+ * A read-only view of a ZIP archive backed by its memory-mapped central directory.
+ *
+ * Entries are addressed by index; only names are decoded on demand, and local file
+ * headers are read lazily the first time an entry's data offset is needed. Closing the
+ * index closes [channel], so only the index returned by [open] should be closed.
+ */
+internal class ZipIndex(
+    private val channel: FileChannel,
+    private val offset: Long,
+    private val length: Long
+) : Closeable {
+    private val table: ByteBuffer
+    private val records: IntArray
+    private val hashes: IntArray
+    private val methods: IntArray
+    private val compressedSizes: LongArray
+    private val sizes: LongArray
+    private val headerOffsets: LongArray
+    private val dataOffsets: AtomicLongArray
+    private val buckets: IntArray
+
+    val size: Int
+
+    init {
+        val cd = checkNotNull(FileChannelSlice(channel, offset, length).findCentralDirectory()) {
+            "Expect end of central directory"
+        }
+        if (cd.offset < 0 || cd.size < 0 || cd.offset + cd.size > length) {
+            throw ZipException("Expect central directory within archive")
+        }
+        table = channel.map(FileChannel.MapMode.READ_ONLY, offset + cd.offset, cd.size)
+            .order(ByteOrder.LITTLE_ENDIAN)
+
+        var count = 0
+        var positions = IntArray(INITIAL_CAPACITY)
+        var position = 0
+        while (position + CFH_SIZE <= table.limit() && table.getInt(position) == CFH_SIGNATURE) {
+            if (count == positions.size) positions = positions.copyOf(count * 2)
+            positions[count++] = position
+            position += CFH_SIZE + table.u16(position + 28) +
+                    table.u16(position + 30) + table.u16(position + 32)
+        }
+
+        size = count
+        records = positions.copyOf(count)
+        hashes = IntArray(count)
+        methods = IntArray(count)
+        compressedSizes = LongArray(count)
+        sizes = LongArray(count)
+        headerOffsets = LongArray(count)
+        dataOffsets = AtomicLongArray(LongArray(count) { UNKNOWN })
+
+        var capacity = INITIAL_CAPACITY
+        while (capacity < count * 2) capacity = capacity shl 1
+        buckets = IntArray(capacity)
+
+        for (index in 0 until count) {
+            val record = records[index]
+            val nameLength = table.u16(record + 28)
+            methods[index] = table.u16(record + 10)
+            compressedSizes[index] = table.u32(record + 20)
+            sizes[index] = table.u32(record + 24)
+            headerOffsets[index] = table.u32(record + 42)
+            readZip64(index, record + CFH_SIZE + nameLength, table.u16(record + 30))
+
+            val hash = hash(record + CFH_SIZE, nameLength)
+            hashes[index] = hash
+            var slot = hash and (capacity - 1)
+            while (buckets[slot] != 0) slot = (slot + 1) and (capacity - 1)
+            buckets[slot] = index + 1
+        }
+    }
+
+    private fun readZip64(index: Int, start: Int, length: Int) {
+        if (sizes[index] != ZIP64_MAGIC && compressedSizes[index] != ZIP64_MAGIC &&
+            headerOffsets[index] != ZIP64_MAGIC
+        ) return
+
+        var position = start
+        val end = start + length
+        while (position + 4 <= end) {
+            val id = table.u16(position)
+            val dataSize = table.u16(position + 2)
+            if (id == ZIP64_EXTRA_ID) {
+                var field = position + 4
+                if (sizes[index] == ZIP64_MAGIC) {
+                    sizes[index] = table.getLong(field)
+                    field += 8
+                }
+                if (compressedSizes[index] == ZIP64_MAGIC) {
+                    compressedSizes[index] = table.getLong(field)
+                    field += 8
+                }
+                if (headerOffsets[index] == ZIP64_MAGIC) {
+                    headerOffsets[index] = table.getLong(field)
+                }
+                return
+            }
+            position += 4 + dataSize
+        }
+    }
+
+    private fun hash(start: Int, length: Int): Int {
+        var hash = FNV_OFFSET
+        for (i in start until start + length) {
+            hash = (hash xor (table.get(i).toInt() and 0xff)) * FNV_PRIME
+        }
+        return hash
+    }
+
+    private fun hash(bytes: ByteArray): Int {
+        var hash = FNV_OFFSET
+        bytes.forEach { hash = (hash xor (it.toInt() and 0xff)) * FNV_PRIME }
+        return hash
+    }
+
+    private fun nameEquals(index: Int, bytes: ByteArray): Boolean {
+        val record = records[index]
+        if (table.u16(record + 28) != bytes.size) return false
+        return bytes.indices.all { table.get(record + CFH_SIZE + it) == bytes[it] }
+    }
+
+    fun find(name: String): Int? {
+        val bytes = name.toByteArray()
+        val hash = hash(bytes)
+        var slot = hash and (buckets.size - 1)
+        while (true) {
+            val index = buckets[slot] - 1
+            if (index < 0) return null
+            if (hashes[index] == hash && nameEquals(index, bytes)) return index
+            slot = (slot + 1) and (buckets.size - 1)
+        }
+    }
+
+    fun name(index: Int): String {
+        val record = records[index]
+        val bytes = ByteArray(table.u16(record + 28))
+        table.duplicate().apply { position(record + CFH_SIZE) }.get(bytes)
+        return String(bytes)
+    }
+
+    fun names() = (0 until size).asSequence().map(::name)
+
+    fun method(index: Int) = methods[index]
+
+    fun compressedSize(index: Int) = compressedSizes[index]
+
+    fun size(index: Int) = sizes[index]
+
+    fun isStored(index: Int) = methods[index] == ZipEntry.STORED &&
+            compressedSizes[index] == sizes[index]
+
+    fun dataOffset(index: Int): Long {
+        val cached = dataOffsets.get(index)
+        if (cached != UNKNOWN) return cached
+
+        val header = FileChannelSlice(channel, offset, length)
+            .readFully(headerOffsets[index], LFH_SIZE)
+        if (header.limit() < LFH_SIZE || header.getInt(0) != LFH_SIGNATURE) {
+            throw ZipException("Expect local file header of ${name(index)}")
+        }
+        return (headerOffsets[index] + LFH_SIZE + header.u16(26) + header.u16(28))
+            .also { dataOffsets.set(index, it) }
+    }
+
+    fun slice(index: Int) = FileChannelSlice(
+        channel,
+        offset + dataOffset(index),
+        compressedSizes[index]
+    )
+
+    /** A view of a stored archive entry that shares [channel]; it must not be closed. */
+    fun nested(index: Int) = ZipIndex(channel, offset + dataOffset(index), sizes[index])
+
+    fun inputStream(index: Int): InputStream {
+        val input = Channels.newInputStream(slice(index))
+        return when (methods[index]) {
+            ZipEntry.STORED -> input
+            ZipEntry.DEFLATED -> object : InflaterInputStream(
+                input.buffered(BUFFER_SIZE),
+                Inflater(true),
+                BUFFER_SIZE
+            ) {
+                override fun close() {
+                    super.close()
+                    inf.end()
+                }
+            }
+
+            else -> throw ZipException("Unsupported method ${methods[index]} of ${name(index)}")
+        }
+    }
+
+    override fun close() {
+        channel.close()
+    }
+
+    companion object Default {
+        private const val CFH_SIGNATURE = 0x02014b50
+        private const val CFH_SIZE = 46
+        private const val LFH_SIGNATURE = 0x04034b50
+        private const val LFH_SIZE = 30
+        private const val ZIP64_MAGIC = 0xFFFFFFFFL
+        private const val ZIP64_EXTRA_ID = 0x0001
+        private const val FNV_OFFSET = -0x7ee3623b
+        private const val FNV_PRIME = 0x01000193
+        private const val INITIAL_CAPACITY = 16
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val UNKNOWN = -1L
+
+        private fun ByteBuffer.u16(index: Int) = getShort(index).toInt() and 0xffff
+
+        private fun ByteBuffer.u32(index: Int) = getInt(index).toLong() and 0xffffffffL
+
+        fun open(fd: AssetFileDescriptor): ZipIndex {
+            val channel = fd.openChannel()
+            return runCatching { ZipIndex(channel, fd.startOffset, fd.lengthOf(channel)) }
+                .onFailure { channel.close() }
+                .getOrThrow()
+        }
+    }
+}
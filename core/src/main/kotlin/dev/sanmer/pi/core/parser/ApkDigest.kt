@@ -0,0 +1,199 @@
+package dev.sanmer.pi.core.parser
+
+import dev.sanmer.pi.core.parser.ApkSigningBlock.Default.readSigningBlock
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.SeekableByteChannel
+import java.security.MessageDigest
+
+/** Takes the bytes of an APK in order, from its first byte on. */
+internal interface ApkDigestSink {
+    fun update(bytes: ByteArray, offset: Int, length: Int)
+
+    fun update(buffer: ByteBuffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+            return
+        }
+
+        val bytes = ByteArray(minOf(buffer.remaining(), DEFAULT_BUFFER_SIZE))
+        while (buffer.hasRemaining()) {
+            val size = minOf(buffer.remaining(), bytes.size)
+            buffer.get(bytes, 0, size)
+            update(bytes, 0, size)
+        }
+    }
+}
+
+internal class ApkDigest(private val layout: Layout? = null) : ApkDigestSink {
+    private val whole = MessageDigest.getInstance(SHA_256)
+    private var position = 0L
+
+    private val chunks = ByteArrayOutputStream()
+    private var chunkCount = 0
+    private var chunk: MessageDigest? = null
+    private var chunkRemaining = 0L
+    private val eocd = ByteArrayOutputStream()
+
+    override fun update(bytes: ByteArray, offset: Int, length: Int) {
+        whole.update(bytes, offset, length)
+        if (layout != null) updateSections(layout, bytes, offset, length)
+        position += length
+    }
+
+    /**
+     * Takes [digests] as those of the first whole chunks, so the bytes that follow them are
+     * fed from there on. The whole-file SHA-256 then only covers what is fed afterwards.
+     */
+    fun skipChunks(digests: List<ByteArray>) {
+        val length = digests.size * CHUNK_SIZE
+        check(position == 0L && chunk == null) { "Expect no bytes before skipped chunks" }
+        check(layout != null && length <= layout.blockOffset) {
+            "Expect skipped chunks before the signing block"
+        }
+        digests.forEach { chunks.write(it) }
+        chunkCount += digests.size
+        position = length
+    }
+
+    private fun updateSections(layout: Layout, bytes: ByteArray, offset: Int, length: Int) {
+        var index = offset
+        var current = position
+        val end = offset + length
+        while (index < end) {
+            val sectionEnd = when {
+                current < layout.blockOffset -> layout.blockOffset
+                current < layout.cdOffset -> layout.cdOffset
+                current < layout.eocdOffset -> layout.eocdOffset
+                else -> Long.MAX_VALUE
+            }
+            val size = minOf((end - index).toLong(), sectionEnd - current).toInt()
+            when {
+                current < layout.blockOffset -> updateChunks(layout, bytes, index, size, current, sectionEnd)
+                current < layout.cdOffset -> Unit
+                current < layout.eocdOffset -> updateChunks(layout, bytes, index, size, current, sectionEnd)
+                else -> eocd.write(bytes, index, size)
+            }
+            index += size
+            current += size
+        }
+    }
+
+    private fun updateChunks(
+        layout: Layout,
+        bytes: ByteArray,
+        offset: Int,
+        length: Int,
+        position: Long,
+        sectionEnd: Long
+    ) {
+        var index = offset
+        var current = position
+        val end = offset + length
+        while (index < end) {
+            val digest = chunk ?: MessageDigest.getInstance(layout.algorithm).also {
+                chunkRemaining = minOf(CHUNK_SIZE, sectionEnd - current)
+                it.update(CHUNK_PREFIX)
+                it.update(chunkRemaining.toInt().toLittleEndian())
+                chunk = it
+            }
+            val size = minOf((end - index).toLong(), chunkRemaining).toInt()
+            digest.update(bytes, index, size)
+            chunkRemaining -= size
+            index += size
+            current += size
+            if (chunkRemaining == 0L) {
+                chunks.write(digest.digest())
+                chunkCount++
+                chunk = null
+            }
+        }
+    }
+
+    fun finish(): Result {
+        val sha256 = whole.digest()
+        if (layout == null) return Result(sha256, null, null, null)
+
+        val bytes = eocd.toByteArray()
+        if (bytes.size >= 20) {
+            val offset = layout.blockOffset.toInt().toLittleEndian()
+            offset.copyInto(bytes, 16)
+        }
+        updateChunks(layout, bytes, 0, bytes.size, 0, bytes.size.toLong())
+
+        val top = MessageDigest.getInstance(layout.algorithm)
+        top.update(TOP_PREFIX)
+        top.update(chunkCount.toLittleEndian())
+        top.update(chunks.toByteArray())
+        val contentDigest = top.digest()
+
+        return Result(
+            sha256 = sha256,
+            contentDigest = contentDigest,
+            algorithm = layout.algorithm,
+            isVerified = MessageDigest.isEqual(contentDigest, layout.expected)
+        )
+    }
+
+    class Result(
+        val sha256: ByteArray,
+        val contentDigest: ByteArray?,
+        val algorithm: String?,
+        val isVerified: Boolean?
+    )
+
+    class Layout(
+        val blockOffset: Long,
+        val cdOffset: Long,
+        val eocdOffset: Long,
+        val algorithm: String,
+        val expected: ByteArray
+    )
+
+    companion object Default {
+        const val SHA_256 = "SHA-256"
+        const val SHA_512 = "SHA-512"
+
+        const val CHUNK_SIZE = 1024L * 1024
+        val CHUNK_PREFIX = byteArrayOf(0xa5.toByte())
+        private val TOP_PREFIX = byteArrayOf(0x5a)
+
+        fun Int.toLittleEndian(): ByteArray =
+            ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(this).array()
+
+        private fun algorithmOf(id: Int) = when (id) {
+            0x0101, 0x0103, 0x0201, 0x0301 -> SHA_256
+            0x0102, 0x0104, 0x0202 -> SHA_512
+            else -> null
+        }
+
+        /**
+         * Returns `null` for an APK without a v2/v3 signing block; a block whose signers
+         * do not verify is rejected here rather than treated as unsigned.
+         */
+        fun layoutOf(channel: SeekableByteChannel): Layout? {
+            val block = runCatching { channel.readSigningBlock() }.getOrNull() ?: return null
+            return layoutOf(block)
+        }
+
+        fun layoutOf(block: ApkSigningBlock): Layout? {
+            check(runCatching { block.verify() }.getOrDefault(false)) {
+                "Expect valid APK signature"
+            }
+
+            val values = block.digests.entries.mapNotNull { (id, value) ->
+                algorithmOf(id)?.let { it to value }
+            }.toMap()
+
+            val algorithm = if (SHA_256 in values) SHA_256 else SHA_512
+            return Layout(
+                blockOffset = block.offset,
+                cdOffset = block.cdOffset,
+                eocdOffset = block.eocdOffset,
+                algorithm = algorithm,
+                expected = values[algorithm] ?: return null
+            )
+        }
+    }
+}
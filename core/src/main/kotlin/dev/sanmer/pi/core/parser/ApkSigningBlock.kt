@@ -0,0 +1,207 @@
+package dev.sanmer.pi.core.parser
+
+import dev.sanmer.pi.core.ktx.CentralDirectory.Default.findCentralDirectory
+import dev.sanmer.pi.core.ktx.CentralDirectory.Default.readFully
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.SeekableByteChannel
+import java.security.KeyFactory
+import java.security.Signature
+import java.security.cert.CertificateFactory
+import java.security.spec.AlgorithmParameterSpec
+import java.security.spec.MGF1ParameterSpec
+import java.security.spec.PSSParameterSpec
+import java.security.spec.X509EncodedKeySpec
+
+internal class ApkSigningBlock(
+    val offset: Long,
+    val cdOffset: Long,
+    val eocdOffset: Long,
+    val signers: List<Signer>
+) {
+    /** Content digests by algorithm id; every signer that carries an id must agree on it. */
+    val digests: Map<Int, ByteArray>
+        get() = signers.flatMap { it.digests.entries }.associate { it.key to it.value }
+
+    /** The signing certificate of each signer, excluding the rest of its chain. */
+    val certificates: List<ByteArray>
+        get() = signers.mapNotNull { it.certificates.firstOrNull() }
+
+    val hasLineage: Boolean
+        get() = signers.any { it.hasLineage }
+
+    /**
+     * Checks each signer's signatures over its signed data with its own public key, and
+     * that the signers agree on the content digests. The digests themselves are compared
+     * against the content by [ApkDigest].
+     */
+    fun verify(): Boolean {
+        if (signers.isEmpty() || !signers.all { it.verify() }) return false
+        return signers.flatMap { it.digests.entries }
+            .groupBy({ it.key }, { it.value })
+            .values
+            .all { values -> values.all { it.contentEquals(values.first()) } }
+    }
+
+    class Signer(
+        private val signedData: ByteBuffer,
+        val digests: Map<Int, ByteArray>,
+        val certificates: List<ByteArray>,
+        val signatures: Map<Int, ByteArray>,
+        val publicKey: ByteArray,
+        val hasLineage: Boolean
+    ) {
+        fun verify(): Boolean {
+            if (signatures.isEmpty() || signatures.keys != digests.keys) return false
+            val certificate = certificates.firstOrNull() ?: return false
+            val encoded = CertificateFactory.getInstance(X509)
+                .generateCertificate(certificate.inputStream())
+                .publicKey
+                .encoded
+            if (!encoded.contentEquals(publicKey)) return false
+
+            val supported = signatures.filterKeys { signatureOf(it) != null }
+            if (supported.isEmpty()) return false
+            return supported.all { (id, value) ->
+                val (algorithm, params) = checkNotNull(signatureOf(id))
+                val key = KeyFactory.getInstance(keyAlgorithmOf(id))
+                    .generatePublic(X509EncodedKeySpec(publicKey))
+                Signature.getInstance(algorithm).run {
+                    initVerify(key)
+                    params?.let(::setParameter)
+                    update(signedData.duplicate())
+                    verify(value)
+                }
+            }
+        }
+    }
+
+    companion object Default {
+        private const val MAGIC_LO = 0x20676953204b5041L
+        private const val MAGIC_HI = 0x3234206b636f6c42L
+        private const val FOOTER_SIZE = 24
+        private const val V2_BLOCK_ID = 0x7109871a
+        private const val V3_BLOCK_ID = 0xf05368c0.toInt()
+        private const val V3_LINEAGE_ATTR_ID = 0x3ba06f8c
+        private const val X509 = "X.509"
+
+        private fun signatureOf(id: Int): Pair<String, AlgorithmParameterSpec?>? = when (id) {
+            0x0101 -> "SHA256withRSA/PSS" to PSSParameterSpec(
+                "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 256 / 8, 1
+            )
+
+            0x0102 -> "SHA512withRSA/PSS" to PSSParameterSpec(
+                "SHA-512", "MGF1", MGF1ParameterSpec.SHA512, 512 / 8, 1
+            )
+
+            0x0103, 0x0421 -> "SHA256withRSA" to null
+            0x0104 -> "SHA512withRSA" to null
+            0x0201, 0x0423 -> "SHA256withECDSA" to null
+            0x0202 -> "SHA512withECDSA" to null
+            0x0301, 0x0425 -> "SHA256withDSA" to null
+            else -> null
+        }
+
+        private fun keyAlgorithmOf(id: Int) = when (id) {
+            0x0101, 0x0102, 0x0103, 0x0104, 0x0421 -> "RSA"
+            0x0201, 0x0202, 0x0423 -> "EC"
+            else -> "DSA"
+        }
+
+        private fun ByteBuffer.lengthPrefixed(): ByteBuffer {
+            val size = getInt()
+            require(size in 0..remaining()) { "Expect length <= ${remaining()}, but $size" }
+            val value = slice().order(ByteOrder.LITTLE_ENDIAN)
+            value.limit(size)
+            position(position() + size)
+            return value
+        }
+
+        private fun ByteBuffer.toByteArray() = ByteArray(remaining()).also { get(it) }
+
+        private inline fun ByteBuffer.forEachLengthPrefixed(block: (ByteBuffer) -> Unit) {
+            while (hasRemaining()) block(lengthPrefixed())
+        }
+
+        private fun ByteBuffer.readSigner(isV3: Boolean): Signer {
+            val signedData = lengthPrefixed()
+            val data = signedData.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+
+            val digests = mutableMapOf<Int, ByteArray>()
+            data.lengthPrefixed().forEachLengthPrefixed {
+                val algorithm = it.getInt()
+                digests[algorithm] = it.lengthPrefixed().toByteArray()
+            }
+
+            val certificates = mutableListOf<ByteArray>()
+            data.lengthPrefixed().forEachLengthPrefixed {
+                certificates.add(it.toByteArray())
+            }
+
+            var hasLineage = false
+            if (isV3) data.position(data.position() + 8)
+            if (data.hasRemaining()) {
+                data.lengthPrefixed().forEachLengthPrefixed {
+                    if (it.getInt() == V3_LINEAGE_ATTR_ID) hasLineage = true
+                }
+            }
+
+            if (isV3) position(position() + 8)
+            val signatures = mutableMapOf<Int, ByteArray>()
+            lengthPrefixed().forEachLengthPrefixed {
+                val algorithm = it.getInt()
+                signatures[algorithm] = it.lengthPrefixed().toByteArray()
+            }
+
+            return Signer(
+                signedData = signedData,
+                digests = digests,
+                certificates = certificates,
+                signatures = signatures,
+                publicKey = lengthPrefixed().toByteArray(),
+                hasLineage = hasLineage
+            )
+        }
+
+        fun SeekableByteChannel.readSigningBlock(): ApkSigningBlock? {
+            val cd = findCentralDirectory() ?: return null
+            if (cd.offset < FOOTER_SIZE + 8) return null
+
+            val footer = readFully(cd.offset - FOOTER_SIZE, FOOTER_SIZE)
+            if (footer.getLong(8) != MAGIC_LO || footer.getLong(16) != MAGIC_HI) return null
+            val size = footer.getLong(0)
+            val offset = cd.offset - size - 8
+            if (offset < 0 || size > Int.MAX_VALUE - 8) return null
+
+            val block = readFully(offset, (size + 8).toInt())
+            if (block.getLong(0) != size) return null
+
+            val schemes = mutableMapOf<Int, ByteBuffer>()
+            block.position(8)
+            block.limit(block.capacity() - FOOTER_SIZE)
+            while (block.remaining() >= 12) {
+                val length = block.getLong()
+                require(length in 4..block.remaining().toLong()) { "Expect pair length, but $length" }
+                val id = block.getInt()
+                val value = block.slice().order(ByteOrder.LITTLE_ENDIAN)
+                value.limit(length.toInt() - 4)
+                block.position(block.position() + length.toInt() - 4)
+                schemes[id] = value
+            }
+
+            val isV3 = V3_BLOCK_ID in schemes
+            val scheme = schemes[V3_BLOCK_ID] ?: schemes[V2_BLOCK_ID] ?: return null
+            val signers = mutableListOf<Signer>()
+            scheme.lengthPrefixed().forEachLengthPrefixed {
+                signers.add(it.readSigner(isV3))
+            }
+
+            return ApkSigningBlock(
+                offset = offset,
+                cdOffset = cd.offset,
+                eocdOffset = cd.eocdOffset,
+                signers = signers
+            )
+        }
+    }
+}
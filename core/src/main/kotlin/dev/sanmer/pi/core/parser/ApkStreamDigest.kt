@@ -0,0 +1,154 @@
+package dev.sanmer.pi.core.parser
+
+import dev.sanmer.pi.core.parser.ApkDigest.Default.CHUNK_PREFIX
+import dev.sanmer.pi.core.parser.ApkDigest.Default.CHUNK_SIZE
+import dev.sanmer.pi.core.parser.ApkDigest.Default.toLittleEndian
+import dev.sanmer.pi.core.parser.ApkSigningBlock.Default.readSigningBlock
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.NonWritableChannelException
+import java.nio.channels.SeekableByteChannel
+import java.security.MessageDigest
+
+/**
+ * Digests an APK whose signing block can only be located once all of it has passed by, as
+ * for one decoded from a stream, inflated from a zip or rebuilt from a patch.
+ *
+ * Whole chunks are digested with SHA-256 as they arrive, and the last [TAIL_SIZE] bytes
+ * are kept to locate the signing block and digest the chunk it cuts short, the central
+ * directory and the end record. [finish] returns `null` when the block lies further back
+ * than that or the signers only carry SHA-512 digests, and the APK has to be read again.
+ */
+internal class ApkStreamDigest : ApkDigestSink {
+    private val whole = MessageDigest.getInstance(ApkDigest.SHA_256)
+    private var length = 0L
+
+    private val chunks = mutableListOf<ByteArray>()
+    private val chunk = MessageDigest.getInstance(ApkDigest.SHA_256)
+    private var chunkSize = 0
+
+    private val tail = ByteArray(TAIL_SIZE)
+
+    override fun update(bytes: ByteArray, offset: Int, length: Int) {
+        whole.update(bytes, offset, length)
+        updateChunks(bytes, offset, length)
+        updateTail(bytes, offset, length)
+        this.length += length
+    }
+
+    private fun updateChunks(bytes: ByteArray, offset: Int, length: Int) {
+        var index = offset
+        val end = offset + length
+        while (index < end) {
+            if (chunkSize == 0) chunk.update(CHUNK_HEADER)
+            val size = minOf(end - index, CHUNK_SIZE.toInt() - chunkSize)
+            chunk.update(bytes, index, size)
+            chunkSize += size
+            index += size
+            if (chunkSize.toLong() == CHUNK_SIZE) {
+                chunks.add(chunk.digest())
+                chunkSize = 0
+            }
+        }
+    }
+
+    private fun updateTail(bytes: ByteArray, offset: Int, length: Int) {
+        val skipped = maxOf(0, length - TAIL_SIZE)
+        var index = offset + skipped
+        var remaining = length - skipped
+        var at = ((this.length + skipped) % TAIL_SIZE).toInt()
+        while (remaining > 0) {
+            val size = minOf(remaining, TAIL_SIZE - at)
+            bytes.copyInto(tail, at, index, index + size)
+            at = (at + size) % TAIL_SIZE
+            index += size
+            remaining -= size
+        }
+    }
+
+    fun finish(): ApkDigest.Result? {
+        val sha256 = whole.digest()
+        val unsigned = ApkDigest.Result(sha256, null, null, null)
+        val start = maxOf(0L, length - TAIL_SIZE)
+
+        val block = try {
+            TailChannel(start).readSigningBlock()
+        } catch (e: TailException) {
+            return null
+        } catch (e: Exception) {
+            null
+        }
+        if (block == null) return unsigned
+        val layout = ApkDigest.layoutOf(block) ?: return unsigned
+        if (layout.algorithm != ApkDigest.SHA_256) return null
+
+        val skipped = (layout.blockOffset / CHUNK_SIZE).toInt()
+        val from = skipped * CHUNK_SIZE
+        if (from < start) return null
+
+        val digest = ApkDigest(layout)
+        digest.skipChunks(chunks.subList(0, skipped))
+        val channel = TailChannel(start).position(from)
+        val buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE)
+        while (true) {
+            buffer.clear()
+            if (channel.read(buffer) < 0) break
+            buffer.flip()
+            digest.update(buffer)
+        }
+
+        val result = digest.finish()
+        return ApkDigest.Result(
+            sha256 = sha256,
+            contentDigest = result.contentDigest,
+            algorithm = result.algorithm,
+            isVerified = result.isVerified
+        )
+    }
+
+    /** A view of the kept tail at the offsets of the whole APK. */
+    private inner class TailChannel(private val start: Long) : SeekableByteChannel {
+        private var current = 0L
+
+        override fun read(dst: ByteBuffer): Int {
+            if (current >= length) return -1
+            if (current < start) throw TailException()
+
+            val size = minOf(dst.remaining().toLong(), length - current).toInt()
+            var remaining = size
+            while (remaining > 0) {
+                val at = (current % TAIL_SIZE).toInt()
+                val n = minOf(remaining, TAIL_SIZE - at)
+                dst.put(tail, at, n)
+                current += n
+                remaining -= n
+            }
+            return size
+        }
+
+        override fun write(src: ByteBuffer) = throw NonWritableChannelException()
+
+        override fun position() = current
+
+        override fun position(newPosition: Long) = apply {
+            require(newPosition >= 0) { "Expect newPosition >= 0" }
+            current = newPosition
+        }
+
+        override fun size() = length
+
+        override fun truncate(size: Long) = throw NonWritableChannelException()
+
+        override fun isOpen() = true
+
+        override fun close() {}
+    }
+
+    private class TailException : IOException("Expect the signing block within the kept tail")
+
+    companion object Default {
+        const val TAIL_SIZE = 4 * 1024 * 1024
+
+        private val CHUNK_HEADER = CHUNK_PREFIX + CHUNK_SIZE.toInt().toLittleEndian()
+    }
+}
@@ -0,0 +1,144 @@
+package dev.sanmer.pi.core.parser
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+internal class BinaryXmlParser(data: ByteArray) {
+    private val buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+    private var strings = StringPool.Empty
+    private var resourceIds = IntArray(0)
+
+    fun fold(
+        onManifest: Element.() -> Unit,
+        onUsesSdk: Element.() -> Unit,
+        onApplication: Element.() -> Unit,
+        onModule: Element.() -> Unit = {}
+    ) {
+        require(buffer.remaining() >= HEADER_SIZE) { "Expect header" }
+        require(buffer.getShort(0).toInt() == RES_XML_TYPE) { "Expect RES_XML_TYPE" }
+
+        var position = buffer.getShort(2).toUShort().toInt()
+        val end = minOf(buffer.getInt(4), buffer.limit())
+        while (position + HEADER_SIZE <= end) {
+            val type = buffer.getShort(position).toInt()
+            val size = buffer.getInt(position + 4)
+            require(size >= HEADER_SIZE && position + size <= end) { "Broken chunk at $position" }
+
+            when (type) {
+                StringPool.RES_STRING_POOL_TYPE -> strings = StringPool(buffer, position)
+                RES_XML_RESOURCE_MAP_TYPE -> resourceIds = readResourceIds(position, size)
+                RES_XML_START_ELEMENT_TYPE -> {
+                    val element = readElement(position)
+                    when (element.name) {
+                        ResourceParser.TAG_MANIFEST -> onManifest(element)
+                        ResourceParser.TAG_USES_SDK -> onUsesSdk(element)
+                        ResourceParser.TAG_MODULE -> onModule(element)
+                        ResourceParser.TAG_APPLICATION -> {
+                            onApplication(element)
+                            return
+                        }
+                    }
+                }
+            }
+
+            position += size
+        }
+    }
+
+    private fun readResourceIds(position: Int, size: Int): IntArray {
+        val headerSize = buffer.getShort(position + 2).toUShort().toInt()
+        val count = (size - headerSize) / 4
+        return IntArray(count) { buffer.getInt(position + headerSize + it * 4) }
+    }
+
+    private fun readElement(position: Int): Element {
+        val ext = position + buffer.getShort(position + 2).toUShort().toInt()
+        val name = buffer.getInt(ext + 4)
+        val attributeStart = buffer.getShort(ext + 8).toUShort().toInt()
+        val attributeSize = buffer.getShort(ext + 10).toUShort().toInt()
+        val attributeCount = buffer.getShort(ext + 12).toUShort().toInt()
+
+        return Element(
+            name = strings[name].orEmpty(),
+            attributes = List(attributeCount) {
+                val offset = ext + attributeStart + it * attributeSize
+                val nameIndex = buffer.getInt(offset + 4)
+                Attribute(
+                    nameIndex = nameIndex,
+                    resId = resourceIds.getOrElse(nameIndex) { 0 },
+                    rawValue = buffer.getInt(offset + 8),
+                    dataType = buffer.get(offset + 15).toUByte().toInt(),
+                    data = buffer.getInt(offset + 16)
+                )
+            }
+        )
+    }
+
+    class Attribute(
+        val nameIndex: Int,
+        val resId: Int,
+        val rawValue: Int,
+        val dataType: Int,
+        val data: Int
+    )
+
+    inner class Element internal constructor(
+        val name: String,
+        private val attributes: List<Attribute>
+    ) : ResourceParser.Attributes {
+        private fun find(resId: Int) = attributes.find { it.resId == resId }
+
+        private fun find(name: String) = attributes.find {
+            it.resId == 0 && strings[it.nameIndex] == name
+        }
+
+        private fun find(resId: Int, name: String) = if (resId == 0) find(name) else find(resId)
+
+        private fun Attribute.stringValue() = when {
+            rawValue >= 0 -> strings[rawValue]
+            dataType == TYPE_STRING -> strings[data]
+            dataType == TYPE_INT_BOOLEAN -> (data != 0).toString()
+            dataType in TYPE_FIRST_INT..TYPE_LAST_INT -> data.toString()
+            else -> null
+        }
+
+        private fun Attribute.intValue() = when (dataType) {
+            in TYPE_FIRST_INT..TYPE_LAST_INT -> data
+            TYPE_STRING -> stringValue()?.toIntOrNull()
+            else -> null
+        }
+
+        fun getAttributeValue(name: String) = find(name)?.stringValue()
+
+        fun getAttributeValue(name: String, defaultValue: String) =
+            getAttributeValue(name) ?: defaultValue
+
+        fun getAttributeIntValue(resId: Int, defaultValue: Int) =
+            find(resId)?.intValue() ?: defaultValue
+
+        fun getAttributeBooleanValue(resId: Int, defaultValue: Boolean) =
+            find(resId)?.intValue()?.let { it != 0 } ?: defaultValue
+
+        override fun getString(resId: Int, name: String) = find(resId, name)?.stringValue()
+
+        override fun getInt(resId: Int, name: String, defaultValue: Int) =
+            find(resId, name)?.intValue() ?: defaultValue
+
+        override fun getReference(resId: Int, name: String) =
+            find(resId, name)?.takeIf { it.dataType == TYPE_REFERENCE }?.data ?: 0
+    }
+
+    companion object Default {
+        private const val HEADER_SIZE = 8
+
+        private const val RES_XML_TYPE = 0x0003
+        private const val RES_XML_START_ELEMENT_TYPE = 0x0102
+        private const val RES_XML_RESOURCE_MAP_TYPE = 0x0180
+
+        private const val TYPE_REFERENCE = 0x01
+        private const val TYPE_STRING = 0x03
+        private const val TYPE_FIRST_INT = 0x10
+        private const val TYPE_INT_BOOLEAN = 0x12
+        private const val TYPE_LAST_INT = 0x1f
+    }
+}
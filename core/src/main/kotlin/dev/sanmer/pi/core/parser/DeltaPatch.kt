@@ -0,0 +1,199 @@
+package dev.sanmer.pi.core.parser
+
+import android.content.res.AssetFileDescriptor
+import dev.sanmer.pi.core.ktx.FileChannelSlice
+import dev.sanmer.pi.core.ktx.lengthOf
+import dev.sanmer.pi.core.ktx.openChannel
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
+import java.io.DataInputStream
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+
+/**
+ * An update from one installed base APK to a target APK: a header followed by a BSDIFF40 payload.
+ *
+ * Header (big-endian): magic, version, packageName, baseVersionCode, targetVersionCode,
+ * targetVersionName, SHA-256 of the base, SHA-256 of the target, target size.
+ */
+class DeltaPatch(
+    val packageName: String,
+    val baseVersionCode: Long,
+    val targetVersionCode: Long,
+    val targetVersionName: String,
+    val baseSha256: ByteArray,
+    val targetSha256: ByteArray,
+    val targetSize: Long,
+    private val payloadOffset: Long,
+    private val payloadLength: Long
+) {
+    fun matchesBase(base: FileChannel): Boolean {
+        val digest = MessageDigest.getInstance(SHA_256)
+        val buffer = ByteBuffer.allocate(BUFFER_SIZE)
+        var position = 0L
+        while (true) {
+            buffer.clear()
+            val bytes = base.read(buffer, position)
+            if (bytes < 0) break
+            digest.update(buffer.array(), 0, bytes)
+            position += bytes
+        }
+        return MessageDigest.isEqual(digest.digest(), baseSha256)
+    }
+
+    internal fun apply(
+        channel: FileChannel,
+        base: FileChannel,
+        write: (ByteArray, Int) -> Unit
+    ) {
+        val header = DataInputStream(
+            Channels.newInputStream(FileChannelSlice(channel, payloadOffset, BSDIFF_HEADER_SIZE))
+        ).use { input -> ByteArray(BSDIFF_HEADER_SIZE.toInt()).also(input::readFully) }
+        require(header.copyOf(8).contentEquals(BSDIFF_MAGIC)) { "Expect BSDIFF40" }
+
+        val ctrlLength = header.offtin(8)
+        val diffLength = header.offtin(16)
+        val newSize = header.offtin(24)
+        require(newSize == targetSize) { "Expect target size $targetSize, but $newSize" }
+        require(ctrlLength >= 0 && diffLength >= 0) { "Expect block lengths" }
+
+        val extraOffset = BSDIFF_HEADER_SIZE + ctrlLength + diffLength
+        require(extraOffset <= payloadLength) { "Expect payload length >= $extraOffset" }
+
+        channel.bzip2(BSDIFF_HEADER_SIZE, ctrlLength).use { ctrl ->
+            channel.bzip2(BSDIFF_HEADER_SIZE + ctrlLength, diffLength).use { diff ->
+                channel.bzip2(extraOffset, payloadLength - extraOffset).use { extra ->
+                    patch(ctrl, diff, extra, base, newSize, write)
+                }
+            }
+        }
+    }
+
+    private fun patch(
+        ctrl: DataInputStream,
+        diff: DataInputStream,
+        extra: DataInputStream,
+        base: FileChannel,
+        newSize: Long,
+        write: (ByteArray, Int) -> Unit
+    ) {
+        val baseSize = base.size()
+        val triple = ByteArray(24)
+        val buffer = ByteArray(BUFFER_SIZE)
+        val old = ByteBuffer.allocate(BUFFER_SIZE)
+        var newPosition = 0L
+        var oldPosition = 0L
+
+        while (newPosition < newSize) {
+            ctrl.readFully(triple)
+            val add = triple.offtin(0)
+            val copy = triple.offtin(8)
+            val seek = triple.offtin(16)
+            require(add >= 0 && copy >= 0 && newPosition + add + copy <= newSize) {
+                "Expect control within target, but ($add, $copy, $seek) at $newPosition"
+            }
+
+            var remaining = add
+            while (remaining > 0) {
+                val size = minOf(remaining, BUFFER_SIZE.toLong()).toInt()
+                diff.readFully(buffer, 0, size)
+                base.readAt(old, oldPosition, size, baseSize)
+                for (i in 0 until size) {
+                    buffer[i] = (buffer[i] + old.get(i)).toByte()
+                }
+                write(buffer, size)
+                oldPosition += size
+                newPosition += size
+                remaining -= size
+            }
+
+            remaining = copy
+            while (remaining > 0) {
+                val size = minOf(remaining, BUFFER_SIZE.toLong()).toInt()
+                extra.readFully(buffer, 0, size)
+                write(buffer, size)
+                newPosition += size
+                remaining -= size
+            }
+
+            oldPosition += seek
+        }
+    }
+
+    private fun FileChannel.bzip2(offset: Long, length: Long) = DataInputStream(
+        BZip2CompressorInputStream(
+            Channels.newInputStream(
+                FileChannelSlice(this, payloadOffset + offset, length)
+            ).buffered()
+        )
+    )
+
+    companion object Default {
+        private const val MAGIC = 0x5049444c
+        private const val VERSION = 1
+        private const val SHA_256 = "SHA-256"
+        private const val SHA_256_SIZE = 32
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val BSDIFF_HEADER_SIZE = 32L
+        private val BSDIFF_MAGIC = "BSDIFF40".toByteArray()
+
+        private fun ByteArray.offtin(offset: Int): Long {
+            var value = this[offset + 7].toLong() and 0x7f
+            for (i in 6 downTo 0) {
+                value = (value shl 8) or (this[offset + i].toLong() and 0xff)
+            }
+            return if (this[offset + 7].toInt() and 0x80 != 0) -value else value
+        }
+
+        private fun FileChannel.readAt(buffer: ByteBuffer, position: Long, size: Int, limit: Long) {
+            buffer.clear()
+            buffer.array().fill(0, 0, size)
+            val start = position.coerceIn(0, limit)
+            val end = (position + size).coerceIn(0, limit)
+            if (start >= end) return
+
+            buffer.limit((end - position).toInt())
+            buffer.position((start - position).toInt())
+            while (buffer.hasRemaining()) {
+                val bytes = read(buffer, position + buffer.position())
+                if (bytes < 0) throw EOFException("Expect ${buffer.remaining()} more bytes")
+            }
+        }
+
+        fun read(channel: FileChannel, offset: Long, length: Long): DeltaPatch? {
+            val slice = FileChannelSlice(channel, offset, length)
+            return runCatching {
+                DataInputStream(Channels.newInputStream(slice)).run {
+                    if (readInt() != MAGIC) return null
+                    check(readInt() == VERSION) { "Expect version $VERSION" }
+                    val packageName = readUTF()
+                    val baseVersionCode = readLong()
+                    val targetVersionCode = readLong()
+                    val targetVersionName = readUTF()
+                    val baseSha256 = ByteArray(SHA_256_SIZE).also(::readFully)
+                    val targetSha256 = ByteArray(SHA_256_SIZE).also(::readFully)
+                    val targetSize = readLong()
+                    val headerSize = slice.position()
+
+                    DeltaPatch(
+                        packageName = packageName,
+                        baseVersionCode = baseVersionCode,
+                        targetVersionCode = targetVersionCode,
+                        targetVersionName = targetVersionName,
+                        baseSha256 = baseSha256,
+                        targetSha256 = targetSha256,
+                        targetSize = targetSize,
+                        payloadOffset = offset + headerSize,
+                        payloadLength = length - headerSize
+                    )
+                }
+            }.getOrNull()
+        }
+
+        fun read(fd: AssetFileDescriptor) = fd.openChannel().use { channel ->
+            read(channel, fd.startOffset, fd.lengthOf(channel))
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package dev.sanmer.pi.core.parser
+
+import android.content.pm.ApplicationInfo
+import android.content.res.AssetFileDescriptor
+import dev.sanmer.pi.core.ktx.FileChannelSlice
+import dev.sanmer.pi.core.ktx.ZipIndex
+import dev.sanmer.pi.core.ktx.lengthOf
+import dev.sanmer.pi.core.ktx.openChannel
+import dev.sanmer.pi.core.parser.ApkSigningBlock.Default.readSigningBlock
+import java.io.FileInputStream
+import java.nio.channels.SeekableByteChannel
+
+class InheritPlan(
+    val changed: List<String>,
+    val changedBytes: Long,
+    val removedSplits: List<String>
+) {
+    val isUnchanged get() = changed.isEmpty() && removedSplits.isEmpty()
+
+    private class Fingerprint(
+        val size: Long,
+        val digests: Map<Int, ByteArray>
+    ) {
+        fun matches(other: Fingerprint) = size == other.size && digests.any { (id, value) ->
+            other.digests[id]?.contentEquals(value) == true
+        }
+    }
+
+    companion object Default {
+        private const val BASE_SPLIT = ""
+
+        private fun SeekableByteChannel.fingerprint() = readSigningBlock()?.let {
+            Fingerprint(size(), it.digests)
+        }
+
+        private fun fingerprint(path: String) = runCatching {
+            FileInputStream(path).channel.use { it.fingerprint() }
+        }.getOrNull()
+
+        fun from(
+            fd: AssetFileDescriptor,
+            fileNames: List<String>,
+            installed: ApplicationInfo
+        ): InheritPlan? {
+            val sourceDir = installed.sourceDir ?: return null
+            val installedSplits = installed.splitNames.orEmpty()
+                .zip(installed.splitSourceDirs.orEmpty())
+                .toMap()
+
+            if (fileNames.isEmpty()) {
+                if (installedSplits.isNotEmpty()) return null
+                val incoming = fd.openChannel().use { channel ->
+                    FileChannelSlice(channel, fd.startOffset, fd.lengthOf(channel)).fingerprint()
+                } ?: return null
+                val current = fingerprint(sourceDir) ?: return null
+                return if (incoming.matches(current)) InheritPlan(emptyList(), 0, emptyList()) else null
+            }
+
+            val fingerprints = installedSplits.mapValues { (_, path) -> fingerprint(path) } +
+                    (BASE_SPLIT to fingerprint(sourceDir))
+
+            return ZipIndex.open(fd).use { zip ->
+                val changed = mutableListOf<String>()
+                var changedBytes = 0L
+                val kept = mutableSetOf<String>()
+
+                fileNames.forEach { name ->
+                    val index = zip.find(name) ?: return null
+                    val incoming = if (zip.isStored(index)) zip.slice(index).fingerprint() else null
+
+                    val match = fingerprints.entries.firstOrNull { (_, current) ->
+                        incoming != null && current != null && incoming.matches(current)
+                    }
+                    if (match != null) {
+                        kept.add(match.key)
+                        return@forEach
+                    }
+
+                    val splitName = if (name == PackageParser.BASE_APK) {
+                        BASE_SPLIT
+                    } else {
+                        runCatching {
+                            PackageParser.loadSplitLite(zip.inputStream(index)).splitName
+                        }.getOrElse { return null }
+                    }
+                    kept.add(splitName)
+                    changed.add(name)
+                    changedBytes += zip.size(index)
+                }
+
+                if (BASE_SPLIT !in kept) return null
+                InheritPlan(
+                    changed = changed,
+                    changedBytes = changedBytes,
+                    removedSplits = installedSplits.keys.filterNot { it in kept }
+                )
+            }
+        }
+    }
+}
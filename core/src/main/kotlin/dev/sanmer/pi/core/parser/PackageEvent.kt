@@ -0,0 +1,35 @@
+package dev.sanmer.pi.core.parser
+
+import android.os.Parcelable
+import kotlinx.parcelize.Parcelize
+
+/**
+ * Progress of [PackageParser.loadPackageAsFlow], in the order it becomes available.
+ *
+ * [fileName] is `null` for a single APK, otherwise the entry name within the archive.
+ */
+sealed interface PackageEvent : Parcelable {
+    /** Identity read from the manifest alone; label and icon are not resolved yet. */
+    @Parcelize
+    data class Manifest(
+        val fileName: String?,
+        val apk: IPackageInfo.Apk
+    ) : PackageEvent
+
+    @Parcelize
+    data class Split(
+        val splitConfig: SplitConfig
+    ) : PackageEvent
+
+    /** The same package with its label and icon resolved. */
+    @Parcelize
+    data class Resolved(
+        val fileName: String?,
+        val apk: IPackageInfo.Apk
+    ) : PackageEvent
+
+    @Parcelize
+    data class Loaded(
+        val packageInfo: IPackageInfo
+    ) : PackageEvent
+}
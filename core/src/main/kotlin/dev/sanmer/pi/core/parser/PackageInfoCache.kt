@@ -0,0 +1,269 @@
+package dev.sanmer.pi.core.parser
+
+import android.content.res.AssetFileDescriptor
+import android.content.res.Resources
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.LocaleList
+import android.util.Log
+import dev.sanmer.pi.core.compat.ContextCompat
+import dev.sanmer.pi.core.ktx.CentralDirectory.Default.findCentralDirectory
+import dev.sanmer.pi.core.ktx.FileChannelSlice
+import dev.sanmer.pi.core.ktx.lengthOf
+import dev.sanmer.pi.core.ktx.openChannel
+import dev.sanmer.pi.core.parser.SplitConfig.Default.localizedDisplayName
+import dev.sanmer.pi.core.res.IconCache
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.Locale
+import java.util.zip.CRC32
+
+class PackageInfoCache(
+    private val dir: File = File(ContextCompat.getContext().cacheDir, "package_info"),
+    private val maxSizeBytes: Long = 32L * 1024 * 1024
+) {
+    suspend fun getOrPut(
+        fd: AssetFileDescriptor,
+        block: suspend () -> IPackageInfo
+    ): IPackageInfo {
+        val key = runCatching { fingerprint(fd) }.getOrNull() ?: return block()
+        val file = File(dir, key)
+        val cached = runCatching { get(file) }
+            .onFailure { file.delete() }
+            .getOrNull()
+        if (cached != null) return cached
+
+        return block().also { value ->
+            runCatching { put(file, value) }
+                .onFailure {
+                    Log.w(TAG, "Failed to cache $key: ${it.message}")
+                    file.delete()
+                }
+        }
+    }
+
+    fun clear() {
+        dir.listFiles()?.forEach { it.delete() }
+    }
+
+    private fun get(file: File): IPackageInfo? {
+        if (!file.isFile) return null
+        val value = DataInputStream(file.inputStream().buffered()).use { input ->
+            check(input.readInt() == MAGIC) { "Expect magic" }
+            check(input.readInt() == VERSION) { "Expect version $VERSION" }
+            input.readPackageInfo()
+        }
+        file.setLastModified(System.currentTimeMillis())
+        return value
+    }
+
+    private fun put(file: File, value: IPackageInfo) {
+        dir.mkdirs()
+        val temp = File(dir, "${file.name}.tmp")
+        DataOutputStream(temp.outputStream().buffered()).use { output ->
+            output.writeInt(MAGIC)
+            output.writeInt(VERSION)
+            output.writePackageInfo(value)
+        }
+        check(temp.renameTo(file)) { "Failed to rename $temp" }
+        trim()
+    }
+
+    @Synchronized
+    private fun trim() {
+        val files = dir.listFiles()?.sortedByDescending { it.lastModified() } ?: return
+        var sizeBytes = 0L
+        files.forEach { file ->
+            sizeBytes += file.length()
+            if (sizeBytes > maxSizeBytes) file.delete()
+        }
+    }
+
+    private fun fingerprint(fd: AssetFileDescriptor) = fd.openChannel().use { channel ->
+        fingerprint(channel, fd.startOffset, fd.lengthOf(channel))
+    }
+
+    private fun fingerprint(channel: FileChannel, offset: Long, length: Long): String? {
+        val cd = FileChannelSlice(channel, offset, length).findCentralDirectory()
+            ?: return null
+
+        val crc = CRC32()
+        val buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE)
+        var position = offset + cd.offset
+        val end = position + cd.size
+        while (position < end) {
+            buffer.clear().limit(minOf(buffer.capacity().toLong(), end - position).toInt())
+            val bytes = channel.read(buffer, position)
+            if (bytes <= 0) return null
+            crc.update(buffer.array(), 0, bytes)
+            position += bytes
+        }
+
+        val locales = LocaleList.getDefault().toLanguageTags()
+        val densityDpi = Resources.getSystem().displayMetrics.densityDpi
+        return "%016x-%016x-%08x-%s-%d".format(
+            Locale.ROOT, length, cd.offset, crc.value, locales, densityDpi
+        )
+    }
+
+    private fun DataOutputStream.writeBitmap(value: Bitmap?) {
+        if (value == null) return writeInt(-1)
+        val bytes = ByteArrayOutputStream().also {
+            value.compress(Bitmap.CompressFormat.PNG, 100, it)
+        }.toByteArray()
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    private fun DataInputStream.readBitmap(): Bitmap? {
+        val size = readInt()
+        if (size < 0) return null
+        val bytes = ByteArray(size).also(::readFully)
+        return BitmapFactory.decodeByteArray(bytes, 0, size)
+    }
+
+    private fun DataOutputStream.writePackageInfoLite(value: PackageInfoLite) {
+        writeUTF(value.packageName)
+        writeInt(value.versionCode)
+        writeInt(value.versionCodeMajor)
+        writeUTF(value.versionName)
+        writeInt(value.compileSdkVersion)
+        writeUTF(value.compileSdkVersionCodename)
+        writeInt(value.minSdkVersion)
+        writeInt(value.targetSdkVersion)
+        writeBoolean(value.label != null)
+        value.label?.let(::writeUTF)
+        writeBoolean(value.iconKey != null)
+        value.iconKey?.let(::writeUTF)
+        writeBitmap(value.icon)
+    }
+
+    private fun DataInputStream.readPackageInfoLite() = PackageInfoLite(
+        packageName = readUTF(),
+        versionCode = readInt(),
+        versionCodeMajor = readInt(),
+        versionName = readUTF(),
+        compileSdkVersion = readInt(),
+        compileSdkVersionCodename = readUTF(),
+        minSdkVersion = readInt(),
+        targetSdkVersion = readInt(),
+        label = if (readBoolean()) readUTF() else null,
+        iconKey = if (readBoolean()) readUTF() else null
+    ).also { value ->
+        val icon = readBitmap()
+        if (value.iconKey != null && icon != null) IconCache.getOrPut(value.iconKey) { icon }
+    }
+
+    private fun DataOutputStream.writeApk(value: IPackageInfo.Apk) {
+        writePackageInfoLite(value.packageInfo)
+        writeLong(value.sizeBytes)
+    }
+
+    private fun DataInputStream.readApk() = IPackageInfo.Apk(
+        packageInfo = readPackageInfoLite(),
+        sizeBytes = readLong()
+    )
+
+    private fun DataOutputStream.writeSplitConfig(value: SplitConfig) {
+        writeUTF(value.fileName)
+        writeLong(value.sizeBytes)
+        writeUTF(value.name)
+        writeUTF(value.configForSplit)
+        when (val type = value.type) {
+            SplitConfig.Type.Feature -> writeUTF(TYPE_FEATURE)
+            is SplitConfig.Type.Abi -> writeUTF(TYPE_ABI).also { writeUTF(type.abi.name) }
+            is SplitConfig.Type.Density -> writeUTF(TYPE_DENSITY).also { writeUTF(type.density.name) }
+            is SplitConfig.Type.Language -> writeUTF(TYPE_LANGUAGE).also { writeUTF(type.locale.toLanguageTag()) }
+            SplitConfig.Type.AssetPack -> writeUTF(TYPE_ASSET_PACK)
+            else -> writeUTF(TYPE_UNSPECIFIED)
+        }
+    }
+
+    private fun DataInputStream.readSplitConfig(): SplitConfig {
+        val fileName = readUTF()
+        val sizeBytes = readLong()
+        val name = readUTF()
+        val configForSplit = readUTF()
+        val type = when (readUTF()) {
+            TYPE_FEATURE -> SplitConfig.Type.Feature
+            TYPE_ABI -> SplitConfig.Type.Abi(SplitConfig.Abi.valueOf(readUTF()))
+            TYPE_DENSITY -> SplitConfig.Type.Density(SplitConfig.Density.valueOf(readUTF()))
+            TYPE_LANGUAGE -> SplitConfig.Type.Language(Locale.forLanguageTag(readUTF()))
+            TYPE_ASSET_PACK -> SplitConfig.Type.AssetPack
+            else -> SplitConfig.Type.Unspecified
+        }
+
+        return SplitConfig.from(
+            type = type,
+            name = if (type is SplitConfig.Type.Language) type.locale.localizedDisplayName else name,
+            configForSplit = configForSplit,
+            fileName = fileName,
+            sizeBytes = sizeBytes
+        )
+    }
+
+    private fun DataOutputStream.writePackageInfo(value: IPackageInfo) {
+        when (value) {
+            is IPackageInfo.Apk -> {
+                writeByte(TAG_APK)
+                writeApk(value)
+            }
+
+            is IPackageInfo.Apks -> {
+                writeByte(TAG_APKS)
+                writeApk(value.base)
+                writeInt(value.splitConfigs.size)
+                value.splitConfigs.forEach { writeSplitConfig(it) }
+            }
+
+            is IPackageInfo.Zip -> {
+                writeByte(TAG_ZIP)
+                writeInt(value.packageInfos.size)
+                value.packageInfos.forEach { (name, apk) ->
+                    writeUTF(name)
+                    writeApk(apk)
+                }
+            }
+        }
+    }
+
+    private fun DataInputStream.readPackageInfo(): IPackageInfo {
+        return when (val tag = readByte().toInt()) {
+            TAG_APK -> readApk()
+
+            TAG_APKS -> IPackageInfo.Apks(
+                base = readApk(),
+                splitConfigs = List(readInt()) { readSplitConfig() }
+            )
+
+            TAG_ZIP -> IPackageInfo.Zip(
+                linkedMapOf<String, IPackageInfo.Apk>().apply {
+                    repeat(readInt()) { put(readUTF(), readApk()) }
+                }
+            )
+
+            else -> throw IllegalStateException("Unknown tag $tag")
+        }
+    }
+
+    private companion object Default {
+        const val TAG = "PackageInfoCache"
+        const val MAGIC = 0x50494343
+        const val VERSION = 5
+
+        const val TAG_APK = 0
+        const val TAG_APKS = 1
+        const val TAG_ZIP = 2
+
+        const val TYPE_FEATURE = "feature"
+        const val TYPE_ABI = "abi"
+        const val TYPE_DENSITY = "density"
+        const val TYPE_LANGUAGE = "language"
+        const val TYPE_ASSET_PACK = "asset_pack"
+        const val TYPE_UNSPECIFIED = "unspecified"
+    }
+}
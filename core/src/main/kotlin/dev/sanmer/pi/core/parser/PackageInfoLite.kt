@@ -2,7 +2,6 @@ package dev.sanmer.pi.core.parser
 
 import android.content.Context
 import android.content.pm.PackageInfo
-import android.content.res.Resources
 import android.graphics.Bitmap
 import android.os.Parcelable
 import dev.sanmer.pi.core.compat.PackageInfoCompat
@@ -14,6 +13,7 @@ import dev.sanmer.pi.core.compat.PackageInfoCompat.minSdkVersion
 import dev.sanmer.pi.core.compat.PackageInfoCompat.targetSdkVersion
 import dev.sanmer.pi.core.compat.PackageInfoCompat.versionCodeMajor
 import dev.sanmer.pi.core.parser.ResourceParser.toIcon
+import dev.sanmer.pi.core.res.IconCache
 import kotlinx.parcelize.IgnoredOnParcel
 import kotlinx.parcelize.Parcelize
 
@@ -28,7 +28,7 @@ data class PackageInfoLite(
     val minSdkVersion: Int,
     val targetSdkVersion: Int,
     val label: String?,
-    val icon: Bitmap?
+    val iconKey: String?
 ) : Parcelable {
     @IgnoredOnParcel
     val longVersionCode by lazy {
@@ -43,11 +43,13 @@ data class PackageInfoLite(
     }
 
     @IgnoredOnParcel
-    val iconOrDefault by lazy {
-        icon ?: Resources.getSystem()
-            .getDrawable(android.R.drawable.sym_def_app_icon, null)
-            .toIcon()
-    }
+    private var iconRef: Bitmap? = null
+
+    val icon: Bitmap?
+        get() = iconRef ?: iconKey?.let(IconCache::get)?.also { iconRef = it }
+
+    val iconOrDefault: Bitmap
+        get() = icon ?: IconCache.default
 
     companion object Default {
         fun from(
@@ -63,7 +65,13 @@ data class PackageInfoLite(
             minSdkVersion = packageInfo.minSdkVersion,
             targetSdkVersion = packageInfo.targetSdkVersion,
             label = packageInfo.loadLabel(context),
-            icon = packageInfo.loadUnbadgedIcon(context)?.toIcon()
+            iconKey = IconCache.key(
+                packageName = packageInfo.packageName,
+                longVersionCode = packageInfo.longVersionCode,
+                resId = packageInfo.applicationInfo?.icon ?: 0
+            ).takeIf { key ->
+                IconCache.getOrPut(key) { packageInfo.loadUnbadgedIcon(context)?.toIcon() } != null
+            }
         )
     }
 }
\ No newline at end of file
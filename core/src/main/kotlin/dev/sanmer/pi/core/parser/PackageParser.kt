@@ -4,25 +4,47 @@ import android.content.res.AssetFileDescriptor
 import dev.sanmer.pi.core.compat.AssetManagerCompat
 import dev.sanmer.pi.core.compat.AssetManagerCompat.resources
 import dev.sanmer.pi.core.compat.AssetManagerCompat.setApkAssets
-import dev.sanmer.pi.core.compat.ContextCompat
+import dev.sanmer.pi.core.compat.BuildCompat
 import dev.sanmer.pi.core.compat.XmlBlockCompat
+import dev.sanmer.pi.core.ktx.EntryInputStream
+import dev.sanmer.pi.core.ktx.OuterCompression
+import dev.sanmer.pi.core.ktx.ZipIndex
+import dev.sanmer.pi.core.ktx.archive
 import dev.sanmer.pi.core.ktx.find
+import dev.sanmer.pi.core.ktx.openChannel
 import dev.sanmer.pi.core.res.ApkAssetsSource
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.flowOn
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream
-import org.apache.commons.compress.archivers.zip.ZipFile
 import java.io.FileNotFoundException
 import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.io.readBytes
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.TimeSource
+import kotlin.time.measureTimedValue
 import kotlin.use
 
 object PackageParser {
     const val BASE_APK = "base.apk"
+    internal const val MAX_ICON_SIZE_BYTES = 4L * 1024 * 1024
 
-    private val cacheDir by lazy { ContextCompat.getContext().cacheDir }
+    private val defaultParallelism get() = Runtime.getRuntime().availableProcessors()
 
-    fun loadSplitLite(fd: AssetFileDescriptor) = ApkAssetsSource.Fd(fd).use { source ->
+    private val AssetFileDescriptor.sizeBytes
+        get() = if (length >= 0) length else parcelFileDescriptor.statSize - startOffset
+
+    fun loadSplitLite(source: ApkAssetsSource): SplitConfigLite {
         val asset = source.get()
-        asset.openXml(ResourceParser.ANDROID_MANIFEST).use {
+        return asset.openXml(ResourceParser.ANDROID_MANIFEST).use {
             ResourceParser.parseSplit(it)
         }.also {
             require(it.versionCode > 0) { "Expect versionCode" }
@@ -30,10 +52,16 @@ object PackageParser {
         }
     }
 
+    fun loadSplitLite(fd: AssetFileDescriptor) = ApkAssetsSource.Fd(fd)
+        .use(::loadSplitLite)
+
     fun loadSplitLite(stream: InputStream) = ZipArchiveInputStream(stream).use { zip ->
         zip.find(ResourceParser.ANDROID_MANIFEST)
-        XmlBlockCompat.newParser(zip.readBytes()).use {
-            ResourceParser.parseSplit(it)
+        val data = zip.readBytes()
+        runCatching {
+            ResourceParser.parseSplit(BinaryXmlParser(data))
+        }.getOrElse {
+            XmlBlockCompat.newParser(data).use(ResourceParser::parseSplit)
         }.also {
             require(it.versionCode > 0) { "Expect versionCode" }
             require(it.splitName.isNotEmpty()) { "Expect splitName" }
@@ -45,70 +73,324 @@ object PackageParser {
         val assets = AssetManagerCompat.new()
         assets.setApkAssets(arrayOf(asset), false)
         return asset.openXml(ResourceParser.ANDROID_MANIFEST).use {
-            ResourceParser.parsePackage(it, assets.resources)
+            ResourceParser.parsePackage(it, ResourceParser.ResourcesResolver(assets.resources))
         }.also {
             require(it.versionCode > 0) { "Expect versionCode" }
             require(it.packageName.isNotEmpty()) { "Expect packageName" }
         }
     }
 
-    fun loadPackageLite(fd: AssetFileDescriptor) = ApkAssetsSource.Fd(fd)
-        .use(::loadPackageLite)
-
-    fun loadPackageLite(stream: InputStream) = ApkAssetsSource.Stream(stream, cacheDir)
-        .use(::loadPackageLite)
+    private fun loadPackageLite(
+        channel: FileChannel,
+        offset: Long,
+        length: Long
+    ) = ZipIndex(channel, offset, length).let { zip ->
+        val xml = zip.find(ResourceParser.ANDROID_MANIFEST)
+            ?: throw FileNotFoundException(ResourceParser.ANDROID_MANIFEST)
+        val table = zip.find(ResourceParser.RESOURCES_ARSC)?.let {
+            if (zip.isStored(it)) {
+                channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    offset + zip.dataOffset(it),
+                    zip.size(it)
+                )
+            } else {
+                ByteBuffer.wrap(zip.inputStream(it).use(InputStream::readBytes))
+            }
+        }?.let(::ResourceTableParser)
 
-    fun loadApks(zip: ZipFile): IPackageInfo.Apks? {
-        val entry = zip.getEntry(BASE_APK) ?: return null
-        val packageInfo = loadPackageLite(zip.getInputStream(entry))
-        val base = IPackageInfo.Apk(
-            packageInfo = packageInfo,
-            sizeBytes = entry.size
+        ResourceParser.parsePackage(
+            parser = BinaryXmlParser(zip.inputStream(xml).use(InputStream::readBytes)),
+            resolver = ResourceParser.TableResolver(table) { path ->
+                zip.find(path)
+                    ?.takeIf { zip.size(it) <= MAX_ICON_SIZE_BYTES }
+                    ?.let { zip.inputStream(it).use(InputStream::readBytes) }
+            }
         )
+    }.also {
+        require(it.versionCode > 0) { "Expect versionCode" }
+        require(it.packageName.isNotEmpty()) { "Expect packageName" }
+    }
 
-        val splitConfigs = mutableListOf<SplitConfig>()
-        zip.entries.iterator().forEach { entry ->
-            if (entry.name.endsWith(".apk") && entry.name != BASE_APK) runCatching {
-                splitConfigs.add(
-                    SplitConfig.from(
-                        splitConfig = loadSplitLite(zip.getInputStream(entry)),
-                        fileName = entry.name,
-                        sizeBytes = entry.size
-                    )
-                )
+    private fun loadPackageLiteOrNull(
+        fd: AssetFileDescriptor,
+        offset: Long,
+        length: Long
+    ) = runCatching {
+        fd.openChannel().use { channel ->
+            val size = if (length >= 0) length else channel.size() - offset
+            loadPackageLite(channel, offset, size)
+        }
+    }.getOrNull()
+
+    fun loadPackageLite(fd: AssetFileDescriptor) =
+        loadPackageLiteOrNull(fd, fd.startOffset, fd.length)
+            ?: ApkAssetsSource.Fd(fd).use(::loadPackageLite)
+
+    fun loadPackageLite(stream: InputStream) = stream.loadStreamingApk().finish()
+
+    private fun InputStream.loadStreamingApk() = archive().use { zip ->
+        val apk = StreamingApk()
+        while (!apk.isComplete) {
+            val entry = zip.nextEntry ?: break
+            apk.accept(entry.name, zip)
+        }
+        apk
+    }
+
+    private fun ZipIndex.loadSplitLite(index: Int, fd: AssetFileDescriptor) =
+        if (BuildCompat.atLeastR && isStored(index)) {
+            ApkAssetsSource.Entry(fd, dataOffset(index), size(index))
+                .use(::loadSplitLite)
+        } else {
+            loadSplitLite(inputStream(index))
+        }
+
+    private fun ZipIndex.loadPackageLite(
+        index: Int,
+        fd: AssetFileDescriptor
+    ): PackageInfoLite {
+        if (!isStored(index)) return loadPackageLite(inputStream(index))
+        val offset = dataOffset(index)
+        return loadPackageLiteOrNull(fd, fd.startOffset + offset, size(index))
+            ?: if (BuildCompat.atLeastR) {
+                ApkAssetsSource.Entry(fd, offset, size(index))
+                    .use(::loadPackageLite)
+            } else {
+                loadPackageLite(inputStream(index))
+            }
+    }
+
+    private fun ZipIndex.loadManifest(): PackageInfoLite? = runCatching {
+        val index = find(ResourceParser.ANDROID_MANIFEST) ?: return null
+        val data = inputStream(index).use(InputStream::readBytes)
+        ResourceParser.parsePackage(BinaryXmlParser(data))
+    }.getOrNull()?.takeIf { it.packageName.isNotEmpty() }
+
+    private fun ZipIndex.loadManifest(index: Int): PackageInfoLite? = runCatching {
+        if (isStored(index)) {
+            nested(index).loadManifest()
+        } else {
+            ZipArchiveInputStream(inputStream(index)).use { zip ->
+                zip.find(ResourceParser.ANDROID_MANIFEST)
+                ResourceParser.parsePackage(BinaryXmlParser(zip.readBytes()))
+                    .takeIf { it.packageName.isNotEmpty() }
             }
         }
+    }.getOrNull()
 
-        return IPackageInfo.Apks(
-            base = base,
-            splitConfigs = splitConfigs
-        )
+    private suspend fun <T> List<Int>.parallelMap(
+        parallelism: Int,
+        onTiming: (Timing) -> Unit,
+        transform: suspend (Int) -> T
+    ): List<Result<T>> = coroutineScope {
+        val dispatcher = Dispatchers.IO.limitedParallelism(parallelism)
+        val busy = AtomicLong(0)
+        val mark = TimeSource.Monotonic.markNow()
+        map { entry ->
+            async(dispatcher) {
+                val (result, elapsed) = measureTimedValue { runCatching { transform(entry) } }
+                busy.addAndGet(elapsed.inWholeNanoseconds)
+                result
+            }
+        }.awaitAll().also {
+            onTiming(
+                Timing(
+                    entries = size,
+                    parallelism = parallelism,
+                    elapsed = mark.elapsedNow(),
+                    busy = busy.get().nanoseconds
+                )
+            )
+        }
     }
 
-    fun loadPackage(fd: AssetFileDescriptor) = ZipFile.builder()
-        .setIgnoreLocalFileHeader(true)
-        .setSeekableByteChannel(fd.createInputStream().channel)
-        .get().use { zip ->
-            val xml = zip.getEntry(ResourceParser.ANDROID_MANIFEST)
-            if (xml != null) return@use IPackageInfo.Apk(
-                packageInfo = loadPackageLite(fd),
-                sizeBytes = fd.length
+    private suspend fun loadApks(
+        zip: ZipIndex,
+        fd: AssetFileDescriptor,
+        parallelism: Int,
+        onTiming: (Timing) -> Unit,
+        onEvent: suspend (PackageEvent) -> Unit
+    ): IPackageInfo.Apks? {
+        val base = zip.find(BASE_APK) ?: return null
+        val entries = (0 until zip.size).filter {
+            val name = zip.name(it)
+            name.endsWith(".apk") && name != BASE_APK
+        }
+
+        zip.loadManifest(base)?.let {
+            val apk = IPackageInfo.Apk(packageInfo = it, sizeBytes = zip.size(base))
+            onEvent(PackageEvent.Manifest(BASE_APK, apk))
+        }
+
+        return coroutineScope {
+            val apk = async(Dispatchers.IO) {
+                IPackageInfo.Apk(
+                    packageInfo = zip.loadPackageLite(base, fd),
+                    sizeBytes = zip.size(base)
+                ).also { onEvent(PackageEvent.Resolved(BASE_APK, it)) }
+            }
+            val splitConfigs = entries.parallelMap(parallelism, onTiming) {
+                SplitConfig.from(
+                    splitConfig = zip.loadSplitLite(it, fd),
+                    fileName = zip.name(it),
+                    sizeBytes = zip.size(it)
+                ).also { onEvent(PackageEvent.Split(it)) }
+            }
+
+            IPackageInfo.Apks(
+                base = apk.await(),
+                splitConfigs = splitConfigs.mapNotNull { it.getOrNull() }
             )
+        }
+    }
+
+    /**
+     * Reads the decoded archive once: entries of an outer APK are collected as they pass,
+     * nested APKs are parsed from their entry streams and classified by their manifest.
+     */
+    private suspend fun loadCompressed(
+        fd: AssetFileDescriptor,
+        compression: OuterCompression,
+        parallelism: Int,
+        onEvent: suspend (PackageEvent) -> Unit
+    ): IPackageInfo = compression.decode(fd, parallelism).use { stream ->
+        val decoded = EntryInputStream(stream)
+        val outer = StreamingApk()
+        var base: IPackageInfo.Apk? = null
+        val splits = mutableListOf<SplitConfig>()
+        val packageInfos = linkedMapOf<String, IPackageInfo.Apk>()
+        decoded.archive().use { zip ->
+            while (true) {
+                val entry = zip.nextEntry ?: break
+                if (!entry.name.endsWith(".apk")) {
+                    outer.accept(entry.name, zip)
+                    continue
+                }
+                if (outer.hasManifest) continue
 
-            val packageInfo = loadApks(zip)
-            if (packageInfo != null) return@use packageInfo
+                val input = EntryInputStream(zip)
+                if (entry.name == BASE_APK) {
+                    val packageInfo = input.loadStreamingApk().finish()
+                    base = IPackageInfo.Apk(
+                        packageInfo = packageInfo,
+                        sizeBytes = input.drain()
+                    ).also { onEvent(PackageEvent.Resolved(BASE_APK, it)) }
+                    continue
+                }
 
-            val packageInfos = hashMapOf<String, IPackageInfo.Apk>()
-            zip.entries.iterator().forEach { entry ->
-                if (entry.name.endsWith(".apk")) runCatching {
+                val apk = runCatching { input.loadStreamingApk() }.getOrNull() ?: continue
+                val splitConfig = apk.splitConfig
+                if (splitConfig != null) {
+                    SplitConfig.from(
+                        splitConfig = splitConfig,
+                        fileName = entry.name,
+                        sizeBytes = input.drain()
+                    ).also {
+                        splits.add(it)
+                        onEvent(PackageEvent.Split(it))
+                    }
+                } else {
+                    val packageInfo = runCatching { apk.finish() }.getOrNull() ?: continue
                     packageInfos[entry.name] = IPackageInfo.Apk(
-                        packageInfo = loadPackageLite(zip.getInputStream(entry)),
-                        sizeBytes = entry.size,
-                    )
+                        packageInfo = packageInfo,
+                        sizeBytes = input.drain()
+                    ).also { onEvent(PackageEvent.Resolved(entry.name, it)) }
                 }
             }
+        }
+
+        when {
+            outer.hasManifest -> IPackageInfo.Apk(
+                packageInfo = outer.finish(),
+                sizeBytes = decoded.drain()
+            ).also { onEvent(PackageEvent.Resolved(null, it)) }
+
+            base != null -> IPackageInfo.Apks(
+                base = checkNotNull(base),
+                splitConfigs = splits
+            )
+
+            packageInfos.isNotEmpty() -> IPackageInfo.Zip(packageInfos)
+
+            else -> throw FileNotFoundException("*.apk")
+        }
+    }
+
+    private suspend fun load(
+        fd: AssetFileDescriptor,
+        parallelism: Int,
+        onTiming: (Timing) -> Unit,
+        onEvent: suspend (PackageEvent) -> Unit
+    ): IPackageInfo {
+        val compression = OuterCompression.detect(fd)
+        if (compression != null) return loadCompressed(fd, compression, parallelism, onEvent)
+        return ZipIndex.open(fd).use { zip -> load(zip, fd, parallelism, onTiming, onEvent) }
+    }
+
+    private suspend fun load(
+        zip: ZipIndex,
+        fd: AssetFileDescriptor,
+        parallelism: Int,
+        onTiming: (Timing) -> Unit,
+        onEvent: suspend (PackageEvent) -> Unit
+    ): IPackageInfo {
+        if (zip.find(ResourceParser.ANDROID_MANIFEST) != null) {
+            zip.loadManifest()?.let {
+                val apk = IPackageInfo.Apk(packageInfo = it, sizeBytes = fd.sizeBytes)
+                onEvent(PackageEvent.Manifest(null, apk))
+            }
+            return IPackageInfo.Apk(
+                packageInfo = loadPackageLite(fd),
+                sizeBytes = fd.sizeBytes
+            ).also { onEvent(PackageEvent.Resolved(null, it)) }
+        }
+
+        val packageInfo = loadApks(zip, fd, parallelism, onTiming, onEvent)
+        if (packageInfo != null) return packageInfo
 
-            if (packageInfos.isEmpty()) throw FileNotFoundException("*.apk")
-            IPackageInfo.Zip(packageInfos)
+        val entries = (0 until zip.size).filter { zip.name(it).endsWith(".apk") }
+        val results = entries.parallelMap(parallelism, onTiming) {
+            IPackageInfo.Apk(
+                packageInfo = zip.loadPackageLite(it, fd),
+                sizeBytes = zip.size(it),
+            ).also { apk -> onEvent(PackageEvent.Resolved(zip.name(it), apk)) }
         }
-}
\ No newline at end of file
+
+        val packageInfos = linkedMapOf<String, IPackageInfo.Apk>()
+        entries.zip(results).forEach { (index, result) ->
+            result.onSuccess { packageInfos[zip.name(index)] = it }
+        }
+
+        if (packageInfos.isEmpty()) throw FileNotFoundException("*.apk")
+        return IPackageInfo.Zip(packageInfos)
+    }
+
+    suspend fun loadPackage(
+        fd: AssetFileDescriptor,
+        parallelism: Int = defaultParallelism,
+        onTiming: (Timing) -> Unit = {}
+    ) = load(fd, parallelism, onTiming) {}
+
+    /**
+     * Like [loadPackage], but emits the manifest of the base package first, then each
+     * split as it is classified, then the resolved label and icon, and finally [PackageEvent.Loaded].
+     */
+    fun loadPackageAsFlow(
+        fd: AssetFileDescriptor,
+        parallelism: Int = defaultParallelism,
+        onTiming: (Timing) -> Unit = {}
+    ): Flow<PackageEvent> = channelFlow {
+        val packageInfo = load(fd, parallelism, onTiming) { send(it) }
+        send(PackageEvent.Loaded(packageInfo))
+    }.flowOn(Dispatchers.IO)
+
+    data class Timing(
+        val entries: Int,
+        val parallelism: Int,
+        val elapsed: Duration,
+        val busy: Duration
+    ) {
+        val speedup get() = if (elapsed.isPositive()) busy / elapsed else 1.0
+    }
+}
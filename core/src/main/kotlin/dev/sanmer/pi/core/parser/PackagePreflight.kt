@@ -0,0 +1,177 @@
+package dev.sanmer.pi.core.parser
+
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.content.res.AssetFileDescriptor
+import android.os.Build
+import android.os.SystemProperties
+import android.os.storage.StorageManager
+import android.util.Log
+import dev.sanmer.pi.core.compat.ContextCompat
+import dev.sanmer.pi.core.compat.PackageInfoCompat.isNotEmpty
+import dev.sanmer.pi.core.delegate.PackageManagerDelegate
+import dev.sanmer.pi.core.ktx.FileChannelSlice
+import dev.sanmer.pi.core.ktx.ZipIndex
+import dev.sanmer.pi.core.ktx.lengthOf
+import dev.sanmer.pi.core.ktx.openChannel
+import dev.sanmer.pi.core.parser.ApkSigningBlock.Default.readSigningBlock
+import java.nio.channels.FileChannel
+
+class PackagePreflight(
+    private val pm: PackageManagerDelegate,
+    private val userId: Int
+) {
+    private val storageManager by lazy {
+        ContextCompat.getContext().getSystemService(StorageManager::class.java)
+    }
+
+    /**
+     * [allowDowngrade] is set when the session requests a downgrade the installer is
+     * privileged to perform, otherwise only debuggable builds or packages may downgrade.
+     */
+    fun analyze(
+        fd: AssetFileDescriptor,
+        packageInfo: PackageInfoLite,
+        fileNames: List<String> = emptyList(),
+        allowDowngrade: Boolean = false
+    ): List<Verdict> {
+        val verdicts = mutableListOf<Verdict>()
+        if (packageInfo.minSdkVersion > Build.VERSION.SDK_INT) {
+            verdicts.add(Verdict.MinSdk(packageInfo.minSdkVersion, Build.VERSION.SDK_INT))
+        }
+
+        val scan = runCatching { scan(fd, fileNames) }
+            .onFailure { Log.w(TAG, "Failed to scan ${packageInfo.packageName}: ${it.message}") }
+            .getOrNull()
+
+        if (scan != null && scan.abis.isNotEmpty() && scan.abis.none { it in Build.SUPPORTED_ABIS }) {
+            verdicts.add(Verdict.Abi(scan.abis.toList(), Build.SUPPORTED_ABIS.toList()))
+        }
+
+        val installed = runCatching {
+            pm.getPackageInfo(
+                packageInfo.packageName,
+                PackageManager.GET_SIGNING_CERTIFICATES,
+                userId
+            )
+        }.getOrNull()?.takeIf { it.isNotEmpty } ?: return verdicts
+
+        if (installed.longVersionCode > packageInfo.longVersionCode &&
+            !allowDowngrade && !installed.isDowngradable
+        ) {
+            verdicts.add(Verdict.Downgrade(installed.longVersionCode, packageInfo.longVersionCode))
+        }
+
+        val signers = installed.signers
+        val certificates = scan?.signingBlock?.takeUnless { it.hasLineage }?.certificates.orEmpty()
+        if (signers.isNotEmpty() && certificates.isNotEmpty() &&
+            certificates.none { certificate -> signers.any { it.contentEquals(certificate) } }
+        ) {
+            verdicts.add(Verdict.Signature(packageInfo.packageName))
+        }
+
+        return verdicts
+    }
+
+    /** [sizeBytes] is the uncompressed size of the APKs written to the session. */
+    fun analyze(sizeBytes: Long): Verdict? {
+        val available = runCatching {
+            storageManager.getAllocatableBytes(StorageManager.UUID_DEFAULT)
+        }.getOrElse { return null }
+
+        return if (sizeBytes > available) Verdict.Storage(sizeBytes, available) else null
+    }
+
+    private fun scan(fd: AssetFileDescriptor, fileNames: List<String>) = fd.openChannel().use { channel ->
+        scan(channel, fd.startOffset, fd.lengthOf(channel), fileNames)
+    }
+
+    private fun scan(
+        channel: FileChannel,
+        offset: Long,
+        length: Long,
+        fileNames: List<String>
+    ): Scan {
+        if (fileNames.isEmpty()) return channel.scan(offset, length)
+
+        val zip = ZipIndex(channel, offset, length)
+        val signer = if (fileNames.size == 1) fileNames.first() else PackageParser.BASE_APK
+        val abis = mutableSetOf<String>()
+        var signingBlock: ApkSigningBlock? = null
+        fileNames.forEach { name ->
+            val index = zip.find(name) ?: return@forEach
+            if (!zip.isStored(index)) return@forEach
+            val scan = channel.scan(offset + zip.dataOffset(index), zip.size(index))
+            abis.addAll(scan.abis)
+            if (name == signer) signingBlock = scan.signingBlock
+        }
+        return Scan(abis, signingBlock)
+    }
+
+    private fun FileChannel.scan(offset: Long, length: Long): Scan {
+        val abis = ZipIndex(this, offset, length).names()
+            .filter { it.startsWith(LIB_PREFIX) }
+            .map { it.removePrefix(LIB_PREFIX).substringBefore('/', "") }
+            .filter { it.isNotEmpty() }
+            .toSet()
+
+        val signingBlock = runCatching {
+            FileChannelSlice(this, offset, length).readSigningBlock()
+        }.getOrNull()
+        return Scan(abis, signingBlock)
+    }
+
+    private class Scan(
+        val abis: Set<String>,
+        val signingBlock: ApkSigningBlock?
+    )
+
+    sealed interface Verdict {
+        val message: String
+
+        data class MinSdk(val required: Int, val current: Int) : Verdict {
+            override val message get() = "Requires SDK $required, but device is $current"
+        }
+
+        data class Abi(val abis: List<String>, val supported: List<String>) : Verdict {
+            override val message
+                get() = "Requires ${abis.joinToString()}, but device supports ${supported.joinToString()}"
+        }
+
+        data class Downgrade(val installed: Long, val incoming: Long) : Verdict {
+            override val message get() = "Cannot downgrade from $installed to $incoming"
+        }
+
+        data class Signature(val packageName: String) : Verdict {
+            override val message get() = "Signature of $packageName does not match the installed package"
+        }
+
+        data class Storage(val required: Long, val available: Long) : Verdict {
+            override val message get() = "Requires $required bytes, but $available bytes are available"
+        }
+    }
+
+    companion object Default {
+        private const val TAG = "PackagePreflight"
+        private const val LIB_PREFIX = "lib/"
+
+        private val isDebuggable get() = SystemProperties.getInt("ro.debuggable", 0) == 1
+
+        private val PackageInfo.isDowngradable
+            get() = isDebuggable || applicationInfo?.let {
+                it.flags and ApplicationInfo.FLAG_DEBUGGABLE != 0
+            } ?: false
+
+        private val PackageInfo.signers: List<ByteArray>
+            get() {
+                val info = signingInfo ?: return emptyList()
+                val signatures = if (info.hasMultipleSigners()) {
+                    info.apkContentsSigners
+                } else {
+                    info.signingCertificateHistory
+                }
+                return signatures.orEmpty().map { it.toByteArray() }
+            }
+    }
+}
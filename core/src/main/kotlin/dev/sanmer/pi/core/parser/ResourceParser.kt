@@ -2,21 +2,36 @@ package dev.sanmer.pi.core.parser
 
 import android.content.res.Resources
 import android.content.res.XmlResourceParser
-import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
+import android.os.Build
+import android.os.LocaleList
+import dev.sanmer.pi.core.compat.PackageInfoCompat
 import dev.sanmer.pi.core.ktx.dp
 import dev.sanmer.pi.core.res.AppIconLoader
+import dev.sanmer.pi.core.res.IconCache
 import org.xmlpull.v1.XmlPullParser
+import java.io.InputStream
 
 internal object ResourceParser {
     const val ANDROID_MANIFEST = "AndroidManifest.xml"
+    const val RESOURCES_ARSC = "resources.arsc"
     const val ANDROID_RESOURCES = "http://schemas.android.com/apk/res/android"
     const val TAG_MANIFEST = "manifest"
     const val TAG_USES_SDK = "uses-sdk"
     const val TAG_APPLICATION = "application"
+    const val TAG_MODULE = "module"
+    const val DIST_RESOURCES = "http://schemas.android.com/apk/distribution"
+    const val MODULE_TYPE_ASSET_PACK = "asset-pack"
 
-    private val appIconLoader by lazy { AppIconLoader(45.dp) }
-    fun Drawable.toIcon() = appIconLoader.loadIcon(this)
+    private const val ICON_SIZE = 45
+    private val bitmapExtensions = listOf(".png", ".webp", ".jpg", ".jpeg")
+
+    private val appIconLoader by lazy { AppIconLoader(ICON_SIZE.dp) }
+    fun isBitmap(path: String) = bitmapExtensions.any { path.endsWith(it) }
+
+    fun Drawable.toIcon() = synchronized(appIconLoader) { appIconLoader.loadIcon(this) }
 
     fun XmlResourceParser.nextOrNull(): Int? {
         return next().takeIf { it != XmlPullParser.END_DOCUMENT }
@@ -28,36 +43,11 @@ internal object ResourceParser {
         return getAttributeValue(namespace, name) ?: defaultValue
     }
 
-    fun XmlResourceParser.getAttributeResStringValue(
-        res: Resources, name: String
-    ): String? {
-        val resId = getAttributeResourceValue(ANDROID_RESOURCES, name, 0)
-        return if (resId == 0) {
-            getAttributeValue(ANDROID_RESOURCES, name)
-        } else {
-            try {
-                res.getString(resId)
-            } catch (_: Throwable) {
-                null
-            }
-        }
-    }
-
-    fun XmlResourceParser.getAttributeResDrawableValue(
-        res: Resources, name: String
-    ): Drawable? {
-        val resId = getAttributeResourceValue(ANDROID_RESOURCES, name, 0)
-        return try {
-            res.getDrawable(resId, null)
-        } catch (_: Throwable) {
-            null
-        }
-    }
-
     inline fun <reified P : XmlResourceParser> P.fold(
         onManifest: P.() -> Unit,
         onUsesSdk: P.() -> Unit,
-        onApplication: P.() -> Unit
+        onApplication: P.() -> Unit,
+        onModule: P.() -> Unit = {}
     ) {
         while (true) {
             val eventType = nextOrNull() ?: break
@@ -66,6 +56,7 @@ internal object ResourceParser {
                 TAG_MANIFEST -> onManifest(this)
                 TAG_USES_SDK -> onUsesSdk(this)
                 TAG_APPLICATION -> onApplication(this)
+                TAG_MODULE -> onModule(this)
             }
         }
     }
@@ -76,6 +67,7 @@ internal object ResourceParser {
         var configForSplit = ""
         var versionCode = -1
         var isFeatureSplit = false
+        var isAssetPack = false
 
         parser.fold(
             onManifest = {
@@ -87,7 +79,10 @@ internal object ResourceParser {
                     getAttributeBooleanValue(ANDROID_RESOURCES, "isFeatureSplit", false)
             },
             onUsesSdk = {},
-            onApplication = {}
+            onApplication = {},
+            onModule = {
+                isAssetPack = getAttributeValue(DIST_RESOURCES, "type") == MODULE_TYPE_ASSET_PACK
+            }
         )
 
         return SplitConfigLite(
@@ -95,11 +90,83 @@ internal object ResourceParser {
             splitName = splitName,
             configForSplit = configForSplit,
             versionCode = versionCode,
-            isFeatureSplit = isFeatureSplit
+            isFeatureSplit = isFeatureSplit,
+            isAssetPack = isAssetPack
         )
     }
 
-    fun parsePackage(parser: XmlResourceParser, res: Resources): PackageInfoLite {
+    fun parseSplit(parser: BinaryXmlParser): SplitConfigLite {
+        var packageName = ""
+        var splitName = ""
+        var configForSplit = ""
+        var versionCode = -1
+        var isFeatureSplit = false
+        var isAssetPack = false
+
+        parser.fold(
+            onManifest = {
+                packageName = getAttributeValue("package", "")
+                splitName = getAttributeValue("split", "")
+                configForSplit = getAttributeValue("configForSplit", "")
+                versionCode = getAttributeIntValue(android.R.attr.versionCode, 0)
+                isFeatureSplit = getAttributeBooleanValue(android.R.attr.isFeatureSplit, false)
+            },
+            onUsesSdk = {},
+            onApplication = {},
+            onModule = {
+                isAssetPack = getAttributeValue("type") == MODULE_TYPE_ASSET_PACK
+            }
+        )
+
+        return SplitConfigLite(
+            packageName = packageName,
+            splitName = splitName,
+            configForSplit = configForSplit,
+            versionCode = versionCode,
+            isFeatureSplit = isFeatureSplit,
+            isAssetPack = isAssetPack
+        )
+    }
+
+    fun loadBitmapDrawable(open: () -> InputStream): Drawable? {
+        val options = BitmapFactory.Options()
+        options.inJustDecodeBounds = true
+        open().use { BitmapFactory.decodeStream(it, null, options) }
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null
+
+        var sampleSize = 1
+        val size = minOf(options.outWidth, options.outHeight)
+        while (size / (sampleSize * 2) >= ICON_SIZE.dp) sampleSize *= 2
+
+        options.inJustDecodeBounds = false
+        options.inSampleSize = sampleSize
+        val bitmap = open().use { BitmapFactory.decodeStream(it, null, options) } ?: return null
+        return BitmapDrawable(Resources.getSystem(), bitmap)
+    }
+
+    fun parsePackage(parser: XmlResourceParser, resolver: Resolver) =
+        parsePackage(resolver) { onManifest, onUsesSdk, onApplication ->
+            val attributes = XmlAttributes(parser)
+            parser.fold(
+                onManifest = { onManifest(attributes) },
+                onUsesSdk = { onUsesSdk(attributes) },
+                onApplication = { onApplication(attributes) }
+            )
+        }
+
+    fun parsePackage(parser: BinaryXmlParser, resolver: Resolver = Resolver.None) =
+        parsePackage(resolver) { onManifest, onUsesSdk, onApplication ->
+            parser.fold(onManifest, onUsesSdk, onApplication)
+        }
+
+    private fun parsePackage(
+        resolver: Resolver,
+        fold: (
+            onManifest: (Attributes) -> Unit,
+            onUsesSdk: (Attributes) -> Unit,
+            onApplication: (Attributes) -> Unit
+        ) -> Unit
+    ): PackageInfoLite {
         var packageName = ""
         var versionCode = -1
         var versionCodeMajor = -1
@@ -109,25 +176,41 @@ internal object ResourceParser {
         var minSdkVersion = -1
         var targetSdkVersion = -1
         var label: String? = null
-        var icon: Bitmap? = null
+        var iconKey: String? = null
 
-        parser.fold(
-            onManifest = {
-                packageName = getAttributeValue(null, "package", "")
-                versionCode = getAttributeIntValue(ANDROID_RESOURCES, "versionCode", 0)
-                versionCodeMajor = getAttributeIntValue(ANDROID_RESOURCES, "versionCodeMajor", 0)
-                versionName = getAttributeValue(ANDROID_RESOURCES, "versionName", "")
-                compileSdkVersion = getAttributeIntValue(ANDROID_RESOURCES, "compileSdkVersion", 0)
-                compileSdkVersionCodename =
-                    getAttributeValue(ANDROID_RESOURCES, "compileSdkVersionCodename", "")
+        fold(
+            { manifest ->
+                packageName = manifest.getString(0, "package").orEmpty()
+                versionCode = manifest.getInt(android.R.attr.versionCode, "versionCode", 0)
+                versionCodeMajor =
+                    manifest.getInt(android.R.attr.versionCodeMajor, "versionCodeMajor", 0)
+                versionName = manifest.getString(android.R.attr.versionName, "versionName").orEmpty()
+                compileSdkVersion =
+                    manifest.getInt(android.R.attr.compileSdkVersion, "compileSdkVersion", 0)
+                compileSdkVersionCodename = manifest.getString(
+                    android.R.attr.compileSdkVersionCodename, "compileSdkVersionCodename"
+                ).orEmpty()
             },
-            onUsesSdk = {
-                minSdkVersion = getAttributeIntValue(ANDROID_RESOURCES, "minSdkVersion", 0)
-                targetSdkVersion = getAttributeIntValue(ANDROID_RESOURCES, "targetSdkVersion", 0)
+            { usesSdk ->
+                minSdkVersion = usesSdk.getInt(android.R.attr.minSdkVersion, "minSdkVersion", 0)
+                targetSdkVersion =
+                    usesSdk.getInt(android.R.attr.targetSdkVersion, "targetSdkVersion", 0)
             },
-            onApplication = {
-                label = getAttributeResStringValue(res, "label")
-                icon = getAttributeResDrawableValue(res, "icon")?.toIcon()
+            { application ->
+                val labelId = application.getReference(android.R.attr.label, "label")
+                label = if (labelId == 0) {
+                    application.getString(android.R.attr.label, "label")
+                } else {
+                    resolver.getString(labelId)
+                }
+
+                val iconId = application.getReference(android.R.attr.icon, "icon")
+                if (iconId != 0) {
+                    val longVersionCode =
+                        PackageInfoCompat.composeLongVersionCode(versionCodeMajor, versionCode)
+                    val key = IconCache.key(packageName, longVersionCode, iconId)
+                    iconKey = resolver.getIconKey(key, iconId)
+                }
             }
         )
 
@@ -141,7 +224,84 @@ internal object ResourceParser {
             minSdkVersion = minSdkVersion,
             targetSdkVersion = targetSdkVersion,
             label = label,
-            icon = icon
+            iconKey = iconKey
         )
     }
-}
\ No newline at end of file
+
+    /**
+     * The attributes of a manifest element, looked up by framework attribute id, or by [name]
+     * for attributes without one such as `package`.
+     */
+    interface Attributes {
+        fun getString(resId: Int, name: String): String?
+        fun getInt(resId: Int, name: String, defaultValue: Int): Int
+        fun getReference(resId: Int, name: String): Int
+    }
+
+    private class XmlAttributes(private val parser: XmlResourceParser) : Attributes {
+        private fun namespace(resId: Int) = if (resId == 0) null else ANDROID_RESOURCES
+
+        override fun getString(resId: Int, name: String): String? =
+            parser.getAttributeValue(namespace(resId), name)
+
+        override fun getInt(resId: Int, name: String, defaultValue: Int) =
+            parser.getAttributeIntValue(namespace(resId), name, defaultValue)
+
+        override fun getReference(resId: Int, name: String) =
+            parser.getAttributeResourceValue(namespace(resId), name, 0)
+    }
+
+    /** Resolves the `android:label` and `android:icon` references of `<application>`. */
+    interface Resolver {
+        fun getString(resId: Int): String?
+
+        /** Returns [key] once the icon for [resId] is in [IconCache], rendering it on a miss. */
+        fun getIconKey(key: String, resId: Int): String?
+
+        /** Reads the manifest alone, leaving the label and icon unresolved. */
+        object None : Resolver {
+            override fun getString(resId: Int): String? = null
+            override fun getIconKey(key: String, resId: Int): String? = null
+        }
+    }
+
+    /** Resolves through the framework, where a missing resource is left as `null`. */
+    class ResourcesResolver(private val res: Resources) : Resolver {
+        override fun getString(resId: Int) =
+            runCatching { res.getString(resId) }.getOrNull()
+
+        override fun getIconKey(key: String, resId: Int) =
+            IconCache.getOrPut(key) {
+                runCatching { res.getDrawable(resId, null) }.getOrNull()?.toIcon()
+            }?.let { key }
+    }
+
+    /**
+     * Resolves through [table] and the bitmaps [loadBytes] returns, failing on anything it
+     * cannot resolve (such as an adaptive icon) so the caller can fall back to the framework.
+     */
+    class TableResolver(
+        private val table: ResourceTableParser?,
+        private val loadBytes: (String) -> ByteArray?
+    ) : Resolver {
+        override fun getString(resId: Int): String {
+            val locales = LocaleList.getDefault().let { List(it.size()) { i -> it[i] } }
+            return checkNotNull(table?.getString(resId, locales)) {
+                "Expect string 0x${resId.toHexString()}"
+            }
+        }
+
+        override fun getIconKey(key: String, resId: Int): String {
+            val icon = IconCache.getOrPut(key) {
+                val densityDpi = Resources.getSystem().displayMetrics.densityDpi
+                table?.getFilePath(resId, densityDpi, Build.VERSION.SDK_INT)
+                    ?.takeIf(::isBitmap)
+                    ?.let(loadBytes)
+                    ?.let { data -> loadBitmapDrawable { data.inputStream() } }
+                    ?.toIcon()
+            }
+            checkNotNull(icon) { "Expect bitmap 0x${resId.toHexString()}" }
+            return key
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package dev.sanmer.pi.core.parser
+
+import android.icu.util.ULocale
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Locale
+
+internal class ResourceTableParser(buffer: ByteBuffer) {
+    private val buffer = buffer.order(ByteOrder.LITTLE_ENDIAN)
+    private var strings = StringPool.Empty
+    private val packages = mutableMapOf<Int, Int>()
+
+    init {
+        require(buffer.remaining() >= HEADER_SIZE) { "Expect header" }
+        require(buffer.getShort(0).toInt() == RES_TABLE_TYPE) { "Expect RES_TABLE_TYPE" }
+
+        forEachChunk(0, buffer.limit()) { type, position, _ ->
+            when (type) {
+                StringPool.RES_STRING_POOL_TYPE -> strings = StringPool(buffer, position)
+                RES_TABLE_PACKAGE_TYPE -> packages[buffer.getInt(position + 8)] = position
+            }
+        }
+    }
+
+    private inline fun forEachChunk(
+        parent: Int,
+        end: Int,
+        block: (type: Int, position: Int, size: Int) -> Unit
+    ) {
+        var position = parent + buffer.getShort(parent + 2).toUShort().toInt()
+        val limit = minOf(end, parent + buffer.getInt(parent + 4))
+        while (position + HEADER_SIZE <= limit) {
+            val type = buffer.getShort(position).toInt()
+            val size = buffer.getInt(position + 4)
+            require(size >= HEADER_SIZE && position + size <= limit) { "Broken chunk at $position" }
+            block(type, position, size)
+            position += size
+        }
+    }
+
+    private fun entries(resId: Int): List<Entry> {
+        val pkg = packages[resId ushr 24] ?: return emptyList()
+        val typeId = resId ushr 16 and 0xFF
+        val entryId = resId and 0xFFFF
+
+        val entries = mutableListOf<Entry>()
+        forEachChunk(pkg, buffer.limit()) { type, position, _ ->
+            if (type != RES_TABLE_TYPE_TYPE) return@forEachChunk
+            if (buffer.get(position + 8).toUByte().toInt() != typeId) return@forEachChunk
+            val entry = readEntry(position, entryId) ?: return@forEachChunk
+            entries.add(entry)
+        }
+        return entries
+    }
+
+    private fun readEntry(position: Int, entryId: Int): Entry? {
+        val flags = buffer.get(position + 9).toInt()
+        val entryCount = buffer.getInt(position + 12)
+        val entriesStart = position + buffer.getInt(position + 16)
+        val headerSize = buffer.getShort(position + 2).toUShort().toInt()
+        val offsets = position + headerSize
+
+        val offset = when {
+            flags and FLAG_SPARSE != 0 -> {
+                var low = 0
+                var high = entryCount - 1
+                var found = NO_ENTRY
+                while (low <= high) {
+                    val mid = (low + high) ushr 1
+                    val index = buffer.getShort(offsets + mid * 4).toUShort().toInt()
+                    when {
+                        index < entryId -> low = mid + 1
+                        index > entryId -> high = mid - 1
+                        else -> {
+                            found = buffer.getShort(offsets + mid * 4 + 2).toUShort().toInt() * 4
+                            break
+                        }
+                    }
+                }
+                found
+            }
+
+            entryId >= entryCount -> NO_ENTRY
+
+            flags and FLAG_OFFSET16 != 0 -> {
+                val value = buffer.getShort(offsets + entryId * 2).toUShort().toInt()
+                if (value == 0xFFFF) NO_ENTRY else value * 4
+            }
+
+            else -> buffer.getInt(offsets + entryId * 4)
+        }
+        if (offset == NO_ENTRY) return null
+
+        val entry = entriesStart + offset
+        val entryFlags = buffer.getShort(entry + 2).toUShort().toInt()
+        val (dataType, data) = when {
+            entryFlags and FLAG_COMPACT != 0 -> (entryFlags ushr 8) to buffer.getInt(entry + 4)
+            entryFlags and FLAG_COMPLEX != 0 -> return null
+            else -> {
+                val value = entry + buffer.getShort(entry).toUShort().toInt()
+                buffer.get(value + 3).toUByte().toInt() to buffer.getInt(value + 4)
+            }
+        }
+
+        return Entry(
+            config = Config(buffer, position + 20),
+            dataType = dataType,
+            data = data
+        )
+    }
+
+    fun getString(resId: Int, locales: List<Locale>, depth: Int = 0): String? {
+        if (depth > MAX_DEPTH) return null
+        val entry = entries(resId).filter { it.config.isLocaleOnly }
+            .minByOrNull { it.config.localeScore(locales) }
+            ?: return null
+
+        return when (entry.dataType) {
+            TYPE_STRING -> strings[entry.data]
+            TYPE_REFERENCE -> getString(entry.data, locales, depth + 1)
+            else -> null
+        }
+    }
+
+    fun getFilePath(resId: Int, densityDpi: Int, sdkInt: Int, depth: Int = 0): String? {
+        if (depth > MAX_DEPTH) return null
+        val entry = entries(resId).filter { it.config.isDensityOnly && it.config.sdkVersion <= sdkInt }
+            .minWithOrNull(
+                compareBy<Entry> { it.config.densityScore(densityDpi) }
+                    .thenByDescending { it.config.sdkVersion }
+            )
+            ?: return null
+
+        return when (entry.dataType) {
+            TYPE_STRING -> strings[entry.data]
+            TYPE_REFERENCE -> getFilePath(entry.data, densityDpi, sdkInt, depth + 1)
+            else -> null
+        }
+    }
+
+    private class Entry(
+        val config: Config,
+        val dataType: Int,
+        val data: Int
+    )
+
+    private class Config(buffer: ByteBuffer, position: Int) {
+        private val size = buffer.getInt(position)
+        private val mccMnc = buffer.getInt(position + 4)
+        val language = unpack(buffer.get(position + 8), buffer.get(position + 9), 'a')
+        val country = unpack(buffer.get(position + 10), buffer.get(position + 11), '0')
+        val density = buffer.getShort(position + 14).toUShort().toInt()
+        private val input = buffer.getInt(position + 16)
+        private val screenSize = buffer.getInt(position + 20)
+        val sdkVersion = if (size >= 28) buffer.getShort(position + 24).toUShort().toInt() else 0
+        val script = if (size >= 40) ascii(buffer, position + 36, 4) else ""
+        val variant = if (size >= 48) ascii(buffer, position + 40, 8) else ""
+        private val qualifiers = (28 until size)
+            .any { it !in LOCALE_FIELDS && buffer.get(position + it).toInt() != 0 }
+        private val screenType = buffer.getShort(position + 12).toInt()
+
+        private val isAnyScreen
+            get() = mccMnc == 0 && screenType == 0 && input == 0 && screenSize == 0 && !qualifiers
+
+        val isLocaleOnly get() = isAnyScreen && density == 0
+
+        val isDensityOnly get() = isAnyScreen && language.isEmpty() && country.isEmpty()
+
+        /**
+         * Lower is better. A script or variant that contradicts the locale rules the config
+         * out; among the rest, an exact country beats a language-only config, and a matching
+         * script beats an unspecified one.
+         */
+        fun localeScore(locales: List<Locale>): Int {
+            if (language.isEmpty()) return locales.size * LOCALE_STEP
+            locales.forEachIndexed { index, locale ->
+                if (locale.language != language) return@forEachIndexed
+                val localeScript = locale.likelyScript
+                if (script.isNotEmpty() && localeScript.isNotEmpty() &&
+                    !script.equals(localeScript, ignoreCase = true)
+                ) return@forEachIndexed
+                if (variant.isNotEmpty() && !variant.equals(locale.variant, ignoreCase = true)) {
+                    return@forEachIndexed
+                }
+
+                val countryScore = when (country) {
+                    locale.country -> 0
+                    "" -> 1
+                    else -> 2
+                }
+                val scriptScore = if (script.equals(localeScript, ignoreCase = true)) 0 else 1
+                return index * LOCALE_STEP + countryScore * 2 + scriptScore
+            }
+            return Int.MAX_VALUE
+        }
+
+        fun densityScore(target: Int): Int = when (density) {
+            DENSITY_ANY -> 0
+            DENSITY_NONE -> 1
+            else -> {
+                val value = if (density == 0) DENSITY_MEDIUM else density
+                if (value >= target) value - target + 2 else 0xFFFF + target - value
+            }
+        }
+
+        companion object Default {
+            private const val LOCALE_STEP = 6
+
+            /** localeScript, localeVariant, localeScriptWasComputed and localeNumberingSystem. */
+            private val LOCALE_FIELDS = ((36 until 48) + (52 until 61)).toSet()
+
+            private val Locale.likelyScript: String
+                get() = script.ifEmpty {
+                    runCatching {
+                        ULocale.addLikelySubtags(ULocale.forLocale(this)).script
+                    }.getOrNull().orEmpty()
+                }
+
+            private fun ascii(buffer: ByteBuffer, position: Int, length: Int): String {
+                val bytes = ByteArray(length) { buffer.get(position + it) }
+                val end = bytes.indexOf(0).let { if (it < 0) length else it }
+                return String(bytes, 0, end, Charsets.US_ASCII)
+            }
+
+            private fun unpack(first: Byte, second: Byte, base: Char): String {
+                val b0 = first.toUByte().toInt()
+                val b1 = second.toUByte().toInt()
+                if (b0 == 0) return ""
+                if (b0 and 0x80 == 0) return charArrayOf(b0.toChar(), b1.toChar()).concatToString()
+                return charArrayOf(
+                    base + (b1 and 0x1F),
+                    base + ((b1 and 0xE0 ushr 5) + (b0 and 0x03 shl 3)),
+                    base + (b0 and 0x7C ushr 2)
+                ).concatToString()
+            }
+        }
+    }
+
+    companion object Default {
+        private const val HEADER_SIZE = 8
+        private const val MAX_DEPTH = 8
+
+        private const val RES_TABLE_TYPE = 0x0002
+        private const val RES_TABLE_PACKAGE_TYPE = 0x0200
+        private const val RES_TABLE_TYPE_TYPE = 0x0201
+
+        private const val FLAG_SPARSE = 0x01
+        private const val FLAG_OFFSET16 = 0x02
+        private const val FLAG_COMPLEX = 0x0001
+        private const val FLAG_COMPACT = 0x0008
+        private const val NO_ENTRY = -1
+
+        private const val TYPE_REFERENCE = 0x01
+        private const val TYPE_STRING = 0x03
+
+        private const val DENSITY_MEDIUM = 160
+        private const val DENSITY_ANY = 0xFFFE
+        private const val DENSITY_NONE = 0xFFFF
+    }
+}
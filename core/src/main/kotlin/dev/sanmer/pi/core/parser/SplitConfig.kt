@@ -50,6 +50,15 @@ data class SplitConfig(
             }
         }
 
+        @Parcelize
+        data object AssetPack : Type {
+            override fun compareTo(other: Type) = when (other) {
+                AssetPack -> 0
+                Unspecified -> -1
+                else -> 1
+            }
+        }
+
         @Parcelize
         data object Unspecified : Type {
             override fun compareTo(other: Type) = 1
@@ -124,64 +133,87 @@ data class SplitConfig(
             return value.removeSurrounding("config.", "")
         }
 
+        fun from(
+            type: Type,
+            name: String,
+            configForSplit: String,
+            fileName: String,
+            sizeBytes: Long
+        ) = SplitConfig(
+            fileName = fileName,
+            sizeBytes = sizeBytes,
+            type = type,
+            name = name,
+            configForSplit = configForSplit,
+            isDisabled = when (type) {
+                is Type.Abi -> !type.abi.isEnabled()
+                is Type.Language -> type.locale !in Locale.getAvailableLocales()
+                else -> false
+            },
+            isRecommended = when (type) {
+                is Type.Abi -> type.abi.isRequired()
+                is Type.Density -> type.density.isRequired()
+                is Type.Language -> type.locale.language == Locale.getDefault().language
+                else -> true
+            }
+        )
+
         fun from(
             splitConfig: SplitConfigLite,
             fileName: String,
             sizeBytes: Long
         ): SplitConfig {
-            if (splitConfig.isFeatureSplit) return SplitConfig(
+            if (splitConfig.isAssetPack) return from(
+                type = Type.AssetPack,
+                name = splitConfig.splitName,
+                configForSplit = "",
                 fileName = fileName,
-                sizeBytes = sizeBytes,
+                sizeBytes = sizeBytes
+            )
+
+            if (splitConfig.isFeatureSplit) return from(
                 type = Type.Feature,
                 name = splitConfig.splitName,
                 configForSplit = "",
-                isDisabled = false,
-                isRecommended = true
+                fileName = fileName,
+                sizeBytes = sizeBytes
             )
 
             val type = splitConfig.typeName()
             val abi = Abi.valueOfOrNull(type.uppercase())
-            if (abi != null) return SplitConfig(
-                fileName = fileName,
-                sizeBytes = sizeBytes,
+            if (abi != null) return from(
                 type = Type.Abi(abi),
                 name = abi.value,
                 configForSplit = splitConfig.configForSplit,
-                isDisabled = !abi.isEnabled(),
-                isRecommended = abi.isRequired()
+                fileName = fileName,
+                sizeBytes = sizeBytes
             )
 
             val density = Density.valueOfOrNull(type.uppercase())
-            if (density != null) return SplitConfig(
-                fileName = fileName,
-                sizeBytes = sizeBytes,
+            if (density != null) return from(
                 type = Type.Density(density),
                 name = density.value,
                 configForSplit = splitConfig.configForSplit,
-                isDisabled = false,
-                isRecommended = density.isRequired()
+                fileName = fileName,
+                sizeBytes = sizeBytes
             )
 
             val locale = Locale.forLanguageTag(type)
-            if (locale.language.isNotEmpty()) return SplitConfig(
-                fileName = fileName,
-                sizeBytes = sizeBytes,
+            if (locale.language.isNotEmpty()) return from(
                 type = Type.Language(locale),
                 name = locale.localizedDisplayName,
                 configForSplit = splitConfig.configForSplit,
-                isDisabled = locale !in Locale.getAvailableLocales(),
-                isRecommended = locale.language == Locale.getDefault().language
+                fileName = fileName,
+                sizeBytes = sizeBytes
             )
 
-            return SplitConfig(
-                fileName = fileName,
-                sizeBytes = sizeBytes,
+            return from(
                 type = Type.Unspecified,
                 name = splitConfig.splitName,
                 configForSplit = splitConfig.configForSplit,
-                isDisabled = false,
-                isRecommended = true
+                fileName = fileName,
+                sizeBytes = sizeBytes
             )
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package dev.sanmer.pi.core.parser
+
+import dev.sanmer.pi.core.compat.XmlBlockCompat
+import java.io.ByteArrayOutputStream
+import java.io.FileNotFoundException
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * Collects what [ResourceParser.parsePackage] needs from the entries of an APK that can only
+ * be read once as a stream, keeping them in memory instead of spooling the APK to disk.
+ *
+ * The icon path is only known once both the manifest and the resource table are read, so
+ * bitmaps under `res/` seen before that are kept, up to [MAX_PENDING_BYTES] in total.
+ */
+internal class StreamingApk {
+    private var xml: ByteArray? = null
+    private var table: ResourceTableParser? = null
+    private var isProbed = false
+    private var iconPath: String? = null
+    private val bitmaps = mutableMapOf<String, ByteArray>()
+    private var pendingBytes = 0L
+    private var packageInfo: PackageInfoLite? = null
+
+    var splitConfig: SplitConfigLite? = null
+        private set
+
+    val hasManifest get() = xml != null
+    val isComplete get() = packageInfo != null || splitConfig != null
+
+    fun accept(name: String, input: InputStream) {
+        if (isComplete) return
+        when {
+            name == ResourceParser.ANDROID_MANIFEST -> {
+                val data = input.readBytes()
+                xml = data
+                splitConfig = runCatching { parseSplit(data) }.getOrNull()
+                    ?.takeIf { it.versionCode > 0 && it.splitName.isNotEmpty() }
+            }
+
+            name == ResourceParser.RESOURCES_ARSC -> {
+                table = ResourceTableParser(ByteBuffer.wrap(input.readBytes()))
+            }
+
+            name == iconPath -> {
+                bitmaps[name] = input.readAtMost(PackageParser.MAX_ICON_SIZE_BYTES) ?: return
+            }
+
+            !isProbed && name.startsWith(RES_PREFIX) && ResourceParser.isBitmap(name) -> {
+                val limit = minOf(PackageParser.MAX_ICON_SIZE_BYTES, MAX_PENDING_BYTES - pendingBytes)
+                val data = input.readAtMost(limit) ?: return
+                bitmaps[name] = data
+                pendingBytes += data.size
+            }
+
+            else -> return
+        }
+        resolve()
+    }
+
+    private fun resolve() {
+        val xml = xml ?: return
+        val table = table ?: return
+        if (splitConfig != null) return
+        if (isProbed && iconPath !in bitmaps) return
+
+        var requested: String? = null
+        val resolver = ResourceParser.TableResolver(table) { path ->
+            requested = path
+            bitmaps[path]
+        }
+        packageInfo = runCatching {
+            ResourceParser.parsePackage(BinaryXmlParser(xml), resolver)
+        }.getOrNull()
+        if (!isProbed) {
+            isProbed = true
+            iconPath = requested
+            bitmaps.keys.retainAll(setOfNotNull(requested))
+        }
+    }
+
+    /** Falls back to the manifest alone if the label or icon could not be resolved. */
+    fun finish(): PackageInfoLite {
+        val xml = xml ?: throw FileNotFoundException(ResourceParser.ANDROID_MANIFEST)
+        val value = packageInfo ?: runCatching {
+            ResourceParser.parsePackage(
+                BinaryXmlParser(xml),
+                ResourceParser.TableResolver(table) { bitmaps[it] }
+            )
+        }.getOrElse {
+            ResourceParser.parsePackage(BinaryXmlParser(xml))
+        }
+        require(value.versionCode > 0) { "Expect versionCode" }
+        require(value.packageName.isNotEmpty()) { "Expect packageName" }
+        return value
+    }
+
+    private companion object Default {
+        const val RES_PREFIX = "res/"
+        const val MAX_PENDING_BYTES = 8L * 1024 * 1024
+
+        fun parseSplit(data: ByteArray) = runCatching {
+            ResourceParser.parseSplit(BinaryXmlParser(data))
+        }.getOrElse {
+            XmlBlockCompat.newParser(data).use(ResourceParser::parseSplit)
+        }
+
+        fun InputStream.readAtMost(limit: Long): ByteArray? {
+            val output = ByteArrayOutputStream()
+            val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+            while (true) {
+                val size = read(buffer)
+                if (size < 0) return output.toByteArray()
+                if (output.size() + size > limit) return null
+                output.write(buffer, 0, size)
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package dev.sanmer.pi.core.parser
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+internal class StringPool(
+    private val buffer: ByteBuffer,
+    position: Int
+) {
+    private val count = buffer.getInt(position + 8)
+    private val isUtf8 = buffer.getInt(position + 16) and UTF8_FLAG != 0
+    private val stringsStart = position + buffer.getInt(position + 20)
+    private val offsets = position + buffer.getShort(position + 2).toUShort().toInt()
+    private val cache = arrayOfNulls<String>(count)
+
+    operator fun get(index: Int): String? {
+        if (index !in 0 until count) return null
+        return cache[index] ?: decode(stringsStart + buffer.getInt(offsets + index * 4))
+            .also { cache[index] = it }
+    }
+
+    private fun decode(offset: Int) = if (isUtf8) decodeUtf8(offset) else decodeUtf16(offset)
+
+    private fun decodeUtf8(offset: Int): String {
+        var position = offset
+        position += if (buffer.get(position).toInt() and 0x80 != 0) 2 else 1
+        var length = buffer.get(position).toUByte().toInt()
+        if (length and 0x80 != 0) {
+            length = (length and 0x7F shl 8) or buffer.get(position + 1).toUByte().toInt()
+            position += 2
+        } else {
+            position += 1
+        }
+        val bytes = ByteArray(length)
+        buffer.duplicate().apply { position(position) }.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun decodeUtf16(offset: Int): String {
+        var position = offset
+        var length = buffer.getShort(position).toUShort().toInt()
+        if (length and 0x8000 != 0) {
+            length = (length and 0x7FFF shl 16) or
+                    buffer.getShort(position + 2).toUShort().toInt()
+            position += 4
+        } else {
+            position += 2
+        }
+        return CharArray(length) { buffer.getChar(position + it * 2) }.concatToString()
+    }
+
+    companion object Default {
+        const val RES_STRING_POOL_TYPE = 0x0001
+        private const val UTF8_FLAG = 1 shl 8
+
+        val Empty = StringPool(
+            ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN).putShort(2, 28),
+            0
+        )
+    }
+}
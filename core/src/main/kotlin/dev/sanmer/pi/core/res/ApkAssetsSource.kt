@@ -2,54 +2,12 @@ package dev.sanmer.pi.core.res
 
 import android.content.res.ApkAssets
 import android.content.res.AssetFileDescriptor
-import android.util.Log
+import androidx.annotation.RequiresApi
 import dev.sanmer.pi.core.compat.BuildCompat
-import java.io.File
-import java.io.InputStream
 
 sealed interface ApkAssetsSource : AutoCloseable {
     fun get(): ApkAssets
 
-    class Stream(
-        original: InputStream,
-        cacheDir: File
-    ) : ApkAssetsSource {
-        private val temp = File.createTempFile("stream", "", cacheDir)
-
-        private val asset by lazy {
-            when {
-                BuildCompat.atLeastR -> ApkAssets.loadFromPath(
-                    temp.absolutePath,
-                    0,
-                    null
-                )
-
-                else -> ApkAssets.loadFromPath(
-                    temp.absolutePath,
-                    false,
-                    false
-                )
-            }
-        }
-
-        init {
-            original.buffered().use { input ->
-                temp.outputStream().use { output ->
-                    input.copyTo(output)
-                }
-            }
-        }
-
-        override fun get() = asset
-
-        override fun close() {
-            asset.close()
-            if (temp.delete()) {
-                Log.w("ApkAssetsWrapper.Stream", "Deleted $temp")
-            }
-        }
-    }
-
     class Fd(
         private val original: AssetFileDescriptor
     ) : ApkAssetsSource {
@@ -77,4 +35,26 @@ sealed interface ApkAssetsSource : AutoCloseable {
 
         override fun close() = asset.close()
     }
-}
\ No newline at end of file
+
+    @RequiresApi(30)
+    class Entry(
+        private val original: AssetFileDescriptor,
+        private val offset: Long,
+        private val length: Long
+    ) : ApkAssetsSource {
+        private val asset by lazy {
+            ApkAssets.loadFromFd(
+                original.fileDescriptor,
+                "$original!$offset",
+                original.startOffset + offset,
+                length,
+                0,
+                null
+            )
+        }
+
+        override fun get() = asset
+
+        override fun close() = asset.close()
+    }
+}
@@ -0,0 +1,119 @@
+package dev.sanmer.pi.core.res
+
+import android.app.Application
+import android.content.ComponentCallbacks2
+import android.content.res.Resources
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.Log
+import android.util.LruCache
+import dev.sanmer.pi.core.compat.ContextCompat
+import dev.sanmer.pi.core.parser.ResourceParser.toIcon
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+object IconCache {
+    private const val TAG = "IconCache"
+    private const val DEFAULT_KEY = "android"
+
+    private val maxMemoryKb = (Runtime.getRuntime().maxMemory() / 1024 / 32).toInt()
+    private const val MAX_DISK_SIZE_BYTES = 16L * 1024 * 1024
+
+    private val dir by lazy { File(ContextCompat.getContext().cacheDir, "icons") }
+    private val isDiskOwner by lazy {
+        Application.getProcessName() == ContextCompat.getContext().packageName
+    }
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO.limitedParallelism(1))
+    private val pending = ConcurrentHashMap<String, Bitmap>()
+
+    private val memory = object : LruCache<String, Bitmap>(maxMemoryKb) {
+        override fun sizeOf(key: String, value: Bitmap) = value.allocationByteCount / 1024
+
+        override fun entryRemoved(evicted: Boolean, key: String, oldValue: Bitmap, newValue: Bitmap?) {
+            if (evicted && key != DEFAULT_KEY) write(key, oldValue)
+        }
+    }
+
+    val default: Bitmap
+        get() = getOrPut(DEFAULT_KEY) {
+            Resources.getSystem()
+                .getDrawable(android.R.drawable.sym_def_app_icon, null)
+                .toIcon()
+        }!!
+
+    /**
+     * Identifies an app icon before it is rendered, so a hit skips decoding and badging;
+     * installs of the same version share the key whichever parser resolved it.
+     */
+    fun key(packageName: String, longVersionCode: Long, resId: Int) =
+        "$packageName:$longVersionCode:${resId.toHexString()}"
+
+    operator fun get(key: String): Bitmap? {
+        memory[key]?.let { return it }
+        val bitmap = pending[key] ?: read(key) ?: return null
+        memory.put(key, bitmap)
+        return bitmap
+    }
+
+    fun put(key: String, bitmap: Bitmap) {
+        memory.put(key, bitmap)
+    }
+
+    inline fun getOrPut(key: String, block: () -> Bitmap?): Bitmap? {
+        return get(key) ?: block()?.also { put(key, it) }
+    }
+
+    fun onTrimMemory(level: Int) {
+        when {
+            level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> memory.evictAll()
+            level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN -> memory.trimToSize(memory.maxSize() / 2)
+        }
+    }
+
+    fun clear() {
+        memory.evictAll()
+        if (isDiskOwner) scope.launch { dir.listFiles()?.forEach { it.delete() } }
+    }
+
+    private fun read(key: String): Bitmap? {
+        val file = File(dir, key)
+        if (!file.isFile) return null
+        return BitmapFactory.decodeFile(file.path)?.also {
+            file.setLastModified(System.currentTimeMillis())
+        }
+    }
+
+    private fun write(key: String, bitmap: Bitmap) {
+        if (!isDiskOwner) return
+        pending[key] = bitmap
+        scope.launch {
+            val temp = File(dir, "$key.tmp")
+            runCatching {
+                dir.mkdirs()
+                val file = File(dir, key)
+                if (!file.isFile) {
+                    temp.outputStream().use { bitmap.compress(Bitmap.CompressFormat.PNG, 100, it) }
+                    check(temp.renameTo(file)) { "Failed to rename $temp" }
+                    trim()
+                }
+            }.onFailure {
+                temp.delete()
+                Log.w(TAG, "Failed to write $key: ${it.message}")
+            }
+            pending.remove(key)
+        }
+    }
+
+    private fun trim() {
+        val files = dir.listFiles()?.sortedByDescending { it.lastModified() } ?: return
+        var sizeBytes = 0L
+        files.forEach { file ->
+            sizeBytes += file.length()
+            if (sizeBytes > MAX_DISK_SIZE_BYTES) file.delete()
+        }
+    }
+}
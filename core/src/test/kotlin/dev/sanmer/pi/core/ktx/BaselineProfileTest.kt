@@ -0,0 +1,268 @@
+package dev.sanmer.pi.core.ktx
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+
+class BaselineProfileTest {
+    private class Dex(
+        val key: String,
+        val checksum: Int,
+        val numMethodIds: Int,
+        val numTypeIds: Int,
+        val classes: List<Int>,
+        val methods: Map<Int, Int>
+    )
+
+    private val dexFiles = listOf(
+        Dex(
+            key = "classes.dex",
+            checksum = 0x12345678,
+            numMethodIds = 10,
+            numTypeIds = 20,
+            classes = listOf(1, 4, 9),
+            methods = mapOf(
+                2 to (HOT or STARTUP),
+                5 to (STARTUP or POST_STARTUP),
+                7 to HOT
+            )
+        ),
+        Dex(
+            key = "classes2.dex",
+            checksum = -0x21524111,
+            numMethodIds = 3,
+            numTypeIds = 5,
+            classes = emptyList(),
+            methods = mapOf(0 to POST_STARTUP)
+        )
+    )
+
+    /** Writes [dexFiles] as AGP does, with an inline cache on the first hot method. */
+    private fun profile(): ByteArray {
+        val bodies = dexFiles.map { dex ->
+            val hot = Writer().apply {
+                var last = 0
+                dex.methods.filterValues { it and HOT != 0 }.keys.sorted().forEachIndexed { i, method ->
+                    u16(method - last)
+                    if (i == 0) {
+                        u16(1)
+                        u16(0)
+                        u8(1)
+                        u8(0)
+                        u8(1)
+                        u16(3)
+                    } else {
+                        u16(0)
+                    }
+                    last = method
+                }
+            }.toByteArray()
+            val bitmap = ByteArray((dex.numMethodIds * 2 + 7) / 8)
+            dex.methods.forEach { (method, flags) ->
+                if (flags and STARTUP != 0) bitmap.setBit(method)
+                if (flags and POST_STARTUP != 0) bitmap.setBit(dex.numMethodIds + method)
+            }
+            hot to Writer().apply {
+                bytes(hot)
+                var last = 0
+                dex.classes.forEach {
+                    u16(it - last)
+                    last = it
+                }
+                bytes(bitmap)
+            }.toByteArray()
+        }
+        val body = Writer().apply {
+            dexFiles.zip(bodies).forEach { (dex, body) ->
+                u16(dex.key.length)
+                u16(dex.classes.size)
+                u32(body.first.size)
+                u32(dex.checksum)
+                u32(dex.numMethodIds)
+                bytes(dex.key.toByteArray())
+            }
+            bodies.forEach { bytes(it.second) }
+        }.toByteArray()
+
+        val compressed = deflate(body)
+        return Writer().apply {
+            bytes("pro\u0000010\u0000".toByteArray())
+            u8(dexFiles.size)
+            u32(body.size)
+            u32(compressed.size)
+            bytes(compressed)
+        }.toByteArray()
+    }
+
+    private fun metadata(dexFiles: List<Dex> = this.dexFiles): ByteArray {
+        val body = Writer().apply {
+            dexFiles.forEachIndexed { index, dex ->
+                val key = "base.apk!${dex.key}"
+                u16(index)
+                u16(key.length)
+                bytes(key.toByteArray())
+                u32(dex.numTypeIds)
+                u16(dex.classes.size)
+                var last = 0
+                dex.classes.forEach {
+                    u16(it - last)
+                    last = it
+                }
+            }
+        }.toByteArray()
+
+        val compressed = deflate(body)
+        return Writer().apply {
+            bytes("prm\u0000002\u0000".toByteArray())
+            u16(dexFiles.size)
+            u32(body.size)
+            u32(compressed.size)
+            bytes(compressed)
+        }.toByteArray()
+    }
+
+    @Test
+    fun versionOf() {
+        assertArrayEquals(BaselineProfile.VERSION_P, BaselineProfile.versionOf(profile()))
+        assertNull(BaselineProfile.versionOf(metadata()))
+        assertNull(BaselineProfile.versionOf(ByteArray(4)))
+    }
+
+    @Test
+    fun transcode() {
+        val bytes = BaselineProfile.read(profile()).transcode(metadata(), "base.apk")
+        val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+        assertArrayEquals(
+            "pro\u0000015\u0000".toByteArray(),
+            ByteArray(8).also { buffer.get(it) }
+        )
+
+        val sections = List(buffer.int) {
+            val type = buffer.int
+            val offset = buffer.int
+            val size = buffer.int
+            val inflatedSize = buffer.int
+            val contents = bytes.copyOfRange(offset, offset + size)
+            type to if (inflatedSize == 0) contents else inflate(contents, inflatedSize)
+        }.toMap().mapValues { ByteBuffer.wrap(it.value).order(ByteOrder.LITTLE_ENDIAN) }
+        assertEquals(setOf(DEX_FILES, CLASSES, METHODS), sections.keys)
+
+        val dexFilesSection = sections.getValue(DEX_FILES)
+        assertEquals(dexFiles.size, dexFilesSection.u16())
+        listOf("base.apk", "base.apk!classes2.dex").zip(dexFiles).forEach { (key, dex) ->
+            assertEquals(dex.checksum, dexFilesSection.int)
+            assertEquals(dex.numMethodIds, dexFilesSection.int)
+            assertEquals(dex.numTypeIds, dexFilesSection.int)
+            assertEquals(key, String(ByteArray(dexFilesSection.u16()).also { dexFilesSection.get(it) }))
+        }
+
+        val classesSection = sections.getValue(CLASSES)
+        dexFiles.forEachIndexed { index, dex ->
+            assertEquals(index, classesSection.u16())
+            var last = 0
+            val classes = List(classesSection.u16()) { (last + classesSection.u16()).also { last = it } }
+            assertEquals(dex.classes, classes)
+        }
+
+        val methodsSection = sections.getValue(METHODS)
+        dexFiles.forEachIndexed { index, dex ->
+            assertEquals(index, methodsSection.u16())
+            val end = methodsSection.int + methodsSection.position()
+            val flags = methodsSection.u16()
+            assertEquals(dex.methods.values.fold(0, Int::or), flags)
+
+            val stored = listOf(STARTUP, POST_STARTUP).filter { flags and it != 0 }
+            val bitmap = ByteArray((stored.size * dex.numMethodIds + 7) / 8)
+                .also { methodsSection.get(it) }
+            val methods = mutableMapOf<Int, Int>()
+            stored.forEachIndexed { i, flag ->
+                (0 until dex.numMethodIds).forEach { method ->
+                    if (bitmap.getBit(i * dex.numMethodIds + method)) {
+                        methods[method] = (methods[method] ?: 0) or flag
+                    }
+                }
+            }
+            var last = 0
+            while (methodsSection.position() < end) {
+                val method = last + methodsSection.u16()
+                assertEquals(0, methodsSection.u16())
+                methods[method] = (methods[method] ?: 0) or HOT
+                last = method
+            }
+            assertEquals(end, methodsSection.position())
+            assertEquals(dex.methods, methods)
+        }
+    }
+
+    @Test
+    fun transcodeRejectsMismatchedMetadata() {
+        val profile = BaselineProfile.read(profile())
+        assertThrows(IllegalArgumentException::class.java) {
+            profile.transcode(metadata(dexFiles.take(1)), "base.apk")
+        }
+        assertThrows(IllegalArgumentException::class.java) {
+            profile.transcode(profile(), "base.apk")
+        }
+    }
+
+    private companion object Default {
+        const val HOT = 1
+        const val STARTUP = 1 shl 1
+        const val POST_STARTUP = 1 shl 2
+
+        const val DEX_FILES = 0
+        const val CLASSES = 2
+        const val METHODS = 3
+
+        fun ByteBuffer.u16() = short.toInt() and 0xffff
+
+        fun ByteArray.getBit(index: Int) = get(index / 8).toInt() and (1 shl (index % 8)) != 0
+
+        fun ByteArray.setBit(index: Int) {
+            set(index / 8, (get(index / 8).toInt() or (1 shl (index % 8))).toByte())
+        }
+
+        fun deflate(bytes: ByteArray): ByteArray {
+            val output = ByteArrayOutputStream()
+            DeflaterOutputStream(output, Deflater()).use { it.write(bytes) }
+            return output.toByteArray()
+        }
+
+        fun inflate(bytes: ByteArray, size: Int): ByteArray {
+            val inflater = Inflater()
+            inflater.setInput(bytes)
+            val output = ByteArray(size)
+            var n = 0
+            while (n < size) n += inflater.inflate(output, n, size - n)
+            inflater.end()
+            return output
+        }
+    }
+
+    private class Writer {
+        private val output = ByteArrayOutputStream()
+
+        fun u8(value: Int) = output.write(value)
+
+        fun u16(value: Int) {
+            output.write(value)
+            output.write(value ushr 8)
+        }
+
+        fun u32(value: Int) = output.write(
+            ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array()
+        )
+
+        fun bytes(value: ByteArray) = output.write(value)
+
+        fun toByteArray(): ByteArray = output.toByteArray()
+    }
+}
@@ -0,0 +1,126 @@
+package dev.sanmer.pi.core.parser
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.MessageDigest
+import kotlin.random.Random
+
+class ApkDigestTest {
+    /** Contents spanning two chunks, an opaque signing block, a central directory and an EOCD. */
+    private val contents = Random(1).nextBytes(CHUNK_SIZE + 1000)
+    private val block = Random(2).nextBytes(500)
+    private val cd = Random(3).nextBytes(300)
+    private val eocd = ByteArray(22).also {
+        ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(0, 0x06054b50)
+            .putInt(16, contents.size + block.size)
+    }
+    private val apk = contents + block + cd + eocd
+
+    private fun layout(algorithm: String, expected: ByteArray = contentDigest(algorithm)) =
+        ApkDigest.Layout(
+            blockOffset = contents.size.toLong(),
+            cdOffset = (contents.size + block.size).toLong(),
+            eocdOffset = (contents.size + block.size + cd.size).toLong(),
+            algorithm = algorithm,
+            expected = expected
+        )
+
+    /** The v2 content digest computed as the scheme describes, over the whole APK at once. */
+    private fun contentDigest(algorithm: String): ByteArray {
+        val trailer = eocd.copyOf()
+        ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).putInt(16, contents.size)
+
+        val chunks = listOf(contents, cd, trailer).flatMap { section ->
+            (section.indices step CHUNK_SIZE).map { offset ->
+                section.copyOfRange(offset, minOf(offset + CHUNK_SIZE, section.size))
+            }
+        }
+        val top = MessageDigest.getInstance(algorithm)
+        top.update(0x5a)
+        top.update(chunks.size.toLittleEndian())
+        chunks.forEach { chunk ->
+            val digest = MessageDigest.getInstance(algorithm)
+            digest.update(0xa5.toByte())
+            digest.update(chunk.size.toLittleEndian())
+            top.update(digest.digest(chunk))
+        }
+        return top.digest()
+    }
+
+    private fun ApkDigest.feed(pieceSize: Int) = apply {
+        (apk.indices step pieceSize).forEach { offset ->
+            update(apk, offset, minOf(pieceSize, apk.size - offset))
+        }
+    }
+
+    @Test
+    fun verifyContentDigest() {
+        listOf(ApkDigest.SHA_256, ApkDigest.SHA_512).forEach { algorithm ->
+            listOf(7919, 64 * 1024, apk.size).forEach { pieceSize ->
+                val result = ApkDigest(layout(algorithm)).feed(pieceSize).finish()
+                assertEquals(algorithm, result.algorithm)
+                assertArrayEquals(contentDigest(algorithm), result.contentDigest)
+                assertEquals(true, result.isVerified)
+            }
+        }
+    }
+
+    @Test
+    fun contentDigestMismatch() {
+        val expected = contentDigest(ApkDigest.SHA_256).also { it[0] = (it[0] + 1).toByte() }
+        val result = ApkDigest(layout(ApkDigest.SHA_256, expected)).feed(4096).finish()
+        assertFalse(result.isVerified!!)
+    }
+
+    @Test
+    fun sha256() {
+        val expected = MessageDigest.getInstance(ApkDigest.SHA_256).digest(apk)
+        val signed = ApkDigest(layout(ApkDigest.SHA_256)).feed(4096).finish()
+        assertArrayEquals(expected, signed.sha256)
+
+        val unsigned = ApkDigest().apply { update(ByteBuffer.wrap(apk)) }.finish()
+        assertArrayEquals(expected, unsigned.sha256)
+        assertNull(unsigned.contentDigest)
+        assertNull(unsigned.isVerified)
+        assertNull(unsigned.algorithm)
+    }
+
+    @Test
+    fun skipChunks() {
+        val chunk = MessageDigest.getInstance(ApkDigest.SHA_256).apply {
+            update(0xa5.toByte())
+            update(CHUNK_SIZE.toLittleEndian())
+        }.digest(apk.copyOf(CHUNK_SIZE))
+
+        val digest = ApkDigest(layout(ApkDigest.SHA_256))
+        digest.skipChunks(listOf(chunk))
+        digest.update(apk, CHUNK_SIZE, apk.size - CHUNK_SIZE)
+        val result = digest.finish()
+        assertArrayEquals(contentDigest(ApkDigest.SHA_256), result.contentDigest)
+        assertEquals(true, result.isVerified)
+    }
+
+    @Test
+    fun streamWithoutSigningBlock() {
+        val digest = ApkStreamDigest()
+        (apk.indices step 7919).forEach { offset ->
+            digest.update(apk, offset, minOf(7919, apk.size - offset))
+        }
+        val result = checkNotNull(digest.finish())
+        assertArrayEquals(MessageDigest.getInstance(ApkDigest.SHA_256).digest(apk), result.sha256)
+        assertNull(result.isVerified)
+    }
+
+    private companion object Default {
+        const val CHUNK_SIZE = 1024 * 1024
+
+        fun Int.toLittleEndian(): ByteArray =
+            ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(this).array()
+    }
+}
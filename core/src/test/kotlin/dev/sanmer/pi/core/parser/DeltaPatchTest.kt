@@ -0,0 +1,160 @@
+package dev.sanmer.pi.core.parser
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import kotlin.random.Random
+
+class DeltaPatchTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val base = Random(5).nextBytes(4096)
+
+    /** Bumps the first 3000 bytes, inserts 500 new ones, then keeps the last 596 as they are. */
+    private val target = ByteArray(3000) { (base[it] + it % 7).toByte() } +
+            Random(7).nextBytes(500) +
+            base.copyOfRange(3500, 4096)
+
+    private val controls = listOf(
+        Triple(3000L, 500L, 500L),
+        Triple(596L, 0L, 0L)
+    )
+
+    private fun bsdiff(newSize: Long = target.size.toLong()): ByteArray {
+        val ctrl = bzip2 { output ->
+            controls.forEach { (add, copy, seek) ->
+                output.write(offtout(add))
+                output.write(offtout(copy))
+                output.write(offtout(seek))
+            }
+        }
+        val diff = bzip2 { output ->
+            output.write(ByteArray(3000) { (target[it] - base[it]).toByte() })
+            output.write(ByteArray(596))
+        }
+        val extra = bzip2 { output -> output.write(target, 3000, 500) }
+
+        return "BSDIFF40".toByteArray() +
+                offtout(ctrl.size.toLong()) +
+                offtout(diff.size.toLong()) +
+                offtout(newSize) +
+                ctrl + diff + extra
+    }
+
+    private fun patch(
+        magic: Int = MAGIC,
+        targetSize: Long = target.size.toLong(),
+        payload: ByteArray = bsdiff()
+    ): ByteArray {
+        val output = ByteArrayOutputStream()
+        DataOutputStream(output).use {
+            it.writeInt(magic)
+            it.writeInt(1)
+            it.writeUTF(PACKAGE_NAME)
+            it.writeLong(1)
+            it.writeLong(2)
+            it.writeUTF("2.0")
+            it.write(sha256(base))
+            it.write(sha256(target))
+            it.writeLong(targetSize)
+            it.write(payload)
+        }
+        return output.toByteArray()
+    }
+
+    private fun File.channel() = FileChannel.open(toPath(), StandardOpenOption.READ)
+
+    private fun file(bytes: ByteArray) = folder.newFile().apply { writeBytes(bytes) }
+
+    private fun read(prefix: ByteArray, bytes: ByteArray) = file(prefix + bytes).channel()
+        .use { DeltaPatch.read(it, prefix.size.toLong(), bytes.size.toLong()) }
+
+    @Test
+    fun readHeader() {
+        val patch = checkNotNull(read(ByteArray(16), patch()))
+        assertEquals(PACKAGE_NAME, patch.packageName)
+        assertEquals(1L, patch.baseVersionCode)
+        assertEquals(2L, patch.targetVersionCode)
+        assertEquals("2.0", patch.targetVersionName)
+        assertArrayEquals(sha256(target), patch.targetSha256)
+        assertEquals(target.size.toLong(), patch.targetSize)
+    }
+
+    @Test
+    fun readNotPatch() {
+        assertNull(read(ByteArray(0), patch(magic = 0x504b0304)))
+        assertNull(read(ByteArray(0), ByteArray(8)))
+    }
+
+    @Test
+    fun matchesBase() {
+        val patch = read(ByteArray(0), patch())!!
+        assertTrue(file(base).channel().use(patch::matchesBase))
+        assertFalse(file(target).channel().use(patch::matchesBase))
+    }
+
+    @Test
+    fun apply() {
+        val prefix = Random(9).nextBytes(37)
+        val bytes = patch()
+        val output = ByteArrayOutputStream()
+        file(prefix + bytes).channel().use { channel ->
+            val patch = DeltaPatch.read(channel, prefix.size.toLong(), bytes.size.toLong())!!
+            file(base).channel().use { old ->
+                patch.apply(channel, old) { buffer, size -> output.write(buffer, 0, size) }
+            }
+        }
+        assertArrayEquals(target, output.toByteArray())
+    }
+
+    @Test
+    fun applyRejectsSizeMismatch() {
+        val bytes = patch(payload = bsdiff(newSize = target.size + 1L))
+        file(bytes).channel().use { channel ->
+            val patch = DeltaPatch.read(channel, 0, bytes.size.toLong())!!
+            file(base).channel().use { old ->
+                assertThrows(IllegalArgumentException::class.java) {
+                    patch.apply(channel, old) { _, _ -> }
+                }
+            }
+        }
+    }
+
+    private companion object Default {
+        const val MAGIC = 0x5049444c
+        const val PACKAGE_NAME = "dev.sanmer.pi"
+
+        fun sha256(bytes: ByteArray): ByteArray = MessageDigest.getInstance("SHA-256").digest(bytes)
+
+        fun bzip2(block: (BZip2CompressorOutputStream) -> Unit): ByteArray {
+            val output = ByteArrayOutputStream()
+            BZip2CompressorOutputStream(output).use(block)
+            return output.toByteArray()
+        }
+
+        fun offtout(value: Long): ByteArray {
+            var magnitude = if (value < 0) -value else value
+            val bytes = ByteArray(8)
+            for (i in 0 until 8) {
+                bytes[i] = (magnitude and 0xff).toByte()
+                magnitude = magnitude ushr 8
+            }
+            if (value < 0) bytes[7] = (bytes[7].toInt() or 0x80).toByte()
+            return bytes
+        }
+    }
+}
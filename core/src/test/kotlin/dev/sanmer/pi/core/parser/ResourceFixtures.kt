@@ -0,0 +1,223 @@
+package dev.sanmer.pi.core.parser
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/** Builds small binary string pools and resource tables the way aapt2 lays them out. */
+internal object ResourceFixtures {
+    const val TYPE_REFERENCE = 0x01
+    const val TYPE_STRING = 0x03
+
+    const val DENSITY_ANY = 0xFFFE
+    const val NO_ENTRY = 0xFFFF
+
+    private const val RES_STRING_POOL_TYPE = 0x0001
+    private const val RES_TABLE_TYPE = 0x0002
+    private const val RES_TABLE_PACKAGE_TYPE = 0x0200
+    private const val RES_TABLE_TYPE_TYPE = 0x0201
+
+    private const val STRING_POOL_HEADER_SIZE = 28
+    private const val PACKAGE_HEADER_SIZE = 288
+    private const val CONFIG_SIZE = 64
+    private const val UTF8_FLAG = 1 shl 8
+
+    private const val FLAG_SPARSE = 0x01
+    private const val FLAG_OFFSET16 = 0x02
+    private const val ENTRY_SIZE = 16
+
+    enum class Encoding { Offset32, Offset16, Sparse }
+
+    class Config(
+        val language: String = "",
+        val country: String = "",
+        val script: String = "",
+        val density: Int = 0,
+        val sdkVersion: Int = 0
+    )
+
+    class Value(val dataType: Int, val data: Int)
+
+    fun stringPool(strings: List<String>, isUtf8: Boolean): ByteArray {
+        val data = Writer()
+        val offsets = strings.map { value ->
+            data.size.also { if (isUtf8) data.utf8(value) else data.utf16(value) }
+        }
+        data.align()
+
+        val stringsStart = STRING_POOL_HEADER_SIZE + strings.size * 4
+        return Writer().apply {
+            u16(RES_STRING_POOL_TYPE)
+            u16(STRING_POOL_HEADER_SIZE)
+            u32(stringsStart + data.size)
+            u32(strings.size)
+            u32(0)
+            u32(if (isUtf8) UTF8_FLAG else 0)
+            u32(stringsStart)
+            u32(0)
+            offsets.forEach { u32(it) }
+            bytes(data.toByteArray())
+        }.toByteArray()
+    }
+
+    fun type(
+        id: Int,
+        entryCount: Int,
+        values: Map<Int, Value>,
+        encoding: Encoding = Encoding.Offset32,
+        config: Config = Config()
+    ): ByteArray {
+        val ids = values.keys.sorted()
+        val offsets = when (encoding) {
+            Encoding.Offset32 -> Writer().apply {
+                repeat(entryCount) {
+                    val index = ids.indexOf(it)
+                    u32(if (index < 0) -1 else index * ENTRY_SIZE)
+                }
+            }
+
+            Encoding.Offset16 -> Writer().apply {
+                repeat(entryCount) {
+                    val index = ids.indexOf(it)
+                    u16(if (index < 0) NO_ENTRY else index * ENTRY_SIZE / 4)
+                }
+            }
+
+            Encoding.Sparse -> Writer().apply {
+                ids.forEachIndexed { i, entryId ->
+                    u16(entryId)
+                    u16(i * ENTRY_SIZE / 4)
+                }
+            }
+        }.toByteArray()
+
+        val entries = Writer().apply {
+            ids.forEach { entryId ->
+                val value = values.getValue(entryId)
+                u16(8)
+                u16(0)
+                u32(entryId)
+                u16(8)
+                u8(0)
+                u8(value.dataType)
+                u32(value.data)
+            }
+        }.toByteArray()
+
+        val headerSize = 20 + CONFIG_SIZE
+        val entriesStart = headerSize + offsets.size
+        return Writer().apply {
+            u16(RES_TABLE_TYPE_TYPE)
+            u16(headerSize)
+            u32(entriesStart + entries.size)
+            u8(id)
+            u8(
+                when (encoding) {
+                    Encoding.Offset32 -> 0
+                    Encoding.Offset16 -> FLAG_OFFSET16
+                    Encoding.Sparse -> FLAG_SPARSE
+                }
+            )
+            u16(0)
+            u32(if (encoding == Encoding.Sparse) ids.size else entryCount)
+            u32(entriesStart)
+            config(config)
+            bytes(offsets)
+            bytes(entries)
+        }.toByteArray()
+    }
+
+    fun table(
+        strings: List<String>,
+        packageId: Int,
+        types: List<ByteArray>,
+        isUtf8: Boolean = true
+    ): ByteArray {
+        val pool = stringPool(strings, isUtf8)
+        val children = types.fold(ByteArray(0), ByteArray::plus)
+        val pkg = Writer().apply {
+            u16(RES_TABLE_PACKAGE_TYPE)
+            u16(PACKAGE_HEADER_SIZE)
+            u32(PACKAGE_HEADER_SIZE + children.size)
+            u32(packageId)
+            bytes(ByteArray(256))
+            repeat(5) { u32(0) }
+            bytes(children)
+        }.toByteArray()
+
+        return Writer().apply {
+            u16(RES_TABLE_TYPE)
+            u16(12)
+            u32(12 + pool.size + pkg.size)
+            u32(1)
+            bytes(pool)
+            bytes(pkg)
+        }.toByteArray()
+    }
+
+    private fun Writer.config(config: Config) {
+        val start = size
+        u32(CONFIG_SIZE)
+        u32(0)
+        bytes(config.language.padEnd(2, '\u0000').toByteArray(Charsets.US_ASCII))
+        bytes(config.country.padEnd(2, '\u0000').toByteArray(Charsets.US_ASCII))
+        u16(0)
+        u16(config.density)
+        u32(0)
+        u32(0)
+        u16(config.sdkVersion)
+        u16(0)
+        bytes(ByteArray(8))
+        bytes(config.script.padEnd(4, '\u0000').toByteArray(Charsets.US_ASCII))
+        bytes(ByteArray(CONFIG_SIZE - (size - start)))
+    }
+
+    private class Writer {
+        private val output = ByteArrayOutputStream()
+
+        val size get() = output.size()
+
+        fun u8(value: Int) = output.write(value)
+
+        fun u16(value: Int) {
+            output.write(value)
+            output.write(value ushr 8)
+        }
+
+        fun u32(value: Int) = output.write(
+            ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array()
+        )
+
+        fun bytes(value: ByteArray) = output.write(value)
+
+        fun align() {
+            while (size % 4 != 0) u8(0)
+        }
+
+        fun utf8(value: String) {
+            val encoded = value.toByteArray(Charsets.UTF_8)
+            length8(value.length)
+            length8(encoded.size)
+            bytes(encoded)
+            u8(0)
+        }
+
+        fun utf16(value: String) {
+            if (value.length > 0x7FFF) {
+                u16(0x8000 or (value.length ushr 16))
+                u16(value.length and 0xFFFF)
+            } else {
+                u16(value.length)
+            }
+            value.forEach { u16(it.code) }
+            u16(0)
+        }
+
+        private fun length8(value: Int) {
+            if (value > 0x7F) u8(0x80 or (value ushr 8))
+            u8(value and 0xFF)
+        }
+
+        fun toByteArray(): ByteArray = output.toByteArray()
+    }
+}
@@ -0,0 +1,139 @@
+package dev.sanmer.pi.core.parser
+
+import dev.sanmer.pi.core.parser.ResourceFixtures.Config
+import dev.sanmer.pi.core.parser.ResourceFixtures.Encoding
+import dev.sanmer.pi.core.parser.ResourceFixtures.Value
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.Locale
+
+class ResourceTableParserTest {
+    private val strings = listOf(
+        "Installer",
+        "安装器",
+        "res/mipmap-mdpi/ic_launcher.png",
+        "res/mipmap-xxhdpi/ic_launcher.png",
+        "res/mipmap-anydpi-v26/ic_launcher.xml",
+        "安裝器"
+    )
+
+    private fun table(isUtf8: Boolean) = ResourceTableParser(
+        ByteBuffer.wrap(
+            ResourceFixtures.table(
+                strings = strings,
+                packageId = PACKAGE_ID,
+                isUtf8 = isUtf8,
+                types = listOf(
+                    ResourceFixtures.type(
+                        id = TYPE_STRING,
+                        entryCount = 5,
+                        values = mapOf(
+                            3 to Value(ResourceFixtures.TYPE_STRING, 0),
+                            4 to Value(ResourceFixtures.TYPE_REFERENCE, LABEL)
+                        )
+                    ),
+                    ResourceFixtures.type(
+                        id = TYPE_STRING,
+                        entryCount = 5,
+                        values = mapOf(3 to Value(ResourceFixtures.TYPE_STRING, 1)),
+                        encoding = Encoding.Offset16,
+                        config = Config(language = "zh")
+                    ),
+                    ResourceFixtures.type(
+                        id = TYPE_STRING,
+                        entryCount = 5,
+                        values = mapOf(3 to Value(ResourceFixtures.TYPE_STRING, 5)),
+                        config = Config(language = "zh", script = "Hant")
+                    ),
+                    ResourceFixtures.type(
+                        id = TYPE_MIPMAP,
+                        entryCount = 0x100,
+                        values = mapOf(0x80 to Value(ResourceFixtures.TYPE_STRING, 2)),
+                        encoding = Encoding.Sparse,
+                        config = Config(density = 160)
+                    ),
+                    ResourceFixtures.type(
+                        id = TYPE_MIPMAP,
+                        entryCount = 0x100,
+                        values = mapOf(
+                            0x10 to Value(ResourceFixtures.TYPE_REFERENCE, ICON),
+                            0x80 to Value(ResourceFixtures.TYPE_STRING, 3)
+                        ),
+                        encoding = Encoding.Sparse,
+                        config = Config(density = 480)
+                    ),
+                    ResourceFixtures.type(
+                        id = TYPE_MIPMAP,
+                        entryCount = 0x100,
+                        values = mapOf(0x80 to Value(ResourceFixtures.TYPE_STRING, 4)),
+                        encoding = Encoding.Sparse,
+                        config = Config(density = ResourceFixtures.DENSITY_ANY, sdkVersion = 26)
+                    )
+                )
+            )
+        )
+    )
+
+    private fun assertStrings(table: ResourceTableParser) {
+        assertEquals("Installer", table.getString(LABEL, listOf(Locale.US)))
+        assertEquals("安装器", table.getString(LABEL, listOf(Locale.SIMPLIFIED_CHINESE)))
+        assertEquals("安装器", table.getString(LABEL, listOf(Locale.FRANCE, Locale.CHINESE)))
+        assertEquals("Installer", table.getString(LABEL_REFERENCE, listOf(Locale.US)))
+    }
+
+    @Test
+    fun getStringUtf8() = assertStrings(table(isUtf8 = true))
+
+    @Test
+    fun getStringUtf16() = assertStrings(table(isUtf8 = false))
+
+    @Test
+    fun getStringScript() {
+        val table = table(isUtf8 = true)
+        val hant = Locale.forLanguageTag("zh-Hant-TW")
+        val hans = Locale.forLanguageTag("zh-Hans-CN")
+        assertEquals("安裝器", table.getString(LABEL, listOf(hant)))
+        assertEquals("安装器", table.getString(LABEL, listOf(hans)))
+        assertEquals("安裝器", table.getString(LABEL, listOf(Locale.US, hant)))
+    }
+
+    @Test
+    fun getStringOffset16NoEntry() {
+        val table = table(isUtf8 = true)
+        assertNull(table.getString(resId(TYPE_STRING, 1), listOf(Locale.CHINESE)))
+        assertNull(table.getString(resId(TYPE_STRING, 5), listOf(Locale.CHINESE)))
+    }
+
+    @Test
+    fun getFilePathSparse() {
+        val table = table(isUtf8 = true)
+        assertEquals(strings[2], table.getFilePath(ICON, 160, 25))
+        assertEquals(strings[3], table.getFilePath(ICON, 480, 25))
+        assertEquals(strings[3], table.getFilePath(ICON, 320, 25))
+        assertEquals(strings[4], table.getFilePath(ICON, 480, 26))
+        assertEquals(strings[3], table.getFilePath(ICON_REFERENCE, 480, 25))
+    }
+
+    @Test
+    fun getFilePathSparseNoEntry() {
+        val table = table(isUtf8 = false)
+        assertNull(table.getFilePath(resId(TYPE_MIPMAP, 0x7F), 480, 26))
+        assertNull(table.getFilePath(resId(TYPE_MIPMAP, 0x81), 480, 26))
+        assertNull(table.getFilePath(0x7e020080, 480, 26))
+    }
+
+    private companion object Default {
+        const val PACKAGE_ID = 0x7f
+        const val TYPE_STRING = 0x01
+        const val TYPE_MIPMAP = 0x02
+
+        fun resId(type: Int, entry: Int) = PACKAGE_ID shl 24 or (type shl 16) or entry
+
+        val LABEL = resId(TYPE_STRING, 3)
+        val LABEL_REFERENCE = resId(TYPE_STRING, 4)
+        val ICON = resId(TYPE_MIPMAP, 0x80)
+        val ICON_REFERENCE = resId(TYPE_MIPMAP, 0x10)
+    }
+}
@@ -0,0 +1,48 @@
+package dev.sanmer.pi.core.parser
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class StringPoolTest {
+    private val strings = listOf(
+        "",
+        "Installer",
+        "安装器",
+        "a".repeat(200),
+        "包".repeat(100)
+    )
+
+    private fun pool(strings: List<String>, isUtf8: Boolean): StringPool {
+        val data = ResourceFixtures.stringPool(strings, isUtf8)
+        return StringPool(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), 0)
+    }
+
+    @Test
+    fun utf8() {
+        val pool = pool(strings, isUtf8 = true)
+        strings.forEachIndexed { index, value -> assertEquals(value, pool[index]) }
+    }
+
+    @Test
+    fun utf16() {
+        val pool = pool(strings, isUtf8 = false)
+        strings.forEachIndexed { index, value -> assertEquals(value, pool[index]) }
+    }
+
+    @Test
+    fun utf16Long() {
+        val value = "x".repeat(0x8000 + 3)
+        assertEquals(value, pool(listOf(value), isUtf8 = false)[0])
+    }
+
+    @Test
+    fun outOfRange() {
+        val pool = pool(strings, isUtf8 = true)
+        assertNull(pool[-1])
+        assertNull(pool[strings.size])
+        assertNull(StringPool.Empty[0])
+    }
+}
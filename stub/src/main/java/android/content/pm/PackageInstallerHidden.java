@@ -1,7 +1,11 @@
 package android.content.pm;
 
+import android.os.ParcelFileDescriptor;
+
 import dev.rikka.tools.refine.RefineAs;
 
+import java.io.IOException;
+
 @RefineAs(PackageInstaller.class)
 public class PackageInstallerHidden {
 
@@ -20,5 +24,9 @@ public class PackageInstallerHidden {
         public SessionHidden(IPackageInstallerSession session) {
             throw new RuntimeException("Stub!");
         }
+
+        public void write(String name, long offsetBytes, long lengthBytes, ParcelFileDescriptor fd) throws IOException {
+            throw new RuntimeException("Stub!");
+        }
     }
 }
\ No newline at end of file